@@ -724,6 +724,22 @@ public class DataBuffer {
         return getLong7At(getPosAndShift(7));
     }
 
+    /**
+     * Чтение long в формате varint (беззнаковый LEB128: по 7 бит в байте, младшие - в начале, старший бит байта -
+     * признак продолжения) из текущей позиции в рабочем окне и сдвиг текущей позиции вперед на кол-во считаных байт.
+     *
+     * @return Считанное значение.
+     */
+    public long getVarLong() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new ExOutOfRange("getVarLong() - длина значения больше 10 байт");
+    }
+
     /**
      * Чтение long из текста (старшие регистры в начале) из указанной позиции. Не влияет на текущую позицию.
      *
@@ -1219,6 +1235,22 @@ public class DataBuffer {
         return putLong7At(pos(), value).shift(7);
     }
 
+    /**
+     * Запись long в формате varint (беззнаковый LEB128: по 7 бит в байте, младшие - в начале, старший бит байта -
+     * признак продолжения, от 1 до 10 байт) в текущую позицию и сдвиг текущей позиции вперед на кол-во записанных
+     * байт.
+     *
+     * @param value Записываемое значение.
+     * @return Ссылка на себя для возможности создания цепочек вызовов.
+     */
+    public DataBuffer putVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            put((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        return put((int) value);
+    }
+
     /**
      * Запись long как текст в указанную позицию в рабочем окне. Не влияет на текущую позицию.
      *
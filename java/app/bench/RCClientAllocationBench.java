@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2016. Aleksey Nikolaevich Dokshin. All right reserved.
+ * Contacts: dant.it@gmail.com, dokshin@list.ru.
+ */
+
+package app.bench;
+
+import app.DataBuffer;
+import app.LoggerExt;
+import app.service.QueuedRCService;
+import app.service.RCClient;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.logging.LogManager;
+
+/**
+ * Тест выделения памяти клиентом (RCClient) на цикл исполнения команды EXECUTE + GETRESULT + FINALIZE и на запрос
+ * состояния GETSTATE. Сервис работает в том же процессе (через UDP на локальном адресе), учитывается только память,
+ * выделенная потоком клиента (com.sun.management.ThreadMXBean).
+ * <p>
+ * Варианты:
+ * <pre>
+ * - execute        - remoteExecute() с созданием нового объекта результата;
+ * - execute/reuse  - remoteExecute() с повторно используемым объектом результата;
+ * - getstate/reuse - remoteGetState() с повторно используемым объектом результата.
+ * </pre>
+ * Результат получается долгим опросом (иначе ответы "результат не готов" содержат текст ошибки).
+ * <p>
+ * Запуск: java -cp classes app.bench.RCClientAllocationBench [циклы=500] [прогрев=500] [порт=19500]
+ */
+public class RCClientAllocationBench {
+
+    /** Сервис для теста: результат команды - данные команды. */
+    private static class BenchService extends QueuedRCService {
+        BenchService(int port) {
+            super("bench", port, 2000, 8, ProcessingMode.PARALLEL_FOR_ALL, false);
+        }
+
+        @Override
+        protected void commandExecutionBody(Slot slot) {
+            slot.execmeta.buffer.rewind();
+        }
+    }
+
+    /** Замер выделенной потоком памяти. */
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /** Вариант теста. */
+    private interface Op {
+        void run(RCClient client, DataBuffer buf) throws Exception;
+    }
+
+    /** Прогрев и замер варианта: байт на операцию. */
+    private static double measure(RCClient client, DataBuffer buf, int warmup, int cycles, Op op) throws Exception {
+        for (int i = 0; i < warmup; i++) op.run(client, buf);
+        long tid = Thread.currentThread().getId();
+        long bytes = THREADS.getThreadAllocatedBytes(tid);
+        long t = System.nanoTime();
+        for (int i = 0; i < cycles; i++) op.run(client, buf);
+        long nanos = System.nanoTime() - t;
+        bytes = THREADS.getThreadAllocatedBytes(tid) - bytes;
+        System.out.printf("    %.1f us/op%n", nanos / 1000.0 / cycles);
+        return bytes / (double) cycles;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int cycles = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int warmup = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 19500;
+
+        BenchService service = new BenchService(port);
+        RCClient client = new RCClient(1, new InetSocketAddress("127.0.0.1", port), 2000);
+        client.setResultWaitTimeout(1000);
+        // Отключаем логирование - иначе измеряется выделение памяти логом.
+        for (String name : Collections.list(LogManager.getLogManager().getLoggerNames())) {
+            java.util.logging.Logger l = LogManager.getLogManager().getLogger(name);
+            if (l instanceof LoggerExt) ((LoggerExt) l).enable(false);
+        }
+        service.start();
+
+        DataBuffer buf = new DataBuffer(2000);
+        RCClient.ResultExecute res = new RCClient.ResultExecute();
+        RCClient.ResultGetState state = new RCClient.ResultGetState();
+
+        System.out.printf("cycles=%d warmup=%d%n", cycles, warmup);
+        System.out.println("  execute:");
+        double b1 = measure(client, buf, warmup, cycles, (c, b) -> {
+            b.reset().putLong(1).flip();
+            c.remoteExecute(1000, 5000, b);
+        });
+        System.out.printf("    %.1f bytes/op%n", b1);
+        System.out.println("  execute/reuse:");
+        double b2 = measure(client, buf, warmup, cycles, (c, b) -> {
+            b.reset().putLong(1).flip();
+            c.remoteExecute(1000, 5000, b, res);
+        });
+        System.out.printf("    %.1f bytes/op%n", b2);
+        System.out.println("  getstate/reuse:");
+        double b3 = measure(client, buf, warmup, cycles, (c, b) -> c.remoteGetState(1000, state));
+        System.out.printf("    %.1f bytes/op%n", b3);
+
+        service.stop();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2016. Aleksey Nikolaevich Dokshin. All right reserved.
+ * Contacts: dant.it@gmail.com, dokshin@list.ru.
+ */
+
+package app.bench;
+
+import app.DataBuffer;
+import app.LoggerExt;
+import app.service.QueuedRCService;
+import app.service.RCClient;
+import app.service.RCService;
+import util.LatencyHistogram;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.LogManager;
+
+/**
+ * Генератор нагрузки на QueuedRCService (через UDP на локальном адресе, без оборудования). Сервис с имитацией работы
+ * команды (пауза или загрузка процессора) нагружается N отправителями (каждый - свой RCClient), выполняющими циклы
+ * EXECUTE + GETRESULT + FINALIZE без пауз, для каждого заданного режима обработки команд.
+ * <p>
+ * Выводит пропускную способность (циклов в секунду), кол-во отказов и распределение времени (p50, p99, p999, max)
+ * полного цикла на стороне клиента (CYCLE), а также этапов обработки команд по типам запросов - по метрикам сервиса
+ * (запрос METRICS, см. RCService.LatencyStage). Клиент замеров не собирает - цикл запросов клиента не изменяется.
+ * <p>
+ * Запуск: java -cp classes app.bench.RCLoadGenerator [отправители=8] [секунды=5] [работа=sleep|burn|none]
+ * [работа_мкс=1000] [режимы=PARALLEL_FOR_ALL,SERIAL_FOR_CLIENT,SERIAL_FOR_ALL] [ожидание_мс=1000] [порт=19600]
+ */
+public class RCLoadGenerator {
+
+    /** Имитация работы команды. */
+    private enum Work {
+        /** Без работы (результат - данные команды). */
+        NONE,
+        /** Пауза (ожидание оборудования). */
+        SLEEP,
+        /** Активная загрузка процессора. */
+        BURN
+    }
+
+    /** Сервис для теста: команда - имитация работы заданной длительности. */
+    private static class LoadService extends QueuedRCService {
+        private final Work work;
+        private final long workNanos;
+
+        LoadService(int port, int queuesize, ProcessingMode mode, Work work, long worknanos) {
+            super("load", port, 2000, queuesize, mode, false);
+            this.work = work;
+            this.workNanos = worknanos;
+        }
+
+        @Override
+        protected void commandExecutionBody(Slot slot) {
+            switch (work) {
+                case SLEEP:
+                    try {
+                        Thread.sleep(workNanos / 1000000, (int) (workNanos % 1000000));
+                    } catch (InterruptedException ignore) {
+                    }
+                    break;
+                case BURN:
+                    long end = System.nanoTime() + workNanos;
+                    while (System.nanoTime() < end) ;
+                    break;
+            }
+            slot.execmeta.buffer.rewind();
+        }
+    }
+
+    /** Замеры времени (наносек). */
+    private static class Samples {
+        private long[] values = new long[1024];
+        private int count = 0;
+
+        void add(long value) {
+            if (count == values.length) values = Arrays.copyOf(values, count * 2);
+            values[count++] = value;
+        }
+
+        void addAll(Samples src) {
+            for (int i = 0; i < src.count; i++) add(src.values[i]);
+        }
+
+        /** Процентиль (по отсортированным замерам!), мкс. */
+        double percentile(double p) {
+            if (count == 0) return 0;
+            int i = (int) Math.ceil(p * count) - 1;
+            return values[Math.max(0, Math.min(count - 1, i))] / 1000.0;
+        }
+    }
+
+    /** Отправитель: клиент и замеры времени полного цикла. */
+    private static class Sender {
+        final RCClient client;
+        final Samples samples = new Samples();
+        long cycles = 0, errors = 0;
+
+        Sender(int clientid, InetSocketAddress address) throws Exception {
+            client = new RCClient(clientid, address, 2000);
+        }
+    }
+
+    /** Прогон одного режима обработки. */
+    private static void run(ProcessingModeRun r) throws Exception {
+        LoadService service = new LoadService(r.port, r.senders * 2 + 4, r.mode, r.work, r.workNanos);
+        disableLoggers();
+        service.start();
+
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", r.port);
+        ArrayList<Sender> senders = new ArrayList<>();
+        for (int i = 0; i < r.senders; i++) {
+            Sender c = new Sender(i + 1, address);
+            c.client.setResultWaitTimeout(r.waitTimeout);
+            senders.add(c);
+        }
+        disableLoggers();
+
+        long deadline = System.currentTimeMillis() + r.seconds * 1000L;
+        CountDownLatch done = new CountDownLatch(r.senders);
+        for (Sender c : senders) {
+            new Thread(() -> {
+                DataBuffer buf = new DataBuffer(2000);
+                RCClient.ResultExecute res = new RCClient.ResultExecute();
+                while (System.currentTimeMillis() < deadline) {
+                    long t = System.nanoTime();
+                    try {
+                        buf.reset().putLong(c.cycles).flip();
+                        c.client.remoteExecute(1000, 10000, buf, res);
+                        if (res.answerErrorID == RCService.RESULT_OK) {
+                            c.samples.add(System.nanoTime() - t);
+                            c.cycles++;
+                        } else {
+                            c.errors++;
+                        }
+                    } catch (Exception ex) {
+                        c.errors++;
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        RCClient.ResultMetrics metrics = null;
+        try {
+            RCClient mc = senders.get(0).client;
+            mc.setMaxAnswerSize(65000);
+            metrics = mc.remoteMetrics(1000);
+        } catch (Exception ex) {
+            System.out.printf("  metrics: %s%n", ex.getMessage());
+        }
+        service.stop();
+
+        long cycles = 0, errors = 0;
+        Samples all = new Samples();
+        for (Sender c : senders) {
+            cycles += c.cycles;
+            errors += c.errors;
+            all.addAll(c.samples);
+        }
+
+        System.out.printf("mode=%s senders=%d work=%s %dus seconds=%d wait=%dms%n", r.mode, r.senders, r.work,
+                r.workNanos / 1000, r.seconds, r.waitTimeout);
+        System.out.printf("  cycles/s: %.0f  errors: %d%n", cycles / (double) r.seconds, errors);
+        System.out.printf("  %-32s %9s %10s %10s %10s %10s%n", "type", "count", "p50,us", "p99,us", "p999,us",
+                "max,us");
+        if (all.count > 0) {
+            Arrays.sort(all.values, 0, all.count);
+            System.out.printf("  %-32s %9d %10.0f %10.0f %10.0f %10.0f%n", "CYCLE", all.count, all.percentile(0.5),
+                    all.percentile(0.99), all.percentile(0.999), all.percentile(1));
+        }
+        if (metrics != null) {
+            for (RCService.LatencyMetrics m : metrics.metrics) {
+                LatencyHistogram.Snapshot h = m.histogram;
+                System.out.printf("  %-32s %9d %10d %10d %10d %10d%n", m.requestType + "/" + m.stage, h.count,
+                        h.getPercentile(50), h.getPercentile(99), h.getPercentile(99.9), h.max);
+            }
+            if (!metrics.isComplete) System.out.printf("  (снимок метрик неполный)%n");
+        }
+    }
+
+    /** Параметры прогона режима. */
+    private static class ProcessingModeRun {
+        QueuedRCService.ProcessingMode mode;
+        int senders, seconds, waitTimeout, port;
+        Work work;
+        long workNanos;
+    }
+
+    /** Отключение логирования (иначе измеряется скорость записи лога). */
+    private static void disableLoggers() {
+        for (String name : Collections.list(LogManager.getLogManager().getLoggerNames())) {
+            java.util.logging.Logger l = LogManager.getLogManager().getLogger(name);
+            if (l instanceof LoggerExt) ((LoggerExt) l).enable(false);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int senders = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        Work work = args.length > 2 ? Work.valueOf(args[2].toUpperCase()) : Work.SLEEP;
+        long worknanos = (args.length > 3 ? Integer.parseInt(args[3]) : 1000) * 1000L;
+        String modes = args.length > 4 ? args[4] : "PARALLEL_FOR_ALL,SERIAL_FOR_CLIENT,SERIAL_FOR_ALL";
+        int wait = args.length > 5 ? Integer.parseInt(args[5]) : 1000;
+        int port = args.length > 6 ? Integer.parseInt(args[6]) : 19600;
+
+        for (String m : modes.split(",")) {
+            ProcessingModeRun r = new ProcessingModeRun();
+            r.mode = QueuedRCService.ProcessingMode.valueOf(m.trim().toUpperCase());
+            r.senders = senders;
+            r.seconds = seconds;
+            r.work = work;
+            r.workNanos = worknanos;
+            r.waitTimeout = wait;
+            r.port = port++; // Для каждого режима - свой порт (сервис перезапускается).
+            run(r);
+        }
+        System.exit(0);
+    }
+}
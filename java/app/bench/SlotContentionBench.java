@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2016. Aleksey Nikolaevich Dokshin. All right reserved.
+ * Contacts: dant.it@gmail.com, dokshin@list.ru.
+ */
+
+package app.bench;
+
+import app.DataBuffer;
+import app.LoggerExt;
+import app.service.QueuedRCService;
+import app.service.RCService;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.LogManager;
+
+/**
+ * Нагрузочный тест конкуренции за слоты QueuedRCService (без сети). Запросы подаются напрямую в обработчик сообщений
+ * сервиса (processMessage) из нескольких потоков:
+ * <pre>
+ * - "исполнители" - циклы EXECUTE + GETRESULT (до готовности) + FINALIZE;
+ * - "читатели" - GETRESULT по готовому (не финализируемому) результату и GETSTATE попеременно.
+ * </pre>
+ * Выводит пропускную способность исполнителей и читателей, а также среднее время запроса читателя. Для сравнения
+ * вариантов реализации - запускается на каждом варианте с одинаковыми параметрами.
+ * <p>
+ * Запуск: java -cp classes app.bench.SlotContentionBench [читатели=4] [исполнители=4] [секунды=5] [работа_мкс=50]
+ */
+public class SlotContentionBench {
+
+    /** Адрес "клиента" для сообщений (сетевой обмен не производится). */
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 1);
+    /** ID отправителя для читателей (смещение от номера потока). */
+    private static final int READER_SENDER = 1000;
+    /** ID отправителя для исполнителей (смещение от номера потока). */
+    private static final int WORKER_SENDER = 2000;
+
+    /** Сервис для теста: команда - активное ожидание заданного времени (имитация работы без сна потока). */
+    private static class BenchService extends QueuedRCService {
+        private final long workNanos;
+
+        BenchService(int queuesize, long worknanos) {
+            super("bench", 0, 2000, queuesize, ProcessingMode.PARALLEL_FOR_ALL, false);
+            this.workNanos = worknanos;
+        }
+
+        @Override
+        protected void commandExecutionBody(Slot slot) {
+            long end = System.nanoTime() + workNanos;
+            while (System.nanoTime() < end) ;
+        }
+
+        /** Подача запроса в обработчик сообщений, ответ - в том же буфере. */
+        void call(DataBuffer buf) throws Exception {
+            processMessage(ADDRESS, System.currentTimeMillis(), buf);
+            buf.offset(0);
+        }
+    }
+
+    /** Генератор ID сообщений. */
+    private static final AtomicLong messageID = new AtomicLong(1);
+
+    /** Формирование запроса в буфере. */
+    private static RCService.Meta request(DataBuffer buf, int sender, RCService.RequestType type, long cmdid,
+                                          int timeout, long finid) throws Exception {
+        RCService.Meta meta = new RCService.Meta();
+        meta.senderID = sender;
+        meta.messageID = messageID.incrementAndGet();
+        meta.requestType = type;
+        meta.commandID = cmdid;
+        meta.executeTimeout = timeout;
+        meta.finalizationID = finid;
+        meta.buildRequest(buf.reset()).flip();
+        return meta;
+    }
+
+    /** Разбор ответа в буфере. */
+    private static RCService.Meta answer(DataBuffer buf) throws Exception {
+        RCService.Meta meta = new RCService.Meta();
+        meta.parseAnswer(buf.rewind());
+        return meta;
+    }
+
+    /** Полный цикл исполнения команды: EXECUTE + GETRESULT (до готовности) + FINALIZE. */
+    private static void cycle(BenchService s, DataBuffer buf, int sender, long cmdid, int timeout) throws Exception {
+        request(buf, sender, RCService.RequestType.EXECUTE, cmdid, timeout, 0);
+        s.call(buf);
+        if (answer(buf).answerErrorID != RCService.RESULT_OK) throw new IllegalStateException("EXECUTE");
+        RCService.Meta m;
+        while (true) {
+            request(buf, sender, RCService.RequestType.GETRESULT, cmdid, 0, 0);
+            s.call(buf);
+            m = answer(buf);
+            if (m.answerErrorID != RCService.RESULT_RESULTNOTREADY) break;
+            Thread.yield(); // Не отбираем процессор у исполнения команды.
+        }
+        if (m.answerErrorID != RCService.RESULT_OK) throw new IllegalStateException("GETRESULT " + m.answerErrorID);
+        request(buf, sender, RCService.RequestType.FINALIZE, cmdid, 0, m.finalizationID);
+        s.call(buf);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int readers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        long worknanos = (args.length > 3 ? Integer.parseInt(args[3]) : 50) * 1000L;
+
+        // Отключаем логирование сервиса - иначе измеряется скорость записи лога.
+        BenchService service = new BenchService(readers + workers * 2 + 8, worknanos);
+        for (String name : Collections.list(LogManager.getLogManager().getLoggerNames())) {
+            java.util.logging.Logger l = LogManager.getLogManager().getLogger(name);
+            if (l instanceof LoggerExt) ((LoggerExt) l).enable(false);
+        }
+        service.start();
+
+        // Результаты для читателей (хранятся до конца теста).
+        DataBuffer buf = new DataBuffer(2000);
+        for (int i = 0; i < readers; i++) {
+            request(buf, READER_SENDER + i, RCService.RequestType.EXECUTE, 1, 3600000, 0);
+            service.call(buf);
+        }
+        Thread.sleep(200);
+
+        AtomicLong readOps = new AtomicLong(), readNanos = new AtomicLong(), cycles = new AtomicLong();
+        long deadline = System.currentTimeMillis() + seconds * 1000L;
+        CountDownLatch done = new CountDownLatch(readers + workers);
+
+        for (int i = 0; i < readers; i++) {
+            int sender = READER_SENDER + i;
+            new Thread(() -> {
+                DataBuffer b = new DataBuffer(2000);
+                long ops = 0, nanos = 0;
+                try {
+                    while (System.currentTimeMillis() < deadline) {
+                        long t = System.nanoTime();
+                        request(b, sender, (ops & 1) == 0 ? RCService.RequestType.GETRESULT
+                                : RCService.RequestType.GETSTATE, 1, 0, 0);
+                        service.call(b);
+                        nanos += System.nanoTime() - t;
+                        ops++;
+                    }
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+                readOps.addAndGet(ops);
+                readNanos.addAndGet(nanos);
+                done.countDown();
+            }).start();
+        }
+        for (int i = 0; i < workers; i++) {
+            int sender = WORKER_SENDER + i;
+            new Thread(() -> {
+                DataBuffer b = new DataBuffer(2000);
+                long n = 0;
+                try {
+                    while (System.currentTimeMillis() < deadline) cycle(service, b, sender, ++n, 60000);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+                cycles.addAndGet(n);
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        service.stop();
+
+        System.out.printf("readers=%d workers=%d seconds=%d work=%dus%n", readers, workers, seconds, worknanos / 1000);
+        System.out.printf("  reader ops/s   : %.0f%n", readOps.get() / (double) seconds);
+        System.out.printf("  reader avg, us : %.2f%n", readOps.get() == 0 ? 0 : readNanos.get() / 1000.0 / readOps.get());
+        System.out.printf("  cycles/s       : %.0f%n", cycles.get() / (double) seconds);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2016. Aleksey Nikolaevich Dokshin. All right reserved.
+ * Contacts: dant.it@gmail.com, dokshin@list.ru.
+ */
+
+package app.service;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Исполнитель команд сервиса. Запускает обработчики команд в соответствии с заданным режимом и ведёт учёт кол-ва
+ * ожидающих запуска и исполняемых задач (для информации о состоянии сервиса).
+ */
+public class CommandExecutor {
+
+    /** Нумератор режимов исполнения команд. */
+    public enum Mode {
+
+        /** Отдельный (новый) поток на каждую команду. */
+        THREAD_PER_COMMAND(1),
+        /** Пул потоков фиксированного размера, команды сверх размера ожидают в очереди пула. */
+        BOUNDED_POOL(2),
+        /**
+         * Пул потоков фиксированного размера, команды одного отправителя исполняются строго последовательно (в порядке
+         * поступления), команды разных отправителей - параллельно.
+         */
+        PER_SENDER_SERIAL(3),
+        /** Отдельный виртуальный поток на каждую команду (если не поддерживается JVM - THREAD_PER_COMMAND). */
+        VIRTUAL(4);
+
+        public int id;
+
+        Mode(int id) {
+            this.id = id;
+        }
+
+        public static Mode byId(int id) {
+            for (Mode s : Mode.values()) if (s.id == id) return s;
+            return null;
+        }
+    }
+
+    /** Режим исполнения (фактический). */
+    private final Mode mode;
+    /** Пул потоков (null - для режима THREAD_PER_COMMAND). */
+    private final ExecutorService pool;
+    /**
+     * Очереди команд отправителей, исполняемых в данный момент (для режима PER_SENDER_SERIAL). Наличие очереди (даже
+     * пустой) - признак того, что у отправителя есть исполняемая команда. Изменяем только синхронизированно на ней!
+     */
+    private final HashMap<Integer, ArrayDeque<Runnable>> serialQueues;
+    /** Кол-во задач, ожидающих запуска. */
+    private final AtomicInteger pendingCount;
+    /** Кол-во исполняемых задач. */
+    private final AtomicInteger activeCount;
+    /** Название для потоков исполнителя. */
+    private final String name;
+    /** Нумератор потоков исполнителя. */
+    private final AtomicInteger threadNumber;
+
+    /**
+     * Конструктор.
+     *
+     * @param name     Название (для имён потоков).
+     * @param mode     Режим исполнения.
+     * @param poolsize Размер пула потоков (для режимов BOUNDED_POOL и PER_SENDER_SERIAL).
+     */
+    public CommandExecutor(String name, Mode mode, int poolsize) {
+        this.name = name;
+        this.threadNumber = new AtomicInteger(0);
+        this.pendingCount = new AtomicInteger(0);
+        this.activeCount = new AtomicInteger(0);
+        this.serialQueues = new HashMap<>();
+
+        ThreadFactory factory = r -> new Thread(r, this.name + "-" + threadNumber.incrementAndGet());
+        ExecutorService es = null;
+        switch (mode) {
+            case BOUNDED_POOL:
+            case PER_SENDER_SERIAL:
+                es = Executors.newFixedThreadPool(Math.max(1, poolsize), factory);
+                break;
+            case VIRTUAL:
+                es = newVirtualThreadExecutor();
+                if (es == null) mode = Mode.THREAD_PER_COMMAND;
+                break;
+        }
+        this.mode = mode;
+        this.pool = es;
+    }
+
+    /**
+     * Создание исполнителя с виртуальным потоком на каждую задачу (через рефлексию - доступно с Java 21).
+     *
+     * @return Исполнитель или null, если виртуальные потоки не поддерживаются.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    /** Фактический режим исполнения (VIRTUAL может быть заменён на THREAD_PER_COMMAND). */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /** Кол-во задач, ожидающих запуска (в очередях пула и отправителей). */
+    public int getQueueDepth() {
+        return pendingCount.get();
+    }
+
+    /** Кол-во исполняемых задач. */
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    /**
+     * Запуск задачи на исполнение.
+     *
+     * @param senderid ID отправителя команды (для режима PER_SENDER_SERIAL).
+     * @param task     Задача.
+     */
+    public void execute(int senderid, Runnable task) {
+        pendingCount.incrementAndGet();
+        switch (mode) {
+            case THREAD_PER_COMMAND:
+                new Thread(() -> runTask(task), name + "-" + threadNumber.incrementAndGet()).start();
+                break;
+            case PER_SENDER_SERIAL:
+                synchronized (serialQueues) {
+                    ArrayDeque<Runnable> q = serialQueues.get(senderid);
+                    if (q != null) { // У отправителя есть исполняемая команда - ставим в его очередь.
+                        q.add(task);
+                        return;
+                    }
+                    serialQueues.put(senderid, new ArrayDeque<>());
+                }
+                pool.execute(() -> runSerial(senderid, task));
+                break;
+            default:
+                pool.execute(() -> runTask(task));
+                break;
+        }
+    }
+
+    /** Исполнение задачи с учётом кол-ва ожидающих и исполняемых задач. */
+    private void runTask(Runnable task) {
+        pendingCount.decrementAndGet();
+        activeCount.incrementAndGet();
+        try {
+            task.run();
+        } finally {
+            activeCount.decrementAndGet();
+        }
+    }
+
+    /** Последовательное исполнение задач отправителя (пока его очередь не опустеет) в одном потоке пула. */
+    private void runSerial(int senderid, Runnable task) {
+        while (task != null) {
+            try {
+                runTask(task);
+            } catch (Exception ignore) { // Ошибка задачи не должна прерывать исполнение очереди отправителя.
+            }
+            synchronized (serialQueues) {
+                ArrayDeque<Runnable> q = serialQueues.get(senderid);
+                task = q.poll();
+                if (task == null) serialQueues.remove(senderid);
+            }
+        }
+    }
+
+    /**
+     * Остановка исполнителя. Новые задачи не принимаются, уже поставленные - исполняются до завершения (без ожидания
+     * их завершения).
+     */
+    public void shutdown() {
+        if (pool != null) pool.shutdown();
+    }
+}
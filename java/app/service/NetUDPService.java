@@ -12,12 +12,19 @@ import app.LoggerExt;
 import util.CRC16sb;
 import util.CommonTools;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.channels.DatagramChannel;
-import java.util.concurrent.atomic.AtomicLong;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Абстрактный сервис для удаленного управления путём подачи команд по сети. На базе этого класса потомки должны
@@ -44,19 +51,181 @@ public abstract class NetUDPService extends Service {
 
     /** Буфер для приёма и передачи пакетов-сообщений. */
     private final DataBuffer ioBuffer;
+    /** Буфер для сообщений (общий байт-массив с ioBuffer, чтобы нельзя было перезаписать начальные 4 байта). */
+    private final DataBuffer msgBuffer;
+    /** Буфер для отправки сообщений вне цикла приёма (из других потоков). Используем только синхронизированно! */
+    private final DataBuffer sendBuffer;
+
+    /** Нумератор режимов ожидания входящих датаграмм. */
+    public enum ReceiveMode {
+
+        /** Циклический опрос канала с паузой при отсутствии пакетов (исходный режим, оставлен для сравнения). */
+        POLLING(1),
+        /** Ожидание событий канала селектором (без задержки на паузу и без холостых пробуждений). */
+        SELECTOR(2);
+
+        public int id;
+
+        ReceiveMode(int id) {
+            this.id = id;
+        }
+
+        public static ReceiveMode byId(int id) {
+            for (ReceiveMode s : ReceiveMode.values()) if (s.id == id) return s;
+            return null;
+        }
+    }
+
+    /** Режим ожидания входящих датаграмм (применяется при запуске сервиса). */
+    private volatile ReceiveMode receiveMode;
+    /** Пауза между опросами канала в режиме POLLING (если нет пакетов). */
+    private volatile long pollingTimeout;
+    /** Селектор для ожидания датаграмм в режиме SELECTOR (существует только во время работы сервиса). */
+    private volatile Selector selector;
+    /** Хост, в потоке которого работает сервис (если null - сервис работает в собственном потоке). */
+    private volatile RCServiceHost host;
+
+    /** Файлы каналов разделяемой памяти (применяются при запуске сервиса). Изменяем только синхронизированно! */
+    private final ArrayList<File> shmFiles;
+    /** Ёмкость колец каналов разделяемой памяти. */
+    private volatile int shmCapacity;
+    /** Каналы разделяемой памяти (существуют только во время работы сервиса). */
+    private volatile ShmChannel[] shmChannels;
+    /** Кол-во уступаний процессора при ожидании сообщений каналов разделяемой памяти до перехода на паузы. */
+    private static final int SHM_IDLE_SPINS = 200;
+    /** Пауза при ожидании сообщений каналов разделяемой памяти (наносек). */
+    private static final long SHM_IDLE_PARK_NANOS = 50000;
+    /** Время простоя, после которого поток ждёт на селекторе звонка клиента (мсек, см. ShmChannel). */
+    private static final long SHM_IDLE_PARK_TIME = 100;
+    /** Наибольшее время ожидания на селекторе при простое каналов (мсек) - на случай потерянного звонка. */
+    private static final long SHM_IDLE_SELECT_TIMEOUT = 1000;
+
+    /** Файл локального сокета (null - не используется). Применяется при запуске сервиса. */
+    private volatile File unixSocketFile;
+    /** Серверный локальный сокет (существует только во время работы сервиса). */
+    private volatile ServerSocketChannel unixServer;
+    /**
+     * Соединения локального сокета. Добавляются только в потоке сервиса, удаляются (с закрытием) - в потоке сервиса и
+     * при ошибке отправки в sendMessage() из любого потока (исполнителей команд, обработчика очереди).
+     */
+    private final ConcurrentHashMap<SocketAddress, UnixSocketTransport.Connection> unixConnections;
+    /** Нумератор соединений локального сокета. */
+    private long unixConnectionID;
+    /** Максимальный размер сообщения. */
+    private final int maxMessageSize;
 
     /**
      * Конструктор.
      *
-     * @param name    Название сервиса.
-     * @param udpport Номер порта для сетевого обмена.
+     * @param name        Название сервиса.
+     * @param udpport     Номер порта для сетевого обмена.
+     * @param maxmsgsize  Максимальный размер сообщения.
+     * @param receivemode Режим ожидания входящих датаграмм.
      */
-    public NetUDPService(String name, int udpport, int maxmsgsize) {
+    public NetUDPService(String name, int udpport, int maxmsgsize, ReceiveMode receivemode) {
         super(name);
         this.logger = LoggerExt.getNewLogger("NetUDPService-" + name).enable(true).toFile();
         this.channel = null;
         this.port = udpport;
         this.ioBuffer = new DataBuffer(maxmsgsize);
+        this.msgBuffer = ioBuffer.wrap(4);
+        this.sendBuffer = new DataBuffer(maxmsgsize);
+        this.receiveMode = receivemode;
+        this.pollingTimeout = 5;
+        this.selector = null;
+        this.host = null;
+        this.shmFiles = new ArrayList<>();
+        this.shmCapacity = Math.max(65536, 4 * (maxmsgsize + 8)); // С запасом - для ответов фрагментами.
+        this.shmChannels = new ShmChannel[0];
+        this.unixSocketFile = null;
+        this.unixServer = null;
+        this.unixConnections = new ConcurrentHashMap<>();
+        this.unixConnectionID = 0;
+        this.maxMessageSize = maxmsgsize;
+    }
+
+    /**
+     * Конструктор.
+     *
+     * @param name    Название сервиса.
+     * @param udpport Номер порта для сетевого обмена.
+     */
+    public NetUDPService(String name, int udpport, int maxmsgsize) {
+        this(name, udpport, maxmsgsize, ReceiveMode.SELECTOR);
+    }
+
+    /** Получение режима ожидания входящих датаграмм. */
+    public ReceiveMode getReceiveMode() {
+        return receiveMode;
+    }
+
+    /** Установка режима ожидания входящих датаграмм. Вступает в силу при следующем запуске сервиса! */
+    public void setReceiveMode(ReceiveMode mode) {
+        this.receiveMode = mode;
+    }
+
+    /** Установка паузы между опросами канала в режиме POLLING. */
+    public void setPollingTimeout(long timeout) {
+        this.pollingTimeout = timeout;
+    }
+
+    /**
+     * Добавление канала разделяемой памяти - транспорта для клиента на этом же компьютере (в дополнение к UDP). Файл
+     * канала создаётся (перезаписывается) при запуске сервиса, клиент подключается к нему (см. RCClient). Один канал -
+     * один клиент! Вступает в силу при следующем запуске сервиса. В режиме работы на хосте не поддерживается!
+     *
+     * @param file Файл канала.
+     */
+    public void addSharedMemoryChannel(File file) {
+        synchronized (shmFiles) {
+            if (!shmFiles.contains(file)) shmFiles.add(file);
+        }
+    }
+
+    /** Установка ёмкости колец каналов разделяемой памяти (должна вмещать несколько сообщений). */
+    public void setSharedMemoryCapacity(int capacity) {
+        this.shmCapacity = capacity;
+    }
+
+    /**
+     * Установка локального сокета (AF_UNIX, Java 16+) - транспорта для клиентов на этом же компьютере (в дополнение
+     * к UDP). Доступ к сервису через сокет ограничивается правами на файл сокета. Вступает в силу при следующем
+     * запуске сервиса.
+     * <p>
+     * Доставка надёжна, пока клиент читает ответы: если буфер сокета заполнен (клиент не читает), сервис не ждёт -
+     * соединение закрывается, а ответ теряется (клиент получает ошибку приёма и при следующем запросе соединяется
+     * заново; результат команды можно запросить повторно).
+     *
+     * @param file Файл сокета (null - не использовать).
+     */
+    public void setUnixSocket(File file) {
+        this.unixSocketFile = file;
+    }
+
+    /** Получение хоста сервиса (если null - сервис работает в собственном потоке). */
+    public RCServiceHost getHost() {
+        return host;
+    }
+
+    /** Привязка сервиса к хосту (только для хоста!). */
+    void setHost(RCServiceHost host) {
+        this.host = host;
+    }
+
+    @Override
+    public synchronized void start(long timeout) throws ExWrongState, ExThread, ExTimeout {
+        if (host != null) {
+            throw new ExWrongState("Сервис запускается хостом! {host=%s}", host.getName());
+        }
+        super.start(timeout);
+    }
+
+    @Override
+    public synchronized void stop(long timeout) throws ExThread, ExTimeout {
+        if (host != null) {
+            throw new ExThread("Сервис останавливается хостом! {host=%s}", host.getName());
+        }
+        super.stop(timeout);
     }
 
     /** Объект для генерации CRC16 для сообщений и их проверки (один объект - для оптимизации выделения памяти). */
@@ -87,15 +256,66 @@ public abstract class NetUDPService extends Service {
                 channel = DatagramChannel.open();
                 channel.configureBlocking(false);
                 channel.bind(new InetSocketAddress(port));
+                if (host != null) {
+                    // Ожиданием датаграмм занимается хост - регистрируем канал в его селекторе.
+                    selector = host.getSelector();
+                    channel.register(selector, SelectionKey.OP_READ, this);
+                } else if (receiveMode == ReceiveMode.SELECTOR) {
+                    selector = Selector.open();
+                    channel.register(selector, SelectionKey.OP_READ, this);
+                }
             } catch (Exception ex) {
                 logger.errorf("Ошибка создания UDP канала - %s!", ExError.exMsg(ex));
                 terminate();
             }
         }
+        if (!isTerminating()) {
+            ArrayList<File> files;
+            synchronized (shmFiles) {
+                files = new ArrayList<>(shmFiles);
+            }
+            if (host != null && !files.isEmpty()) {
+                logger.errorf("Каналы разделяемой памяти при работе на хосте не поддерживаются!");
+            } else {
+                ArrayList<ShmChannel> list = new ArrayList<>();
+                int doorbellport = 0; // Звонок клиента - только при ожидании на селекторе.
+                try {
+                    if (selector != null) doorbellport = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+                } catch (Exception ex) {
+                    logger.errorf("Ошибка получения порта UDP канала - %s!", ExError.exMsg(ex));
+                }
+                for (File f : files) {
+                    try {
+                        list.add(ShmChannel.create(f, shmCapacity, doorbellport));
+                        logger.infof("Создан канал разделяемой памяти (%s)!", f);
+                    } catch (Exception ex) {
+                        logger.errorf("Ошибка создания канала разделяемой памяти (%s) - %s!", f, ExError.exMsg(ex));
+                    }
+                }
+                shmChannels = list.toArray(new ShmChannel[list.size()]);
+            }
+            File f = unixSocketFile;
+            if (f != null) {
+                try {
+                    unixServer = UnixSocketTransport.openServer(f);
+                    if (selector != null) unixServer.register(selector, SelectionKey.OP_ACCEPT, this);
+                    logger.infof("Открыт локальный сокет (%s)!", f);
+                } catch (Exception ex) {
+                    logger.errorf("Ошибка открытия локального сокета (%s) - %s!", f, ExError.exMsg(ex));
+                }
+            }
+        }
     }
 
     @Override
     protected void fireOnStop() {
+        try {
+            if (selector != null) {
+                if (host == null) selector.close(); // Селектор хоста не закрываем (ключ снимется с закрытием канала).
+                selector = null;
+            }
+        } catch (Exception ignore) {
+        }
         try {
             if (channel != null) {
                 channel.close();
@@ -103,81 +323,83 @@ public abstract class NetUDPService extends Service {
             }
         } catch (Exception ignore) {
         }
+        ShmChannel[] shm = shmChannels;
+        shmChannels = new ShmChannel[0];
+        for (ShmChannel ch : shm) ch.close();
+        for (UnixSocketTransport.Connection c : unixConnections.values()) c.close();
+        unixConnections.clear();
+        if (unixServer != null) {
+            try {
+                unixServer.close();
+            } catch (Exception ignore) {
+            }
+            unixServer = null;
+            File f = unixSocketFile;
+            if (f != null && !f.delete()) logger.errorf("Не удалось удалить файл сокета (%s)!", f);
+        }
         logger.infof("Остановка сетевого UDP сервиса (port=%d)!", port);
         FireCallback.safe(super::fireOnStop);
     }
 
+    @Override
+    protected void terminate() {
+        super.terminate();
+        wakeupSelector(); // Для досрочного выхода из ожидания датаграмм.
+    }
+
+    @Override
+    protected void halt() {
+        super.halt();
+        wakeupSelector(); // Для досрочного выхода из ожидания датаграмм.
+    }
+
+    /** Пробуждение потока сервиса, ожидающего датаграммы на селекторе (если он есть). */
+    private void wakeupSelector() {
+        Selector sel = selector;
+        if (sel != null) sel.wakeup();
+    }
+
     /**
-     * Тело обработчика сервиса. Запускает отдельный процесс - обработчик команд. Реализует непрерывный цикл приёма
-     * входящих датаграмм-сообщений. По получении сообщения, оно парсится и преобразуется в команду. В зависимости от
-     * режима выполнения команды она или выполняется сразу в потоке приёма или ставится в очередь на исполнение
-     * процессором (при наличии свободных слотов). После этого отправителю отсылается подтверждение получения (для
-     * немедленного исполнения - может содержать и результат исполнения). Результат исполнения команды в процессоре
-     * отправитель получает путём отправки запроса результата. После чего освобождает слот.
+     * Тело обработчика сервиса. Реализует непрерывный цикл приёма входящих датаграмм-сообщений. Ожидание датаграмм
+     * производится в соответствии с режимом: POLLING - опрос канала с паузой, SELECTOR - ожидание на селекторе
+     * (пробуждается при поступлении датаграмм или при прерывании сервиса). По получении сообщения, оно парсится и
+     * передаётся обработчику processMessage(), после чего отправителю отсылается подготовленный обработчиком ответ.
+     * <p>
+     * Если есть каналы разделяемой памяти - они опрашиваются вместе с UDP каналом: при отсутствии сообщений поток
+     * сначала уступает процессор, затем засыпает на короткие паузы, а после долгого простоя - ждёт на селекторе
+     * датаграммы или звонка клиента, записавшего запрос в канал (в режиме POLLING - паузами по 1 мсек).
      *
      * @throws ExError
      */
     @Override
     protected void serviceBody() throws ExError {
         try {
-            // Буфер для сообщений (чтобы нельзя было перезаписать начальные 4 байта).
-            final DataBuffer msgbuffer = ioBuffer.wrap(4);
-
+            long idletime = 0;
+            int idlespins = 0;
             // До момента разрыва - крутим цикл приёма сообщений.
             while (!isTerminating()) {
-                // Попытка получения сообщения.
-                SocketAddress client = channel.receive(ioBuffer.reset().getBB());
-                // Если сообщение получено - обрабатываем.
-                if (client != null) {
-                    ioBuffer.flip(); // После этого окно равно полученному пакету.
-                    int len = ioBuffer.length();
-                    logger.infof("Получено сообщение от %s {size=%d hex=%s}", client.toString(), len, ioBuffer.getHexAt(0, len));
-                    try {
-                        if (len < 4) {
-                            throw new ExWrongMessage("Длина датаграммы меньше 4 байт! {len=%d}", len);
-                        }
-                        int msglen = ioBuffer.getInt2();
-                        int msgcrc = ioBuffer.getInt2();
-
-                        // Проверяем длину сообщения.
-                        if (msglen != len - 4) {
-                            throw new ExWrongMessage("Длина сообщения не совпадает с длиной в сообщении! {len=%d-4 msglen=%d}", len, msglen);
-                        }
-                        // Проверяем контрольную сумму.
-                        int crc = crc16.calculate(ioBuffer, 4, len - 4);
-                        if (msgcrc != crc) {
-                            throw new ExWrongMessage("Не совпадает контрольная сумма! {crc=0x%04X msgcrc=0x%04X}", crc, msgcrc);
-                        }
-
-                        // Если сообщение не битое - обрабатываем!
-                        msgbuffer.area(0, len - 4); // Общий байт-массив с ioBuffer (!) со сдвигом.
-                        processMessage(client, System.currentTimeMillis(), msgbuffer);
-
-                        // Если нет ошибок - отсылаем подготовленный обработчиком ответ клиенту.
-                        msgbuffer.offset(0); // Устанавливаем начало окна (конец не изменяется!).
-                        len = msgbuffer.length(); // Считаем данными к отправке - всё до конца окна.
-                        // Если есть данные (кроме первых 4 байт) - отправляем.
-                        if (len > 0) {
-                            crc = crc16.calculate(msgbuffer, 0, len);
-                            // Записываем первые 4 байта - дескриптор.
-                            ioBuffer.area(0, len + 4).putInt2(len).putInt2(crc).rewind();
-                            // Отправляем.
-                            int sendsize = channel.send(ioBuffer.getBB(), client);
-                            // Если не всё отправили - ошибка!
-                            if (sendsize == ioBuffer.length()) {
-                                logger.infof("Отправлено сообщение для %s {size=%d hex=%s}", client.toString(), sendsize, ioBuffer.getHexAt(0, sendsize));
-                            } else {
-                                logger.errorf("Ошибка отправки сообщения для %s! {отправлено %d из %d}", client.toString(), sendsize, ioBuffer.length());
-                            }
-                        }
-
-                    } catch (ExWrongMessage ex) {
-                        logger.errorf("Неверный формат сообщения - %s!", ExError.exMsg(ex));
-                    } catch (Exception ex) {
-                        logger.errorf("Ошибка при разборе сообщения - %s!", ExError.exMsg(ex));
+                if (shmChannels.length > 0) {
+                    if (receiveMessages() + receiveShmMessages() > 0) {
+                        idlespins = 0;
+                    } else if (idlespins < SHM_IDLE_SPINS) {
+                        if (idlespins++ == 0) idletime = System.currentTimeMillis();
+                        Thread.yield();
+                    } else if (System.currentTimeMillis() - idletime < SHM_IDLE_PARK_TIME) {
+                        LockSupport.parkNanos(SHM_IDLE_PARK_NANOS);
+                    } else if (selector != null) {
+                        awaitShmDoorbell();
+                    } else {
+                        CommonTools.safeInterruptedSleep(1);
                     }
+                } else if (selector != null) {
+                    selector.select(); // Ожидаем поступления датаграмм или пробуждения при прерывании.
+                    selector.selectedKeys().clear();
+                    Thread.interrupted(); // Прерывание потока только будит селектор (аналогично паузе в POLLING).
+                    receiveMessages();
                 } else {
-                    CommonTools.safeInterruptedSleep(5); // Если нет пакетов - ожидаем.
+                    if (receiveMessages() == 0) {
+                        CommonTools.safeInterruptedSleep(pollingTimeout); // Если нет пакетов - ожидаем.
+                    }
                 }
             }
 
@@ -188,6 +410,245 @@ public abstract class NetUDPService extends Service {
         }
     }
 
+    /**
+     * Ожидание на селекторе при простое каналов разделяемой памяти. В каждом канале отмечается ожидание звонка, и
+     * если каналы всё ещё пусты - поток ждёт датаграммы (в т.ч. звонка клиента) или пробуждения при прерывании.
+     */
+    private void awaitShmDoorbell() throws IOException {
+        ShmChannel[] shm = shmChannels;
+        boolean empty = true;
+        for (ShmChannel ch : shm) empty &= ch.requests.armWakeup();
+        if (empty) {
+            selector.select(SHM_IDLE_SELECT_TIMEOUT);
+            selector.selectedKeys().clear();
+            Thread.interrupted(); // Прерывание потока только будит селектор.
+        }
+        for (ShmChannel ch : shm) ch.requests.disarmWakeup();
+    }
+
+    /**
+     * Приём и обработка всех имеющихся в канале датаграмм (без ожидания). Вызывается потоком сервиса или хостом.
+     *
+     * @return Кол-во полученных датаграмм.
+     * @throws IOException
+     */
+    protected int receiveMessages() throws IOException {
+        int n = 0;
+        while (!isTerminating()) {
+            // Попытка получения сообщения.
+            SocketAddress client = channel.receive(ioBuffer.reset().getBB());
+            if (client == null) break;
+            n++;
+            processDatagram(client);
+        }
+        if (unixServer != null) n += receiveUnixMessages();
+        return n;
+    }
+
+    /**
+     * Приём новых соединений локального сокета и обработка всех полученных по соединениям сообщений (без ожидания).
+     * Ответы отсылаются в то же соединение.
+     *
+     * @return Кол-во полученных сообщений.
+     */
+    private int receiveUnixMessages() {
+        SocketChannel sc;
+        try {
+            while ((sc = unixServer.accept()) != null) {
+                UnixSocketTransport.Address addr = new UnixSocketTransport.Address(unixSocketFile, ++unixConnectionID);
+                try {
+                    sc.configureBlocking(false);
+                    if (selector != null) sc.register(selector, SelectionKey.OP_READ, this);
+                    unixConnections.put(addr, new UnixSocketTransport.Connection(sc, addr, maxMessageSize));
+                    logger.infof("Новое соединение локального сокета (%s)!", addr);
+                } catch (Exception ex) {
+                    logger.errorf("Ошибка соединения локального сокета (%s) - %s!", addr, ExError.exMsg(ex));
+                    sc.close();
+                }
+            }
+        } catch (Exception ex) {
+            logger.errorf("Ошибка приёма соединения локального сокета - %s!", ExError.exMsg(ex));
+        }
+        int n = 0;
+        for (UnixSocketTransport.Connection c : unixConnections.values()) {
+            try {
+                if (c.fill() < 0) {
+                    throw new IOException("Соединение закрыто клиентом!");
+                }
+                int len;
+                while (!isTerminating() && (len = c.next(ioBuffer.reset(), 4)) >= 0) { // Сообщение - в msgBuffer.
+                    n++;
+                    len = processLocalMessage(c.address, len);
+                    if (len > 0 && !c.write(msgBuffer, 0, len)) {
+                        throw new IOException("Буфер сокета заполнен - ответ не отправлен!");
+                    }
+                }
+            } catch (Exception ex) {
+                logger.infof("Соединение локального сокета (%s) закрыто - %s", c.address, ExError.exMsg(ex));
+                unixConnections.remove(c.address);
+                c.close();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Обработка сообщения, полученного по локальному транспорту (разделяемая память, локальный сокет) - сообщение
+     * находится в msgBuffer. Ответ подготавливается обработчиком в msgBuffer.
+     *
+     * @param address Адрес отправителя.
+     * @param len     Длина сообщения.
+     * @return Длина ответа (0 - ответа нет).
+     */
+    private int processLocalMessage(SocketAddress address, int len) {
+        try {
+            msgBuffer.area(0, len);
+            processMessage(address, System.currentTimeMillis(), msgBuffer);
+            msgBuffer.offset(0); // Устанавливаем начало окна (конец не изменяется!).
+            return msgBuffer.length();
+        } catch (Exception ex) {
+            logger.errorf("Ошибка при разборе сообщения - %s!", ExError.exMsg(ex));
+            return 0;
+        }
+    }
+
+    /**
+     * Приём и обработка всех имеющихся в каналах разделяемой памяти сообщений (без ожидания). Ответы записываются в
+     * тот же канал.
+     *
+     * @return Кол-во полученных сообщений.
+     */
+    protected int receiveShmMessages() {
+        int n = 0;
+        for (ShmChannel ch : shmChannels) {
+            while (!isTerminating()) {
+                int len;
+                try {
+                    len = ch.requests.poll(ioBuffer.reset(), 4); // Сообщение - в msgBuffer (после 4 байт).
+                } catch (Exception ex) {
+                    logger.errorf("Ошибка чтения канала разделяемой памяти (%s) - %s!", ch.getFile(), ExError.exMsg(ex));
+                    continue;
+                }
+                if (len < 0) break;
+                n++;
+                len = processLocalMessage(ch.getAddress(), len);
+                if (len > 0 && !ch.answers.offer(msgBuffer, 0, len)) {
+                    logger.errorf("Нет места для ответа в канале разделяемой памяти (%s)! {size=%d}", ch.getFile(), len);
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Разбор полученной датаграммы (находится в ioBuffer), вызов обработчика сообщения и отправка ответа.
+     *
+     * @param client Адрес отправителя.
+     */
+    private void processDatagram(SocketAddress client) {
+        ioBuffer.flip(); // После этого окно равно полученному пакету.
+        int len = ioBuffer.length();
+        if (len == ShmChannel.DOORBELL_SIZE) return; // Звонок клиента канала разделяемой памяти - только пробуждение.
+        logger.infof("Получено сообщение от %s {size=%d hex=%s}", client.toString(), len, ioBuffer.getHexAt(0, len));
+        try {
+            if (len < 4) {
+                throw new ExWrongMessage("Длина датаграммы меньше 4 байт! {len=%d}", len);
+            }
+            int msglen = ioBuffer.getInt2();
+            int msgcrc = ioBuffer.getInt2();
+
+            // Проверяем длину сообщения.
+            if (msglen != len - 4) {
+                throw new ExWrongMessage("Длина сообщения не совпадает с длиной в сообщении! {len=%d-4 msglen=%d}", len, msglen);
+            }
+            // Проверяем контрольную сумму.
+            int crc = crc16.calculate(ioBuffer, 4, len - 4);
+            if (msgcrc != crc) {
+                throw new ExWrongMessage("Не совпадает контрольная сумма! {crc=0x%04X msgcrc=0x%04X}", crc, msgcrc);
+            }
+
+            // Если сообщение не битое - обрабатываем!
+            msgBuffer.area(0, len - 4); // Общий байт-массив с ioBuffer (!) со сдвигом.
+            processMessage(client, System.currentTimeMillis(), msgBuffer);
+
+            // Если нет ошибок - отсылаем подготовленный обработчиком ответ клиенту.
+            msgBuffer.offset(0); // Устанавливаем начало окна (конец не изменяется!).
+            len = msgBuffer.length(); // Считаем данными к отправке - всё до конца окна.
+            // Если есть данные (кроме первых 4 байт) - отправляем.
+            if (len > 0) {
+                crc = crc16.calculate(msgBuffer, 0, len);
+                // Записываем первые 4 байта - дескриптор.
+                ioBuffer.area(0, len + 4).putInt2(len).putInt2(crc).rewind();
+                // Отправляем.
+                int sendsize = channel.send(ioBuffer.getBB(), client);
+                // Если не всё отправили - ошибка!
+                if (sendsize == ioBuffer.length()) {
+                    logger.infof("Отправлено сообщение для %s {size=%d hex=%s}", client.toString(), sendsize, ioBuffer.getHexAt(0, sendsize));
+                } else {
+                    logger.errorf("Ошибка отправки сообщения для %s! {отправлено %d из %d}", client.toString(), sendsize, ioBuffer.length());
+                }
+            }
+
+        } catch (ExWrongMessage ex) {
+            logger.errorf("Неверный формат сообщения - %s!", ExError.exMsg(ex));
+        } catch (Exception ex) {
+            logger.errorf("Ошибка при разборе сообщения - %s!", ExError.exMsg(ex));
+        }
+    }
+
+    /**
+     * Отправка сообщения по инициативе сервиса (не в ответ на только что полученное сообщение). Может вызываться из
+     * любого потока.
+     *
+     * @param address Адрес получателя.
+     * @param msg     Буфер с "телом" сообщения (рабочее окно).
+     * @return Результат: true - сообщение отправлено, false - ошибка отправки (или сервис не работает).
+     */
+    protected boolean sendMessage(SocketAddress address, DataBuffer msg) {
+        if (address instanceof ShmChannel.Address) {
+            for (ShmChannel sc : shmChannels) {
+                if (sc.getAddress().equals(address)) {
+                    if (sc.answers.offer(msg, 0, msg.length())) return true;
+                    logger.errorf("Нет места для сообщения в канале разделяемой памяти (%s)!", sc.getFile());
+                    return false;
+                }
+            }
+            return false;
+        }
+        if (address instanceof UnixSocketTransport.Address) {
+            UnixSocketTransport.Connection c = unixConnections.get(address);
+            if (c == null) return false;
+            try {
+                if (c.write(msg, 0, msg.length())) return true;
+                logger.errorf("Буфер сокета заполнен - сообщение для %s не отправлено, соединение закрыто!", address);
+            } catch (Exception ex) {
+                logger.errorf("Ошибка отправки сообщения для %s - %s!", address.toString(), ExError.exMsg(ex));
+            }
+            // Кадр мог уйти частично - дальнейший обмен по соединению невозможен.
+            unixConnections.remove(address);
+            c.close();
+            return false;
+        }
+        DatagramChannel ch = channel;
+        if (ch == null || address == null) return false;
+        synchronized (sendBuffer) {
+            try {
+                int len = msg.length();
+                int crc = crc16.calculate(msg, 0, len);
+                sendBuffer.reset().putInt2(len).putInt2(crc).putArea(msg).flip();
+                int sendsize = ch.send(sendBuffer.getBB(), address);
+                if (sendsize == sendBuffer.length()) {
+                    logger.infof("Отправлено сообщение для %s {size=%d hex=%s}", address.toString(), sendsize, sendBuffer.getHexAt(0, sendsize));
+                    return true;
+                }
+                logger.errorf("Ошибка отправки сообщения для %s! {отправлено %d из %d}", address.toString(), sendsize, sendBuffer.length());
+            } catch (Exception ex) {
+                logger.errorf("Ошибка отправки сообщения для %s - %s!", address.toString(), ExError.exMsg(ex));
+            }
+            return false;
+        }
+    }
+
     /**
      * Обработчик поступившего сообщения. Ответ возвращается в том же буфере.
      *
@@ -9,10 +9,26 @@ import app.DataBuffer;
 import app.ExError;
 import app.FireCallback;
 import app.LoggerExt;
+import util.LatencyHistogram;
+import util.MemoryFences;
+import util.RttEstimator;
+import util.TimingWheel;
 
-import java.net.InetSocketAddress;
+import java.io.File;
 import java.net.SocketAddress;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -28,20 +44,43 @@ public abstract class QueuedRCService extends RCService {
     private final LoggerExt logger;
 
     /**
-     * Массив слотов для команд (используется в качестве пула). Информацию в слотах проверяем и изменяем только
-     * синхронизированно на cmdSlots! Слот занимется при постановке задачи в очередь и освобождается при финализации
-     * команды или при истечении таймаута (при выделении слота для новой команды). В режиме SERIAL+SINGLE при
-     * поступлении SERIAL команды может досрочно освобождаться (только в состоянии RESULT). Не подлежит любому
-     * освобождению в состоянии EXECUTE.
+     * Массив слотов для команд (используется в качестве пула и объекта синхронизации). Информацию в слотах изменяем
+     * только синхронизированно на cmdSlots! Состояние слота меняется атомарно (CAS), поэтому чтение состояния и
+     * результата (GETRESULT, GETSTATE) - без блокировки. Слот занимется при постановке задачи в очередь и освобождается при
+     * финализации команды или при истечении таймаута (по таймеру колеса expiryWheel). В режиме SERIAL+SINGLE
+     * при поступлении SERIAL команды может досрочно освобождаться (только в состоянии RESULT). Не подлежит любому
+     * освобождению в состоянии EXECUTE. Слоты создаются по мере необходимости (заполняется с начала).
      */
     private final Slot[] cmdSlots;
+    /** Кол-во созданных слотов (в начале массива cmdSlots). */
+    private int slotsCreated;
+    /** Стек свободных (ранее созданных) слотов. Проверяем и изменяем только синхронизированно на cmdSlots! */
+    private final ArrayDeque<Slot> freeSlots;
     /**
-     * Общая сквозная очередь слотов, содержащих команды для выполнения. Информацию в очереди проверяем и изменяем
-     * только синхронизированно на cmdSlots! В очереди находятся только команды ожидающие обработки. Команды, запущенные
-     * на исполнение удаляются из списка! Таким образом в очереди не может быть больше элементов, чем общее количество
-     * слотов.
+     * Индекс занятых слотов, ключ - отправитель + ID команды. Изменяем только синхронизированно на cmdSlots, читаем -
+     * без блокировки.
      */
-    private final LinkedBlockingQueue<Slot> cmdQueue;
+    private final ConcurrentHashMap<IDKey, Slot> slotIndex;
+    /**
+     * Группы последовательного исполнения (ключ - ID отправителя в режиме SERIAL_FOR_CLIENT, иначе - одна общая группа
+     * с ключом 0). Группа существует, пока в ней есть занятые слоты. Проверяем и изменяем только синхронизированно на
+     * cmdSlots!
+     */
+    private final HashMap<Integer, SlotGroup> slotGroups;
+    /**
+     * Очередь команд, готовых к исполнению: первые в очереди команды групп, которые могут быть запущены на исполнение,
+     * упорядочены по времени постановки в очередь. Изменяем только синхронизированно на cmdSlots, проверяем - без
+     * блокировки.
+     */
+    private final ConcurrentSkipListSet<Slot> readyQueue;
+    /** Сквозной счётчик постановки слотов в очередь (для упорядочивания readyQueue). */
+    private long slotSeq;
+    /** Кол-во слотов в очереди (QUEUE). */
+    private final AtomicInteger queueCount;
+    /** Кол-во исполняемых слотов (EXECUTE). */
+    private final AtomicInteger executeCount;
+    /** Кол-во слотов, хранящих результат (RESULT). */
+    private final AtomicInteger resultCount;
     /**
      * Режим обработки команд очереди.
      */
@@ -54,7 +93,130 @@ public abstract class QueuedRCService extends RCService {
     private boolean isSingleSerialMode = false;
 
     /** Поток процессора команд. Занимается обслуживаением очереди и запуском команд на исполнение. */
-    private Thread prcThread;
+    private volatile Thread prcThread;
+
+    /** Режим исполнения команд (применяется при запуске сервиса). */
+    private volatile CommandExecutor.Mode executorMode = CommandExecutor.Mode.THREAD_PER_COMMAND;
+    /** Размер пула потоков исполнения команд (для режимов с пулом). */
+    private volatile int executorPoolSize = 4;
+    /** Исполнитель команд (существует только во время работы сервиса). */
+    private volatile CommandExecutor executor;
+
+    /**
+     * Буфер для формирования ответов, отсылаемых вне цикла приёма: уведомлений о результате (для EXECUTE_NOTIFY) и
+     * ответов на отложенные запросы GETRESULT. Размер - максимальный размер ответа (при изменении пересоздаётся при
+     * запуске). Используем только синхронизированно на cmdSlots!
+     */
+    private DataBuffer answerBuffer;
+
+    /**
+     * Таблица отложенных запросов GETRESULT (ожидающих готовности результата), ключ - отправитель + ID команды. На
+     * одну команду - не более одного запроса (повторный заменяет предыдущий), поэтому размер таблицы не превышает
+     * кол-ва слотов. Проверяем и изменяем только синхронизированно на cmdSlots!
+     */
+    private final HashMap<IDKey, ResultWaiter> resultWaiters;
+
+    /** Отложенный запрос GETRESULT. */
+    private static class ResultWaiter {
+        /** Ключ команды. */
+        final IDKey key;
+        /** Адрес отправителя запроса. */
+        final SocketAddress address;
+        /** Метаданные запроса. */
+        final Meta meta;
+        /** Кол-во команд (для пакета - больше 1, ключ - по первой команде). */
+        final int count;
+        /** Таймер истечения ожидания. */
+        TimingWheel.Timer expiryTimer;
+
+        ResultWaiter(IDKey key, SocketAddress address, Meta meta, int count) {
+            this.key = key;
+            this.address = address;
+            this.meta = meta;
+            this.count = count;
+            this.expiryTimer = null;
+        }
+    }
+
+    /** Длительность тика колеса таймеров истечения (мсек). */
+    private static final long EXPIRY_TICK_TIME = 10;
+    /** Кол-во ячеек колеса таймеров истечения (оборот колеса ~5 сек). */
+    private static final int EXPIRY_WHEEL_SIZE = 512;
+    /**
+     * Колесо таймеров истечения: таймауты слотов (QUEUE и RESULT) и времени ожидания отложенных запросов GETRESULT.
+     * Продвигается процессором команд (по тикам) и при поступлении EXECUTE. Проверяем и изменяем только
+     * синхронизированно на cmdSlots!
+     */
+    private final TimingWheel expiryWheel;
+
+    /**
+     * Исполняемые слоты с объединяемыми командами (см. isCoalescable()) - к ним присоединяются поступающие идентичные
+     * команды. Проверяем и изменяем только синхронизированно на cmdSlots!
+     */
+    private final ArrayList<Slot> coalesceLeaders;
+    /** Кол-во команд, присоединённых к исполняемым (не исполнявшихся отдельно). */
+    private final AtomicLong coalescedCount;
+
+    /** Стоимость исполнения команды в единицах виртуального времени при весе 1 (делится на вес класса). */
+    private static final long WFQ_COST = 840;
+    /**
+     * Виртуальное время планировщика: метка последней запущенной команды (взвешенная справедливая очередь с
+     * самосинхронизацией). Изменяем только синхронизированно на cmdSlots!
+     */
+    private long virtualTime;
+    /** Метки последних поставленных в очередь команд по классам приоритета. Только синхронизированно на cmdSlots! */
+    private final long[] classFinishTime;
+    /**
+     * Время ожидания в очереди (мсек), уменьшающее метку команды на стоимость команды веса 1 (старение - чтобы команды
+     * низкого приоритета не ожидали неограниченно долго). Если = 0 - старения нет.
+     */
+    private volatile int agingTime = 1000;
+
+    /**
+     * Режим контроля допуска команд: команда, которая по оценке не будет исполнена до истечения её таймаута (с учётом
+     * очереди), отклоняется с результатом RESULT_BUSY и рекомендуемой паузой перед повтором. По умолчанию включён
+     * (см. setAdmissionControl()).
+     */
+    private volatile boolean isAdmissionControl = true;
+    /** Минимальное кол-во замеров времени исполнения типа команды, после которого оценка используется для допуска. */
+    private static final int ADMISSION_MIN_SAMPLES = 3;
+    /**
+     * Доля таймаута исполнения (%), которую может занять оценка времени завершения команды. Остаток - запас на
+     * доставку запросов результата и погрешность оценки: без него команды принимаются "впритык" и результат чаще всего
+     * готов уже после истечения таймаута.
+     */
+    private static final int ADMISSION_TARGET_PERCENT = 80;
+    /** Тип присоединённой команды (см. attachSlot()) - без оценки времени исполнения. */
+    private static final int TYPE_ATTACHED = Integer.MIN_VALUE;
+    /**
+     * Оценки времени исполнения команд по типам (см. commandType()) - сглаженное среднее и отклонение, как для RTT.
+     * Проверяем и изменяем только синхронизированно на cmdSlots!
+     */
+    private final HashMap<Integer, RttEstimator> serviceTimes;
+    /** Кол-во команд, отклонённых контролем допуска. */
+    private final AtomicLong rejectedCount;
+
+    /**
+     * Наибольшее кол-во серий гистограмм задержек (сочетаний типа запроса и типа команды) - память метрик
+     * фиксирована. Команды сверх лимита учитываются в сериях с типом TYPE_OTHER (по одной на тип запроса).
+     */
+    private static final int METRICS_MAX_SERIES = 64;
+    /** Тип команды для серии гистограмм задержек, не поместившихся в лимит серий. */
+    public static final int TYPE_OTHER = Integer.MAX_VALUE;
+    /**
+     * Гистограммы задержек по этапам обработки команд, ключ - тип запроса + тип команды (см. latencySeries()).
+     * Добавляем только синхронизированно на cmdSlots, читаем и пишем в гистограммы - без блокировки.
+     */
+    private final ConcurrentHashMap<Long, LatencySeries> latencySeries;
+
+    /** Файл журнала слотов (null - без журнала, см. setJournal()). */
+    private File journalFile = null;
+    /** Размер сегмента журнала слотов. */
+    private int journalSize;
+    /** Интервал сброса журнала слотов на диск (мсек). */
+    private int journalFlushInterval;
+    /** Журнал слотов (открыт, пока сервис запущен). Изменяется и используется только синхронизированно на cmdSlots! */
+    private SlotJournal journal = null;
 
 
     /** Нумератор режима работы очереди. */
@@ -95,16 +257,168 @@ public abstract class QueuedRCService extends RCService {
         super(name, udpport, maxmsgsize);
         this.logger = LoggerExt.getNewLogger("QueuedRCService-" + name).enable(true).toFile();
         this.cmdSlots = new Slot[queuesize]; // Заполнение массива слотами происходит по мере необходимости!
-        this.cmdQueue = new LinkedBlockingQueue<>(queuesize);
+        this.slotsCreated = 0;
+        this.freeSlots = new ArrayDeque<>(queuesize);
+        this.slotIndex = new ConcurrentHashMap<>();
+        this.slotGroups = new HashMap<>();
+        this.readyQueue = new ConcurrentSkipListSet<>(SEQ_ORDER);
+        this.slotSeq = 0;
+        this.queueCount = new AtomicInteger(0);
+        this.executeCount = new AtomicInteger(0);
+        this.resultCount = new AtomicInteger(0);
         this.prcMode = processingmode;
         this.isSingleSerialMode = issingleserialmode;
+        this.answerBuffer = new DataBuffer(getMaxAnswerSize());
+        this.resultWaiters = new HashMap<>();
+        this.expiryWheel = new TimingWheel(EXPIRY_WHEEL_SIZE, EXPIRY_TICK_TIME, System.currentTimeMillis());
+        this.coalesceLeaders = new ArrayList<>();
+        this.coalescedCount = new AtomicLong(0);
+        this.virtualTime = 0;
+        this.classFinishTime = new long[Priority.values().length];
+        this.serviceTimes = new HashMap<>();
+        this.rejectedCount = new AtomicLong(0);
+        this.latencySeries = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Установка режима исполнения команд. Применяется при (следующем) запуске сервиса.
+     *
+     * @param mode     Режим исполнения.
+     * @param poolsize Размер пула потоков (для режимов BOUNDED_POOL и PER_SENDER_SERIAL).
+     */
+    public void setExecutorMode(CommandExecutor.Mode mode, int poolsize) {
+        this.executorMode = mode;
+        this.executorPoolSize = poolsize;
+    }
+
+    /** Режим исполнения команд (заданный). */
+    public CommandExecutor.Mode getExecutorMode() {
+        return executorMode;
+    }
+
+    /**
+     * Установка времени старения команд в очереди: за это время ожидания метка планирования команды уменьшается на
+     * стоимость команды класса BATCH.
+     *
+     * @param agingtime Время старения (мсек), если = 0 - старения нет (только веса классов).
+     */
+    public void setAgingTime(int agingtime) {
+        this.agingTime = Math.max(0, agingtime);
+    }
+
+    /** Время старения команд в очереди (мсек). */
+    public int getAgingTime() {
+        return agingTime;
+    }
+
+    /**
+     * Установка режима контроля допуска команд (по оценкам времени исполнения и таймаутам команд). По умолчанию
+     * включён. Клиенты прежних версий получают RESULT_BUSY как ошибку исполнения запроса с сообщением (пауза перед
+     * повтором - в конце ответа, после строки сообщения).
+     *
+     * @param isadmissioncontrol Режим: true - команды, которые не успеют исполниться, отклоняются (RESULT_BUSY),
+     *                           false - принимаются все (пока есть свободные слоты).
+     */
+    public void setAdmissionControl(boolean isadmissioncontrol) {
+        this.isAdmissionControl = isadmissioncontrol;
+    }
+
+    /**
+     * Установка журнала слотов (до запуска сервиса): постановка команд, результаты и освобождение слотов записываются
+     * в журнал, при запуске сервиса журнал воспроизводится - результаты, не полученные клиентами до перезапуска,
+     * снова доступны по GETRESULT. Команды, не исполненные до перезапуска, не исполняются повторно - их результат
+     * ошибка RESULT_ERROR (исход неизвестен, например, у оплаты на пинпаде). Повтор такой команды с прежним ID
+     * отклоняется как дубликат.
+     *
+     * @param file          Базовый файл журнала (null - без журнала).
+     * @param size          Размер сегмента журнала (байт, должен вмещать результаты всех слотов).
+     * @param flushinterval Интервал сброса журнала на диск (мсек) - записи за этот интервал могут быть потеряны при
+     *                      сбое ОС (при падении процесса - нет, запись идёт в отображение файла).
+     */
+    public void setJournal(File file, int size, int flushinterval) {
+        this.journalFile = file;
+        this.journalSize = size;
+        this.journalFlushInterval = flushinterval;
+    }
+
+    /** Режим контроля допуска команд. */
+    public boolean isAdmissionControl() {
+        return isAdmissionControl;
+    }
+
+    /** Кол-во команд, отклонённых контролем допуска. */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Оценка времени исполнения команды заданного типа.
+     *
+     * @param type Тип команды (см. commandType()).
+     * @return Сглаженное время исполнения (мсек), если < 0 - замеров ещё не было.
+     */
+    public double getServiceTimeEstimate(int type) {
+        synchronized (cmdSlots) {
+            RttEstimator e = serviceTimes.get(type);
+            return e != null ? e.getSrtt() : -1;
+        }
+    }
+
+    /**
+     * Тип команды для оценки времени исполнения (команды одного типа должны исполняться примерно одинаковое время).
+     * По умолчанию все команды - одного типа.
+     *
+     * @param command Данные команды (рабочее окно, изменять нельзя!).
+     * @return Тип команды.
+     */
+    protected int commandType(DataBuffer command) {
+        return 0;
+    }
+
+    /** Кол-во команд, присоединённых к исполняемым идентичным командам (не исполнявшихся отдельно). */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Проверка возможности объединения команды с идентичной (побайтно) исполняемой командой другого отправителя: такая
+     * команда не ставится в очередь, а получает результат исполняемой. Допустимо только для команд без побочных
+     * эффектов (только чтение состояния устройства) и идемпотентных - повторное исполнение дало бы тот же результат.
+     * По умолчанию команды не объединяются.
+     *
+     * @param command Данные команды (рабочее окно, изменять нельзя!).
+     * @return Результат: true - команду можно объединять, false - нет.
+     */
+    protected boolean isCoalescable(DataBuffer command) {
+        return false;
+    }
+
+    /**
+     * Обработчик запроса на отмену исполняемой команды (см. requestCancel()). Вызывается под блокировкой слотов -
+     * должен только передать запрос (например, прервать ожидание), без обмена с устройством! Сама отмена - в
+     * commandExecutionBody(), проверкой Slot.isCancelRequested(). По умолчанию - ничего не делает.
+     *
+     * @param slot Слот исполняемой команды.
+     */
+    protected void commandCancel(Slot slot) {
     }
 
     @Override
     protected void fireOnStart() {
+        // Журнал воспроизводится до запуска приёма запросов - чтобы восстановленные результаты были доступны сразу.
+        if (journalFile != null) openJournal();
         FireCallback.safe(super::fireOnStart);
+        synchronized (cmdSlots) {
+            if (answerBuffer.capacity() != getMaxAnswerSize()) answerBuffer = new DataBuffer(getMaxAnswerSize());
+        }
         if (!isTerminating()) {
             try {
+                // Создание исполнителя команд.
+                executor = new CommandExecutor(getName() + "-cmd", executorMode, executorPoolSize);
+                if (executor.getMode() != executorMode) {
+                    logger.errorf("Режим исполнения команд %s не поддерживается - используется %s!",
+                            executorMode.name(), executor.getMode().name());
+                }
                 // Создание потока процессора команд (поток поледовательного исполнения команд).
                 prcThread = new Thread(this::commandProcessorThreadBody);
                 prcThread.start();
@@ -125,6 +439,20 @@ public abstract class QueuedRCService extends RCService {
             }
         } catch (Exception ignore) {
         }
+        // Остановка исполнителя (уже запущенные команды исполняются до завершения).
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        synchronized (cmdSlots) {
+            // Отложенные запросы остаются без ответа.
+            for (ResultWaiter w : resultWaiters.values()) expiryWheel.cancel(w.expiryTimer);
+            resultWaiters.clear();
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+        }
         FireCallback.safe(super::fireOnStop);
     }
 
@@ -137,33 +465,12 @@ public abstract class QueuedRCService extends RCService {
      */
     @Override
     protected void requestGetState(final Meta meta, DataBuffer buffer) throws ExResultError {
-        int qsize, qfree, sfree = 0, sexec = 0, sres = 0;
-
-        // Синхронизация межпотокового доступа к слотам и очереди.
-        logger.infof("Q:syncON:requestGetState(%s)", meta.toString());
-        synchronized (cmdSlots) {
-            for (Slot slot : cmdSlots) {
-                if (slot == null) {
-                    sfree++;
-                } else {
-                    switch (slot.state) {
-                        case FREE:
-                            sfree++;
-                            break;
-                        case QUEUE: // Тоже относим к исполняемым.
-                        case EXECUTE:
-                            sexec++;
-                            break;
-                        case RESULT:
-                            sres++;
-                            break;
-                    }
-                }
-            }
-            qfree = cmdQueue.remainingCapacity();
-            qsize = cmdQueue.size();
-        }
-        logger.infof("Q:syncOFF:requestGetState(%s)", meta.toString());
+        // Без блокировки - счётчики атомарные (значения могут быть согласованы между собой не строго).
+        int qsize = queueCount.get();
+        int sfree = cmdSlots.length - slotIndex.size();
+        int sexec = qsize + executeCount.get(); // Слоты в очереди тоже относим к исполняемым.
+        int sres = resultCount.get();
+        int qfree = cmdSlots.length - qsize;
 
         // Состояние сервиса.
         super.requestGetState(meta, buffer);
@@ -177,136 +484,545 @@ public abstract class QueuedRCService extends RCService {
     }
 
     /**
-     * Вспомогательная ф-ция. Проверка метаданных слота и указанных метаданных на совпадение отправителя.
+     * Выполнение запроса: "GETSTATE" - состояние исполнителя команд, после полей всех классов сервиса: [1] режим
+     * исполнителя, [2] кол-во задач в очереди исполнителя, [2] кол-во исполняемых задач.
+     *
+     * @param meta   Метаданные.
+     * @param buffer Буфер.
+     */
+    @Override
+    protected void requestGetStateTrailer(final Meta meta, final DataBuffer buffer) throws ExResultError {
+        super.requestGetStateTrailer(meta, buffer);
+        CommandExecutor ex = executor;
+        buffer.posToEnd().tailBuffer(); // Расширяем буфер.
+        buffer.put(ex != null ? ex.getMode().id : executorMode.id)
+                .putInt2(ex != null ? ex.getQueueDepth() : 0).putInt2(ex != null ? ex.getActiveCount() : 0);
+        buffer.flipBuffer();
+    }
+
+    /**
+     * Выполнение запроса: "METRICS". Снимок гистограмм задержек по этапам обработки команд (см.
+     * RCService.LatencyMetrics), без блокировки слотов.
      *
-     * @param s Слот.
-     * @param m Метаданные.
-     * @return Результат: true - отправитель совпадает, false - нет.
+     * @param meta   Метаданные.
+     * @param buffer Буфер.
+     */
+    @Override
+    protected void requestMetrics(final Meta meta, final DataBuffer buffer) throws ExResultError {
+        ArrayList<LatencyMetrics> metrics = new ArrayList<>();
+        for (LatencySeries ls : latencySeries.values()) {
+            for (LatencyStage stage : LatencyStage.values()) {
+                LatencyHistogram.Snapshot h = ls.stages[stage.ordinal()].snapshot();
+                if (h.count > 0) metrics.add(new LatencyMetrics(ls.requestType, ls.commandType, stage, h));
+            }
+        }
+        LatencyMetrics.build(meta.buildAnswer(buffer.reset()), metrics).flipBuffer();
+    }
+
+    /** Гистограммы задержек по этапам обработки команд одного типа запроса и одного типа команды. */
+    private static class LatencySeries {
+        /** Тип запроса, которым поставлена команда. */
+        final RequestType requestType;
+        /** Тип команды (см. commandType()). */
+        final int commandType;
+        /** Гистограммы по этапам (индекс - LatencyStage.ordinal()), мксек. */
+        final LatencyHistogram[] stages;
+
+        LatencySeries(RequestType requesttype, int commandtype) {
+            this.requestType = requesttype;
+            this.commandType = commandtype;
+            this.stages = new LatencyHistogram[LatencyStage.values().length];
+            for (int i = 0; i < stages.length; i++) stages[i] = new LatencyHistogram();
+        }
+
+        /** Учёт задержки этапа (без блокировки). */
+        void record(LatencyStage stage, long nanos) {
+            stages[stage.ordinal()].record(nanos / 1000);
+        }
+    }
+
+    /**
+     * Серия гистограмм задержек для типа запроса и типа команды (создаётся при первом обращении, сверх лимита серий -
+     * общая серия TYPE_OTHER). Вызывать только синхронизированно на cmdSlots!
+     */
+    private LatencySeries latencySeries(final RequestType requesttype, int commandtype) {
+        Long key = ((long) requesttype.id << 32) | (commandtype & 0xFFFFFFFFL);
+        LatencySeries ls = latencySeries.get(key);
+        if (ls != null) return ls;
+        if (commandtype != TYPE_OTHER && latencySeries.size() >= METRICS_MAX_SERIES) {
+            return latencySeries(requesttype, TYPE_OTHER);
+        }
+        latencySeries.put(key, ls = new LatencySeries(requesttype, commandtype));
+        return ls;
+    }
+
+    /**
+     * Время получения запроса в шкале System.nanoTime(): время начала обработки за вычетом задержки от получения
+     * (время получения - по системным часам, поэтому задержка учитывается с точностью до мсек).
+     */
+    private static long receiveNanos(long receivetime) {
+        return System.nanoTime() - Math.max(0, System.currentTimeMillis() - receivetime) * 1000000L;
+    }
+
+    /**
+     * Группа последовательного исполнения: слоты, команды которых исполняются строго по очереди (в режиме
+     * PARALLEL_FOR_ALL - без ограничений). Служит для выбора очередной команды и проверок режима SINGLE без перебора
+     * всех слотов.
+     */
+    private static class SlotGroup {
+        /** Ключ группы. */
+        final int key;
+        /** Занятые слоты группы. */
+        final LinkedHashSet<Slot> occupied;
+        /** Слоты группы в очереди (в порядке постановки). */
+        final LinkedHashSet<Slot> queue;
+        /** Кол-во исполняемых команд группы. */
+        int executing;
+        /** Слот группы, находящийся в readyQueue (null - нет). */
+        Slot readyHead;
+        /**
+         * Команды-кандидаты на исполнение по классам приоритета, в порядке постановки (null - группа отправителя в
+         * режиме SERIAL_FOR_CLIENT, кандидат один - первый в очереди). Метки планирования в классе растут в порядке
+         * постановки, старение уменьшает их одинаково - поэтому наименьшая метка класса всегда у первого кандидата.
+         */
+        final TreeSet<Slot>[] candidates;
+        /** Слоты в очереди по отправителям (только в режиме SERIAL_FOR_ALL - кандидат лишь первый слот отправителя). */
+        final HashMap<Integer, LinkedHashSet<Slot>> senderQueues;
+        /** Сумма оценок времени исполнения команд группы в очереди (мсек, для контроля допуска). */
+        double queuedWork;
+        /** Исполняемые команды группы (кроме присоединённых - для контроля допуска; не больше потоков исполнителя). */
+        final LinkedHashSet<Slot> running;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        SlotGroup(int key, ProcessingMode mode) {
+            this.key = key;
+            this.occupied = new LinkedHashSet<>();
+            this.queue = new LinkedHashSet<>();
+            this.executing = 0;
+            this.readyHead = null;
+            if (mode == ProcessingMode.SERIAL_FOR_CLIENT) {
+                this.candidates = null;
+            } else {
+                this.candidates = new TreeSet[Priority.values().length];
+                for (int i = 0; i < candidates.length; i++) candidates[i] = new TreeSet<>(SEQ_ORDER);
+            }
+            this.senderQueues = mode == ProcessingMode.SERIAL_FOR_ALL ? new HashMap<>() : null;
+            this.queuedWork = 0;
+            this.running = new LinkedHashSet<>();
+        }
+    }
+
+    /** Порядок слотов по постановке в очередь. */
+    private static final Comparator<Slot> SEQ_ORDER = (a, b) -> Long.compare(a.seq, b.seq);
+
+    /**
+     * Добавление слота в очередь группы (и в кандидаты на исполнение). Вызывать только синхронизированно на cmdSlots!
+     */
+    private static void queueAdd(final SlotGroup g, final Slot slot) {
+        g.queue.add(slot);
+        g.queuedWork += slot.workEstimate;
+        if (g.candidates == null) return;
+        if (g.senderQueues != null) {
+            LinkedHashSet<Slot> sq = g.senderQueues.get(slot.key.senderID);
+            if (sq == null) g.senderQueues.put(slot.key.senderID, sq = new LinkedHashSet<>());
+            sq.add(slot);
+            if (sq.size() > 1) return; // Не первая команда отправителя - не кандидат.
+        }
+        g.candidates[slot.priorityClass].add(slot);
+    }
+
+    /**
+     * Удаление слота из очереди группы: в режиме SERIAL_FOR_ALL кандидатом становится следующий слот отправителя.
+     * Вызывать только синхронизированно на cmdSlots!
      */
-    private boolean isSameSender(Slot s, Meta m) {
-        return s.execmeta.meta.senderID == m.senderID;
+    private static void queueRemove(final SlotGroup g, final Slot slot) {
+        g.queue.remove(slot);
+        g.queuedWork = g.queue.isEmpty() ? 0 : g.queuedWork - slot.workEstimate; // Без накопления погрешности.
+        if (g.candidates == null) return;
+        boolean candidate = g.candidates[slot.priorityClass].remove(slot);
+        if (g.senderQueues != null) {
+            LinkedHashSet<Slot> sq = g.senderQueues.get(slot.key.senderID);
+            sq.remove(slot);
+            if (sq.isEmpty()) {
+                g.senderQueues.remove(slot.key.senderID);
+            } else if (candidate) {
+                Slot next = sq.iterator().next();
+                g.candidates[next.priorityClass].add(next);
+            }
+        }
+    }
+
+    /** Ключ группы последовательного исполнения для отправителя. */
+    private int groupKey(int senderid) {
+        return prcMode == ProcessingMode.SERIAL_FOR_CLIENT ? senderid : 0;
     }
 
     /**
-     * Вспомогательная ф-ция. Проверка метаданных слота и указанных метаданных на совпадение команды (для этого должен
-     * совпасть и отправитель).
+     * Обновление положения группы в очереди готовых к исполнению команд: первая в очереди команда группы попадает в
+     * readyQueue, если группа может исполнять команду. Вызывать только синхронизированно на cmdSlots!
+     */
+    private void updateReady(final SlotGroup g) {
+        Slot head = null;
+        if (!g.queue.isEmpty() && (prcMode == ProcessingMode.PARALLEL_FOR_ALL || g.executing == 0)) {
+            head = g.queue.iterator().next();
+        }
+        if (head != g.readyHead) {
+            if (g.readyHead != null) readyQueue.remove(g.readyHead);
+            if (head != null) readyQueue.add(head);
+            g.readyHead = head;
+        }
+    }
+
+    /**
+     * Занятие свободного слота под команду и постановка его в очередь. Вызывать только синхронизированно на cmdSlots!
      *
-     * @param s Слот.
-     * @param m Метаданные.
-     * @return Результат: true - комада совпадает, false - нет.
+     * @param slot Свободный слот.
+     * @param key  Ключ команды.
      */
-    private boolean isSameCommand(Slot s, Meta m) {
-        return (s.execmeta.meta.senderID == m.senderID) && (s.execmeta.meta.commandID == m.commandID);
+    private void enqueueSlot(final Slot slot, final IDKey key) {
+        int gk = groupKey(key.senderID);
+        SlotGroup g = slotGroups.get(gk);
+        if (g == null) slotGroups.put(gk, g = new SlotGroup(gk, prcMode));
+        slot.key = key;
+        slot.group = g;
+        slot.seq = ++slotSeq;
+        // Метка планирования: после меток ранее поставленных команд своего класса, но не раньше виртуального времени.
+        Priority p = slot.execmeta.meta.priority;
+        slot.priorityClass = p.ordinal();
+        slot.finishTag = Math.max(virtualTime, classFinishTime[p.ordinal()]) + WFQ_COST / p.weight;
+        classFinishTime[p.ordinal()] = slot.finishTag;
+        slot.workEstimate = serviceTime(slot.commandType);
+        slot.queueTime = System.currentTimeMillis();
+        slot.queueNanos = System.nanoTime();
+        if (slot.metrics != null) slot.metrics.record(LatencyStage.RECEIVE_QUEUE, slot.queueNanos - slot.receiveNanos);
+        slot.isCancelRequested = false;
+        slot.isRestored = false;
+        if (!slot.casState(Slot.State.FREE, Slot.State.QUEUE)) {
+            throw new IllegalStateException("Слот не свободен! {" + slot.toString() + "}");
+        }
+        scheduleSlotExpiry(slot);
+        slotIndex.put(key, slot);
+        g.occupied.add(slot);
+        queueAdd(g, slot);
+        queueCount.incrementAndGet();
+        updateReady(g);
+        journalSlot(slot);
     }
 
-    /** Вспомогательная функция для purgeSlotsAndGetFree: "выбирает" первый свободный. */
-    private int _purge_GetFirstFree(final Slot s, int idxfree, int i) {
-        if (idxfree == -1) { // Первый свободный слот запоминаем.
-            logger.infof("PURGE_SLOTS - Select %s slot %d as free!", s == null ? "NULL" : "FREE", i);
-            return i;
+    /**
+     * Поиск исполняемой команды, идентичной объединяемой. Отправитель не должен иметь команд в очереди или в
+     * исполнении (кроме режима PARALLEL_FOR_ALL) - иначе результат присоединённой команды был бы получен раньше
+     * результатов его предыдущих команд. Вызывать только синхронизированно на cmdSlots!
+     *
+     * @param senderid ID отправителя.
+     * @param command  Данные команды.
+     * @return Исполняемый слот с идентичной командой или null.
+     */
+    private Slot findCoalesceLeader(final int senderid, final byte[] command) {
+        if (coalesceLeaders.isEmpty()) return null;
+        if (prcMode != ProcessingMode.PARALLEL_FOR_ALL) {
+            SlotGroup g = slotGroups.get(groupKey(senderid));
+            if (g != null) {
+                for (Slot s : g.occupied) {
+                    if (s.key.senderID == senderid && s.state != Slot.State.RESULT) return null;
+                }
+            }
+        }
+        for (Slot s : coalesceLeaders) {
+            if (Arrays.equals(s.coalesceKey, command)) return s;
         }
-        return idxfree;
+        return null;
     }
 
-    /** Вспомогательная функция для purgeSlotsAndGetFree: освобождает слот, "выбирает" первый свободный. */
-    private int _purge_Free(final Slot s, int idxfree, int i) {
-        if (s != null && s.state != Slot.State.FREE) {
-            if (s.state == Slot.State.QUEUE) cmdQueue.remove(s); // Если в очереди - удаляем из неё.
-            s.state = Slot.State.FREE;
+    /**
+     * Занятие свободного слота под команду, присоединяемую к исполняемой идентичной команде: слот сразу переводится в
+     * исполнение (в группе учитывается как исполняемый), результат копируется при завершении исполняемой команды.
+     * Вызывать только синхронизированно на cmdSlots!
+     *
+     * @param slot   Свободный слот.
+     * @param key    Ключ команды.
+     * @param leader Исполняемый слот с идентичной командой.
+     */
+    private void attachSlot(final Slot slot, final IDKey key, final Slot leader) {
+        int gk = groupKey(key.senderID);
+        SlotGroup g = slotGroups.get(gk);
+        if (g == null) slotGroups.put(gk, g = new SlotGroup(gk, prcMode));
+        slot.key = key;
+        slot.group = g;
+        slot.seq = ++slotSeq;
+        slot.queueNanos = System.nanoTime();
+        if (slot.metrics != null) slot.metrics.record(LatencyStage.RECEIVE_QUEUE, slot.queueNanos - slot.receiveNanos);
+        slot.isCancelRequested = false;
+        slot.isRestored = false;
+        if (!slot.casState(Slot.State.FREE, Slot.State.EXECUTE)) {
+            throw new IllegalStateException("Слот не свободен! {" + slot.toString() + "}");
         }
-        return _purge_GetFirstFree(s, idxfree, i);
+        slotIndex.put(key, slot);
+        g.occupied.add(slot);
+        g.executing++;
+        executeCount.incrementAndGet();
+        updateReady(g);
+        if (leader.followers == null) leader.followers = new ArrayList<>();
+        leader.followers.add(slot);
+        coalescedCount.incrementAndGet();
+        journalSlot(slot);
     }
 
     /**
-     * Проверка ВСЕХ слотов и освобождение, если необходимо. Проверка на наличие этой команды в слотах. Возвращает
-     * индекс первого свободного слота (в массива слотов).
+     * Перевод слота из очереди в исполнение. Вызывать только синхронизированно на cmdSlots!
      *
-     * @param meta Метаданные добавляемой команды.
-     * @return Индекс свободного слота для размещения команды.
-     * @throws ExResultError Ошибка операции.
+     * @return Результат: true - слот переведён, false - слот не в очереди.
      */
-    private int purgeSlotsAndGetFree(final Meta meta) throws ExResultError {
-        int free = 0; // Кол-во освобожденных слотов.
-        int idxfree = -1; // Индекс первого свободного слота.
-        int err_dup = -1; // Индекс слота дублирующейся команды.
-        int err_cmdclientexist = -1; // Индекс слота с рабочей командой того же клиента (в SERIAL_CLIENT режиме).
-        int err_cmdexist = -1; // Индекс слота с рабочей командой (в SERIAL_ALL режиме).
-        long dt = System.currentTimeMillis(); // Фиксация текущего момента (время операции) для расчёта истечения таймаута.
-
-        logger.infof("PURGE_SLOTS_START {slots=%d}", cmdSlots.length);
-
-        // Пробегаем по ВСЕМ слотам в обязательном порядке.
-        for (int i = 0; i < cmdSlots.length; i++) {
-            Slot s = cmdSlots[i];
-            if (s == null || s.state == Slot.State.FREE) { // Если слот свободен.
-                idxfree = _purge_GetFirstFree(s, idxfree, i);
-                continue; // Если свободен, то дальнейшие проверки не нужны.
-            }
-
-            // Освобождение слота с истекшим таймаутом.
-            if ((s.state != Slot.State.EXECUTE) && (dt - s.execmeta.receiveTime > s.execmeta.meta.executeTimeout)) {
-                idxfree = _purge_Free(s, idxfree, i);
-                free++;
-                continue; // Если освободили, то дальнейшие проверки не нужны.
-            }
-
-            // Если у нас есть ограничения на постановку в очередь - проверяем.
-            if (isSingleSerialMode) {
-                switch (prcMode) {
-                    case SERIAL_FOR_ALL:
-                        if (err_cmdexist == -1) { // Если пока ошибок не было и есть команда.
-                            if (s.state == Slot.State.RESULT) { // Можно освобождать только в этом состоянии.
-                                idxfree = _purge_Free(s, idxfree, i);
-                                free++;
-                                continue; // Если освободили, то дальнейшие проверки не нужны.
-                            } else {
-                                err_cmdexist = i;
-                            }
-                        }
-                        break;
-                    case SERIAL_FOR_CLIENT:
-                        if (err_cmdclientexist == -1 && isSameSender(s, meta)) { // Если пока ошибок не было и есть команда клиента.
-                            if (s.state == Slot.State.RESULT) { // Можно освобождать только в этом состоянии.
-                                idxfree = _purge_Free(s, idxfree, i);
-                                free++;
-                                continue; // Если освободили, то дальнейшие проверки не нужны.
-                            } else {
-                                err_cmdclientexist = i;
-                            }
-                        }
-                        break;
-                    case PARALLEL_FOR_ALL: // Нет ограничений!
-                        break;
+    private boolean startSlot(final Slot slot) {
+        if (!slot.casState(Slot.State.QUEUE, Slot.State.EXECUTE)) return false;
+        virtualTime = Math.max(virtualTime, slot.finishTag);
+        SlotGroup g = slot.group;
+        queueRemove(g, slot);
+        g.executing++;
+        if (slot.commandType != TYPE_ATTACHED) g.running.add(slot);
+        queueCount.decrementAndGet();
+        executeCount.incrementAndGet();
+        expiryWheel.cancel(slot.expiryTimer); // Исполняемый слот не освобождается.
+        updateReady(g);
+        if (slot.coalesceKey != null) coalesceLeaders.add(slot);
+        return true;
+    }
+
+    /**
+     * Перевод слота из исполнения в хранение результата. Результат в слоте должен быть сформирован ДО вызова (смена
+     * состояния публикует его для чтения без блокировки). Вызывать только синхронизированно на cmdSlots!
+     */
+    private void finishSlot(final Slot slot) {
+        if (!slot.casState(Slot.State.EXECUTE, Slot.State.RESULT)) {
+            throw new IllegalStateException("Слот не исполняется! {" + slot.toString() + "}");
+        }
+        if (slot.coalesceKey != null) coalesceLeaders.remove(slot);
+        SlotGroup g = slot.group;
+        g.executing--;
+        g.running.remove(slot);
+        executeCount.decrementAndGet();
+        resultCount.incrementAndGet();
+        // Даже если таймаут уже истёк - результат сохраняем до ближайшего тика (уведомление и ответ на отложенный
+        // запрос GETRESULT успевают уйти).
+        scheduleSlotExpiry(slot);
+        updateReady(g);
+    }
+
+    /**
+     * Освобождение слота (в состоянии QUEUE или RESULT) и возврат в стек свободных. Вызывать только синхронизированно
+     * на cmdSlots!
+     */
+    private void freeSlot(final Slot slot) {
+        SlotGroup g = slot.group;
+        Slot.State st = slot.state;
+        if (st != Slot.State.QUEUE && st != Slot.State.RESULT) return; // Свободный или исполняемый не освобождается.
+        if (!slot.casState(st, Slot.State.FREE)) return;
+        slot.generation++; // Результат слота становится недействительным для читающих без блокировки.
+        MemoryFences.storeFence(); // Поколение - до перезаписи результата при повторном занятии слота.
+        if (st == Slot.State.QUEUE) {
+            queueRemove(g, slot); // Если в очереди - удаляем из неё.
+            queueCount.decrementAndGet();
+        } else {
+            resultCount.decrementAndGet();
+        }
+        expiryWheel.cancel(slot.expiryTimer);
+        slotIndex.remove(slot.key);
+        journalFree(slot.key);
+        g.occupied.remove(slot);
+        updateReady(g);
+        if (g.occupied.isEmpty()) slotGroups.remove(g.key);
+        slot.key = null;
+        slot.group = null;
+        freeSlots.push(slot);
+    }
+
+    /**
+     * Открытие журнала слотов и восстановление из него слотов с результатами (см. setJournal()). Слоты, уже
+     * имеющиеся в памяти (при перезапуске сервиса без перезапуска процесса), не изменяются. При ошибке - сервис
+     * работает без журнала.
+     */
+    private void openJournal() {
+        synchronized (cmdSlots) {
+            if (journal != null) return;
+            SlotJournal j;
+            try {
+                j = new SlotJournal(journalFile, journalSize, journalFlushInterval);
+            } catch (Exception ex) {
+                logger.errorf("Ошибка открытия журнала слотов - %s! Сервис работает без журнала.", ExError.exMsg(ex));
+                return;
+            }
+            int restored = 0;
+            for (SlotJournal.Entry e : j.replay()) {
+                IDKey key = new IDKey(e.senderID, e.commandID);
+                if (slotIndex.containsKey(key)) continue;
+                if (freeSlots.isEmpty() && slotsCreated == cmdSlots.length) {
+                    logger.errorf("Нет свободных слотов для восстановления из журнала! {%s}", e.toString());
+                    continue;
                 }
+                restoreSlot(key, e);
+                restored++;
             }
+            // Действующий сегмент - снимок восстановленного состояния (записи прежних запусков больше не нужны).
+            checkpointJournal(j);
+            journal = j;
+            logger.infof("Восстановлено слотов из журнала: %d", restored);
+        }
+    }
 
-            // Если слот не освобождён и команда уже подавалась - ошибка!
-            if (err_dup == -1 && isSameCommand(s, meta)) {
-                logger.infof("PURGE_SLOTS - Select slot %d as dup command! slot={%s}", meta.commandID, s.toString());
-                err_dup = i;
+    /**
+     * Восстановление слота из журнала - в состоянии хранения результата. Для команды без результата (не исполненной
+     * до перезапуска) - результат-ошибка. Время хранения результата отсчитывается от запуска сервиса. Вызывать только
+     * синхронизированно на cmdSlots (журнал ещё не открыт)!
+     */
+    private void restoreSlot(final IDKey key, final SlotJournal.Entry e) {
+        int bodysize = e.body != null ? e.body.length : 0;
+        Slot slot = takeFreeSlot(Math.max(getMaxAnswerSize(), bodysize));
+        Meta m = new Meta();
+        m.senderID = e.senderID;
+        m.commandID = e.commandID;
+        m.requestType = RequestType.EXECUTE;
+        m.executeTimeout = Math.max(1, e.executeTimeout);
+        slot.execmeta.address = null;
+        slot.execmeta.receiveTime = System.currentTimeMillis();
+        slot.execmeta.meta = m;
+        slot.execmeta.buffer.reset();
+        if (bodysize > 0) slot.execmeta.buffer.putArray(e.body, 0, bodysize);
+        slot.execmeta.buffer.flip();
+        slot.batchFirstID = e.commandID;
+        slot.coalesceKey = null;
+        slot.commandType = TYPE_ATTACHED; // Не исполняется - в оценке ожидания не учитывается.
+        slot.metrics = null; // Задержки восстановленной команды не учитываются.
+        enqueueSlot(slot, key);
+        slot.isRestored = true;
+        startSlot(slot);
+        slot.execmeta.resultTime = slot.execmeta.receiveTime;
+        if (e.type == SlotJournal.REC_RESULT) {
+            m.finalizationID = e.finalizationID;
+            m.answerErrorID = e.answerErrorID;
+            m.answerErrorMessage = e.answerErrorMessage;
+        } else {
+            m.finalizationID = generateFinalizationID();
+            m.answerErrorID = RESULT_ERROR;
+            m.answerErrorMessage = "Исполнение команды прервано перезапуском сервиса - результат неизвестен!";
+        }
+        finishSlot(slot);
+        logger.infof("RESTORE_SLOT {%s}", slot.toString());
+    }
+
+    /** Запись текущего состояния слота в журнал (если журнал ведётся). Только под блокировкой! */
+    private void journalSlot(final Slot slot) {
+        SlotJournal j = journal;
+        if (j != null && !writeJournal(j, slot)) checkpointJournal(j); // Снимок уже включает состояние слота.
+    }
+
+    /** Запись освобождения слота в журнал (если журнал ведётся). Только под блокировкой! */
+    private void journalFree(final IDKey key) {
+        SlotJournal j = journal;
+        if (j != null && !j.logFree(key.senderID, key.id)) checkpointJournal(j);
+    }
+
+    /** Запись состояния слота в журнал: результат или постановка в очередь (исполняемый - тоже). */
+    private boolean writeJournal(final SlotJournal j, final Slot slot) {
+        Meta m = slot.execmeta.meta;
+        if (slot.state == Slot.State.RESULT) {
+            return j.logResult(slot.key.senderID, slot.key.id, m.executeTimeout, m.finalizationID, m.answerErrorID,
+                    m.answerErrorMessage, slot.execmeta.buffer);
+        }
+        return j.logQueue(slot.key.senderID, slot.key.id, m.executeTimeout);
+    }
+
+    /**
+     * Контрольная точка журнала: состояния всех занятых слотов (в порядке постановки) записываются в другой сегмент.
+     * Только под блокировкой!
+     */
+    private void checkpointJournal(final SlotJournal j) {
+        j.beginCheckpoint();
+        ArrayList<Slot> live = new ArrayList<>(slotIndex.values());
+        live.sort((a, b) -> Long.compare(a.seq, b.seq));
+        for (Slot s : live) {
+            if (!writeJournal(j, s)) {
+                logger.errorf("Состояние слота не помещается в журнал! {%s}", s.toString());
             }
         }
+        j.commitCheckpoint();
+    }
 
-        logger.infof("PURGE_SLOTS_END {err_dup=%d err_cmd=%d err_cmdclient=%d idxfree=%d}", err_dup, err_cmdexist, err_cmdclientexist, idxfree);
+    /** Список для временного хранения освобождаемых слотов (чтобы не выделять память при каждой проверке). */
+    private final ArrayList<Slot> purgeList = new ArrayList<>();
 
-        if (err_dup != -1) {
-            if (free > 0) notifyProcessor(); // Уведомляем процессор.
-            throw new ExResultError(RESULT_DUPLICATECOMMAND, "Дублирование команды! {cmdid=%d}", meta.commandID);
+    /**
+     * Постановка таймера истечения таймаута слота: receiveTime + executeTimeout. Вызывать только синхронизированно на
+     * cmdSlots!
+     */
+    private void scheduleSlotExpiry(final Slot slot) {
+        if (slot.expiryTimer == null) slot.expiryTimer = new TimingWheel.Timer(() -> expireSlot(slot));
+        // Слот истекает, когда с момента приёма прошло БОЛЬШЕ таймаута.
+        long deadline = slot.execmeta.receiveTime + slot.execmeta.meta.executeTimeout + 1;
+        if (expiryWheel.schedule(slot.expiryTimer, deadline)) notifyProcessor(); // Срок раньше ожидания процессора.
+    }
+
+    /** Действие таймера истечения слота - освобождение слота. Вызывается только при продвижении expiryWheel! */
+    private void expireSlot(final Slot slot) {
+        logger.infof("EXPIRE_SLOT {%s}", slot.toString());
+        freeSlot(slot); // Исполняемые слоты не освобождаются (таймер для них снят).
+    }
+
+    /**
+     * Проверка возможности постановки команд в очередь и освобождение слотов, если необходимо. Команды (одна или
+     * пакет) имеют последовательные ID - от ID команды в метаданных.
+     *
+     * @param meta        Метаданные добавляемой команды (первой команды пакета).
+     * @param count       Кол-во команд.
+     * @param iscoalesced Признак присоединения команды к исполняемой (ограничения на очередь не проверяются - в
+     *                    очередь команда не ставится).
+     * @throws ExResultError Ошибка операции.
+     */
+    private void purgeSlots(final Meta meta, final int count, final boolean iscoalesced) throws ExResultError {
+        // Освобождение слотов с истекшим таймаутом (обработка прошедших с последнего тика ячеек колеса таймеров).
+        int free = expiryWheel.advance(System.currentTimeMillis()); // Кол-во освобожденных слотов (и запросов).
+
+        // Если у нас есть ограничения на постановку в очередь - проверяем команды группы.
+        Slot busy = null; // Слот с рабочей командой (в SERIAL+SINGLE режиме).
+        if (isSingleSerialMode && prcMode != ProcessingMode.PARALLEL_FOR_ALL) {
+            SlotGroup g = slotGroups.get(groupKey(meta.senderID));
+            if (g != null) {
+                for (Slot s : g.occupied) {
+                    if (s.state != Slot.State.RESULT) {
+                        busy = s;
+                        break;
+                    }
+                }
+                if (busy == null) { // Можно освобождать только в состоянии RESULT.
+                    purgeList.addAll(g.occupied);
+                    for (Slot s : purgeList) freeSlot(s);
+                    free += purgeList.size();
+                    purgeList.clear();
+                }
+            }
         }
 
-        if (err_cmdexist != -1) {
-            if (free > 0) notifyProcessor(); // Уведомляем процессор.
-            throw new ExResultError(RESULT_CANNOTEXECUTE, "В SERIAL_ALL + SINGLE режиме одновременно возможна только одна команда! " +
-                    "{cmdid=%d senderid=%d}", meta.commandID, meta.senderID);
+        logger.infof("PURGE_SLOTS {free=%d busy=%s}", free, busy == null ? "null" : busy.toString());
+
+        // Если слот не освобождён и команда уже подавалась - ошибка!
+        for (int i = 0; i < count; i++) {
+            if (slotIndex.containsKey(new IDKey(meta.senderID, meta.commandID + i))) {
+                if (free > 0) notifyProcessor(); // Уведомляем процессор.
+                throw new ExResultError(RESULT_DUPLICATECOMMAND, "Дублирование команды! {cmdid=%d}", meta.commandID + i);
+            }
         }
 
-        if (err_cmdclientexist != -1) {
+        if (!iscoalesced
+                && (busy != null || (count > 1 && isSingleSerialMode && prcMode != ProcessingMode.PARALLEL_FOR_ALL))) {
             if (free > 0) notifyProcessor(); // Уведомляем процессор.
+            if (prcMode == ProcessingMode.SERIAL_FOR_ALL) {
+                throw new ExResultError(RESULT_CANNOTEXECUTE, "В SERIAL_ALL + SINGLE режиме одновременно возможна только одна команда! " +
+                        "{cmdid=%d senderid=%d}", meta.commandID, meta.senderID);
+            }
             throw new ExResultError(RESULT_CANNOTEXECUTE, "В SERIAL_CLIENT + SINGLE режиме одновременно возможна только одна команда " +
                     "для одного клиента {cmdid=%d senderid=%d}", meta.commandID, meta.senderID);
         }
 
-        if (idxfree == -1) {
+        if (freeSlots.size() + (cmdSlots.length - slotsCreated) < count) {
             if (free > 0) notifyProcessor(); // Уведомляем процессор.
             throw new ExResultError(RESULT_CANNOTEXECUTE, "Нет свободных слотов!");
         }
@@ -314,24 +1030,104 @@ public abstract class QueuedRCService extends RCService {
         // Проверка на специальный режим исполнения - без ожидания (таймаут <= 0). При котором выполнение только
         // если процессор свободен (нет команд в очереди). Если таймаут = 0, то команда выполняется, но результат
         // освобождается сразу!
-        if (meta.executeTimeout <= 0 && !cmdQueue.isEmpty()) {
+        if (!iscoalesced && meta.executeTimeout <= 0 && queueCount.get() > 0) {
             if (free > 0) notifyProcessor(); // Уведомляем процессор.
             throw new ExResultError(RESULT_CANNOTEXECUTE,
                     "Невозможно выполнение команды без ожидания - очередь команд не пуста!");
         }
-
         // Если ошибок не было - не уведомляем процессор - он уведомится командой!
-        return idxfree;
     }
 
     /**
-     * Выполнение запроса: "EXECUTE".
+     * Оценка времени исполнения команды типа (мсек). Вызывать только синхронизированно на cmdSlots!
+     *
+     * @return Оценка или 0, если замеров недостаточно (неизвестное время не учитывается).
+     */
+    private double serviceTime(final int type) {
+        RttEstimator e = serviceTimes.get(type);
+        return e != null && e.getSamples() >= ADMISSION_MIN_SAMPLES ? e.getSrtt() : 0;
+    }
+
+    /**
+     * Контроль допуска команд: оценка времени завершения поставленных в очередь команд - ожидание (оставшееся время
+     * исполняемых команд и время всех команд очереди группы - с запасом, без учёта обгона по приоритету) плюс время
+     * исполнения самих команд. Время очереди - сумма оценок, запомненных при постановке (см. SlotGroup.queuedWork).
+     * Если оценка превышает допустимую долю таймаута исполнения - команды отклоняются. Ожидание учитывается с учётом режима обработки:
+     * в SERIAL_FOR_CLIENT - только команды отправителя, в PARALLEL_FOR_ALL - делится на кол-во потоков исполнителя
+     * (без ограничения потоков ожидания нет). Вызывать только синхронизированно на cmdSlots!
+     *
+     * @param meta  Метаданные команды (первой команды пакета).
+     * @param types Типы команд.
+     * @throws ExBusy Если команды не будут исполнены до истечения таймаута.
+     */
+    private void admitCommands(final Meta meta, final int[] types) throws ExBusy {
+        if (!isAdmissionControl || meta.executeTimeout <= 0) return; // Без ожидания - своя проверка.
+        double own = 0;
+        for (int t : types) own += serviceTime(t);
+        if (own <= 0 && serviceTimes.isEmpty()) return;
+
+        int parallel = 1;
+        if (prcMode == ProcessingMode.PARALLEL_FOR_ALL) {
+            CommandExecutor ex = executor;
+            CommandExecutor.Mode mode = ex != null ? ex.getMode() : executorMode;
+            if (mode == CommandExecutor.Mode.THREAD_PER_COMMAND || mode == CommandExecutor.Mode.VIRTUAL) {
+                parallel = 0;
+            } else {
+                parallel = Math.max(1, executorPoolSize);
+            }
+        }
+        double wait = 0;
+        SlotGroup g = slotGroups.get(groupKey(meta.senderID));
+        if (parallel > 0 && g != null) {
+            long nanos = System.nanoTime();
+            for (Slot s : g.running) {
+                long started = s.execStartNanos;
+                double elapsed = started != 0 ? (nanos - started) / 1000000.0 : 0;
+                wait += Math.max(0, serviceTime(s.commandType) - elapsed);
+            }
+            wait = (wait + g.queuedWork) / parallel;
+        }
+        double total = wait + own;
+        double budget = meta.executeTimeout * ADMISSION_TARGET_PERCENT / 100.0;
+        if (total > budget) {
+            rejectedCount.incrementAndGet();
+            int retry = (int) Math.max(1, Math.ceil(total - budget));
+            throw new ExBusy(retry, "Сервис перегружен - команда не будет исполнена до истечения таймаута! " +
+                    "{ожидание=%.0f исполнение=%.0f таймаут=%d}", wait, own, meta.executeTimeout);
+        }
+    }
+
+    /**
+     * Получение свободного слота (при необходимости - создание). Наличие свободного слота должно быть проверено
+     * заранее (см. purgeSlots()). Вызывать только синхронизированно на cmdSlots!
+     *
+     * @param buffersize Размер буфера слота (при создании, или если буфер имеющегося слота меньше).
+     * @return Свободный слот.
+     */
+    private Slot takeFreeSlot(int buffersize) {
+        if (!freeSlots.isEmpty()) {
+            Slot slot = freeSlots.pop();
+            // Максимальный размер ответа мог быть увеличен (при перезапуске) - буфер результата не должен быть меньше.
+            if (slot.execmeta.buffer.capacity() < buffersize) slot.execmeta.buffer = new DataBuffer(buffersize);
+            return slot;
+        }
+        // Если свободного слота нет в стеке, то производим отложенное создание слота.
+        Slot slot = new Slot(buffersize);
+        cmdSlots[slotsCreated++] = slot;
+        return slot;
+    }
+
+    /**
+     * Выполнение запроса: "EXECUTE" и "EXECUTE_NOTIFY".
      * <p>
      * Постановка команды в очередь на исполнение процессором команд (в потоке процессора команд). ВАЖНО: Только в этом
-     * методе осуществляется отложенное создание слотов (в пределах массива) и освобождение слотов с истекшими
-     * таймаутами!
+     * методе (и в requestExecuteBatch) осуществляется отложенное создание слотов (в пределах массива) и освобождение
+     * слотов с истекшими таймаутами!
      * <p>
      * Если команда - дублирует уже имеющуюся в слотах или нет свободных слотов - выбрасывается ошибка!
+     * <p>
+     * Объединяемая команда (см. isCoalescable()), идентичная исполняемой, в очередь не ставится - присоединяется к
+     * исполняемой и получает её результат.
      *
      * @param meta   Метаданные сообщения команды.
      * @param buffer Данные команды (определяются как рабочая область).
@@ -340,71 +1136,407 @@ public abstract class QueuedRCService extends RCService {
     protected void requestExecute(final SocketAddress address, final long receivetime, final Meta meta,
                                   final DataBuffer buffer) throws ExResultError {
 
+        // Данные объединяемой команды - для сравнения с исполняемыми (до блокировки).
+        byte[] command = isCoalescable(buffer) ? buffer.getArrayAt(0, buffer.length()) : null;
+        int type = commandType(buffer);
+        long receivenanos = receiveNanos(receivetime);
+
         // Синхронизация межпотокового доступа к слотам и очереди.
         synchronized (cmdSlots) {
 
-            // Освобождаем неактуальные слоты. И получаем индекс свободного слота (если не нашли - исключение!).
-            int idxfree = purgeSlotsAndGetFree(meta);
+            Slot leader = command != null ? findCoalesceLeader(meta.senderID, command) : null;
+            // Освобождаем неактуальные слоты. И проверяем наличие свободного слота (если нет - исключение!).
+            purgeSlots(meta, 1, leader != null);
+            if (leader == null) admitCommands(meta, new int[]{type}); // Присоединённая команда не добавляет работы.
+            Slot slot = takeFreeSlot(buffer.capacity());
 
             // Убираем минус (т.к. минус - индикатор немедленного исполнения!).
             meta.executeTimeout = Math.abs(meta.executeTimeout);
 
-            // Если свободный слот не был создан, то производим отложенное создание слота.
-            if (cmdSlots[idxfree] == null) {
-                cmdSlots[idxfree] = new Slot(buffer.capacity());
-            }
-            Slot slot = cmdSlots[idxfree];
-
             // Подготовка команды.
-            slot.state = Slot.State.QUEUE;
-            slot.execmeta.address = (InetSocketAddress) address;
+            slot.execmeta.address = address;
             slot.execmeta.receiveTime = receivetime;
             slot.execmeta.resultTime = 0;
-            slot.execmeta.meta = meta;
+            // Копия метаданных: ошибка исполнения заносится в метаданные слота и не должна попасть в ответ на сам
+            // запрос (команда может завершиться раньше, чем ответ будет отослан).
+            slot.execmeta.meta = new Meta(meta);
             slot.execmeta.buffer.reset().putArea(buffer).flip(); // Рабочая область по данным команды.
+            slot.batchFirstID = meta.commandID;
+            slot.coalesceKey = command;
+            // Присоединённая команда не исполняется - её время не учитывается в оценке ожидания.
+            slot.commandType = leader != null ? TYPE_ATTACHED : type;
+            slot.metrics = latencySeries(meta.requestType, type);
+            slot.receiveNanos = receivenanos;
 
             // Строим успешный ответ за запрос.
             meta.buildAnswer(buffer.reset()).flipBuffer();
 
-            cmdQueue.add(slot);
-            notifyProcessor(); // Уведомляем процессор.
+            if (leader != null) {
+                attachSlot(slot, new IDKey(meta.senderID, meta.commandID), leader);
+                logger.infof("COALESCE {%s} -> {%s}", slot.toString(), leader.toString());
+            } else {
+                enqueueSlot(slot, new IDKey(meta.senderID, meta.commandID));
+                notifyProcessor(); // Уведомляем процессор.
+            }
         }
     }
 
     /**
-     * Выполнение команды сервиса: "GETRESULT". Возвращает или ошибку или имеющийся результат исполнения команды.
+     * Выполнение запроса: "EXECUTE_BATCH".
+     * <p>
+     * Постановка пакета команд в очередь на исполнение - все команды или ни одной. Каждая команда занимает свой слот
+     * (как обычная команда EXECUTE) и исполняется в соответствии с режимом обработки: в последовательных режимах -
+     * строго в порядке следования в пакете.
      *
-     * @param meta   Метаданные.
-     * @param buffer Буфер.
-     * @throws ExResultError
+     * @param meta   Метаданные сообщения команды.
+     * @param buffer Данные команд (определяются как рабочая область).
      */
     @Override
-    protected void requestGetResult(final Meta meta, final DataBuffer buffer) throws ExResultError {
+    protected void requestExecuteBatch(final SocketAddress address, final long receivetime, final Meta meta,
+                                       final DataBuffer buffer) throws ExResultError {
+        // Разбор пакета до блокировки: проверяем формат и запоминаем положение данных команд.
+        int count;
+        int[] offsets, lengths, types;
+        try {
+            count = buffer.getInt2();
+            if (count < 1 || count > cmdSlots.length) {
+                throw new ExResultError(RESULT_WRONGVALUE, "Неверное кол-во команд в пакете! {count=%d}", count);
+            }
+            offsets = new int[count];
+            lengths = new int[count];
+            types = new int[count];
+            for (int i = 0; i < count; i++) {
+                lengths[i] = buffer.getInt2();
+                offsets[i] = buffer.offset() + buffer.pos(); // Смещение от начала буфера.
+                buffer.shift(lengths[i]);
+            }
+            for (int i = 0; i < count; i++) types[i] = commandType(buffer.area(offsets[i], lengths[i]));
+        } catch (ExResultError ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new ExResultError(RESULT_WRONGFORMAT, "Ошибка при разборе пакета команд - %s!", ExError.exMsg(ex));
+        }
+        long receivenanos = receiveNanos(receivetime);
 
         // Синхронизация межпотокового доступа к слотам и очереди.
         synchronized (cmdSlots) {
-            // Находим слот с совпадающей командой и проверяем его состояние.
-            for (Slot s : cmdSlots) {
-                if (s != null && isSameCommand(s, meta)) {
-                    // Нашли совпадающую команду.
-                    switch (s.state) {
-                        case FREE:
-                            throw new ExResultError(RESULT_COMMANDNOTFOUND, "Слот уже освобожден!");
-                        case QUEUE:
-                        case EXECUTE:
-                            throw new ExResultError(RESULT_RESULTNOTREADY, "Результат еще не готов!");
-                        case RESULT:
-                            // Копируем cmdID финализации в метаданные ответа.
-                            meta.finalizationID = s.execmeta.meta.finalizationID;
-                            // Формируем и возвращаем результат.
-                            meta.buildAnswer(buffer.reset()).putArea(s.execmeta.buffer).flipBuffer();
-                            return;
-                    }
-                }
+
+            // Освобождаем неактуальные слоты. И проверяем наличие свободных слотов для всего пакета.
+            purgeSlots(meta, count, false);
+            admitCommands(meta, types);
+
+            // Убираем минус (т.к. минус - индикатор немедленного исполнения!).
+            meta.executeTimeout = Math.abs(meta.executeTimeout);
+
+            // Подготовка команд (каждая - с собственными метаданными, как для EXECUTE).
+            Slot[] slots = new Slot[count];
+            for (int i = 0; i < count; i++) {
+                Slot slot = takeFreeSlot(buffer.capacity());
+                slots[i] = slot;
+                Meta m = new Meta(meta);
+                m.requestType = RequestType.EXECUTE;
+                m.commandID = meta.commandID + i;
+                slot.execmeta.address = address;
+                slot.execmeta.receiveTime = receivetime;
+                slot.execmeta.resultTime = 0;
+                slot.execmeta.meta = m;
+                slot.execmeta.buffer.reset().putArea(buffer.area(offsets[i], lengths[i])).flip();
+                slot.batchFirstID = meta.commandID;
+                slot.coalesceKey = null; // Команды пакета не объединяются.
+                slot.commandType = types[i];
+                slot.metrics = latencySeries(meta.requestType, types[i]);
+                slot.receiveNanos = receivenanos;
             }
-            // Не нашли совпадений.
+
+            // Строим успешный ответ за запрос.
+            meta.buildAnswer(buffer.reset()).putInt2(count).flipBuffer();
+
+            for (Slot slot : slots) enqueueSlot(slot, new IDKey(meta.senderID, slot.execmeta.meta.commandID));
+            notifyProcessor(); // Уведомляем процессор.
+        }
+    }
+
+    /**
+     * Выполнение команды сервиса: "GETRESULT". Возвращает или ошибку или имеющийся результат исполнения команды. Если
+     * в запросе задано время ожидания и результат еще не готов - запрос откладывается до готовности результата (или до
+     * истечения времени ожидания), ответ не формируется. Если задано кол-во команд (пакет) - результаты всех команд
+     * возвращаются одним ответом.
+     *
+     * @param address Адрес отправителя.
+     * @param meta    Метаданные.
+     * @param buffer  Буфер.
+     * @throws ExResultError
+     */
+    @Override
+    protected void requestGetResult(final SocketAddress address, final Meta meta, final DataBuffer buffer)
+            throws ExResultError {
+
+        int waittime = buffer.remaining() >= 4 ? buffer.getInt() : 0;
+        int count = buffer.remaining() >= 2 ? buffer.getInt2() : 1;
+        if (count < 1 || count > cmdSlots.length) {
+            throw new ExResultError(RESULT_WRONGVALUE, "Неверное кол-во команд! {count=%d}", count);
+        }
+        IDKey key = new IDKey(meta.senderID, meta.commandID);
+        if (count > 1) {
+            requestGetBatchResult(address, meta, buffer, key, count, waittime);
+            return;
+        }
+
+        // Без блокировки: находим слот с совпадающей командой и проверяем его состояние. Результат копируется с
+        // проверкой поколения слота - слот мог быть освобождён и переиспользован во время копирования.
+        Slot s = slotIndex.get(key);
+        if (s == null) {
             throw new ExResultError(RESULT_COMMANDNOTFOUND, "Нет слота с данной командой!");
         }
+        long gen = s.generation;
+        Slot.State st = s.state;
+        if (st == Slot.State.RESULT && key.equals(s.key)) {
+            try {
+                buildResultAnswer(s, meta, buffer);
+                MemoryFences.loadFence(); // Чтение результата - до повторного чтения поколения.
+                if (s.generation == gen) return;
+            } catch (RuntimeException ignore) { // Буфер слота изменён во время копирования.
+            }
+            throw new ExResultError(RESULT_COMMANDNOTFOUND, "Слот уже освобожден!");
+        }
+        if (st != Slot.State.QUEUE && st != Slot.State.EXECUTE) {
+            throw new ExResultError(RESULT_COMMANDNOTFOUND, "Слот уже освобожден!");
+        }
+        if (waittime <= 0) {
+            throw new ExResultError(RESULT_RESULTNOTREADY, "Результат еще не готов!");
+        }
+
+        // Откладываем запрос до готовности результата (под блокировкой - чтобы не пропустить завершение команды).
+        synchronized (cmdSlots) {
+            s = slotIndex.get(key);
+            if (s == null) {
+                throw new ExResultError(RESULT_COMMANDNOTFOUND, "Нет слота с данной командой!");
+            }
+            switch (s.state) {
+                case QUEUE:
+                case EXECUTE:
+                    parkResultWaiter(new ResultWaiter(key, address, meta, 1), waittime, buffer);
+                    return;
+                case RESULT:
+                    buildResultAnswer(s, meta, buffer);
+                    return;
+            }
+            throw new ExResultError(RESULT_COMMANDNOTFOUND, "Слот уже освобожден!");
+        }
+    }
+
+    /**
+     * Выполнение команды сервиса: "GETRESULT" для пакета команд (последовательные ID команд). Ответ формируется только
+     * при готовности результатов всех команд.
+     *
+     * @param address  Адрес отправителя.
+     * @param meta     Метаданные.
+     * @param buffer   Буфер.
+     * @param key      Ключ первой команды.
+     * @param count    Кол-во команд.
+     * @param waittime Время ожидания результатов (если не готовы).
+     * @throws ExResultError
+     */
+    private void requestGetBatchResult(final SocketAddress address, final Meta meta, final DataBuffer buffer,
+                                       final IDKey key, final int count, final int waittime) throws ExResultError {
+        synchronized (cmdSlots) {
+            if (buildBatchResultAnswer(key, count, meta, buffer)) return;
+            if (waittime <= 0) {
+                throw new ExResultError(RESULT_RESULTNOTREADY, "Результат еще не готов!");
+            }
+            parkResultWaiter(new ResultWaiter(key, address, meta, count), waittime, buffer);
+        }
+    }
+
+    /**
+     * Откладывание запроса GETRESULT до готовности результата (но не дольше времени ожидания). Вызывать только
+     * синхронизированно на cmdSlots!
+     *
+     * @param w        Отложенный запрос.
+     * @param waittime Время ожидания.
+     * @param buffer   Буфер ответа (ответ не формируется - рабочее окно пустое).
+     */
+    private void parkResultWaiter(final ResultWaiter w, final int waittime, final DataBuffer buffer) {
+        w.expiryTimer = new TimingWheel.Timer(() -> expireResultWaiter(w));
+        ResultWaiter old = resultWaiters.put(w.key, w);
+        if (old != null) expiryWheel.cancel(old.expiryTimer); // Повторный запрос заменяет предыдущий.
+        // Срок раньше ожидания процессора - будим его для пересчёта ожидания.
+        if (expiryWheel.schedule(w.expiryTimer, System.currentTimeMillis() + waittime)) notifyProcessor();
+        buffer.area(0, 0); // Ответ не отсылается.
+    }
+
+    /**
+     * Формирование ответа с результатами исполнения пакета команд (как на GETRESULT с кол-вом команд). Вызывать только
+     * синхронизированно на cmdSlots!
+     *
+     * @param key    Ключ первой команды.
+     * @param count  Кол-во команд.
+     * @param meta   Метаданные ответа.
+     * @param buffer Буфер для ответа.
+     * @return Результат: true - ответ сформирован, false - результаты готовы не все (ответ не формируется).
+     * @throws ExResultError Если хотя бы одна из команд не найдена или результаты не помещаются в сообщение.
+     */
+    private boolean buildBatchResultAnswer(final IDKey key, final int count, final Meta meta, final DataBuffer buffer)
+            throws ExResultError {
+        for (int i = 0; i < count; i++) {
+            Slot s = slotIndex.get(new IDKey(key.senderID, key.id + i));
+            if (s == null) {
+                throw new ExResultError(RESULT_COMMANDNOTFOUND, "Нет слота с данной командой! {cmdid=%d}", key.id + i);
+            }
+            if (s.state != Slot.State.RESULT) return false;
+        }
+        try {
+            meta.finalizationID = slotIndex.get(key).execmeta.meta.finalizationID; // Для первой команды.
+            meta.buildAnswer(buffer.reset()).putInt2(count);
+            for (int i = 0; i < count; i++) {
+                ExecMeta em = slotIndex.get(new IDKey(key.senderID, key.id + i)).execmeta;
+                buffer.putLong(em.meta.finalizationID).putInt2(em.buffer.length()).putArea(em.buffer);
+            }
+            buffer.flipBuffer();
+        } catch (Exception ex) {
+            meta.finalizationID = 0; // Ответ-ошибка без ID финализации - результаты клиентом не получены.
+            if (ex instanceof ExResultError) throw (ExResultError) ex;
+            throw new ExResultError(RESULT_ERROR, "Результаты пакета команд не помещаются в сообщение! {count=%d}", count);
+        }
+        return true;
+    }
+
+    /**
+     * Формирование ответа с результатом исполнения команды (как на GETRESULT). Вызывать только для слота в состоянии
+     * RESULT: синхронизированно на cmdSlots или без блокировки - тогда с проверкой поколения слота после вызова
+     * (слот мог быть освобождён и переиспользован, ответ при этом может быть неверным или вызов - завершиться
+     * исключением, см. requestGetResult()).
+     *
+     * @param s      Слот.
+     * @param meta   Метаданные ответа.
+     * @param buffer Буфер для ответа.
+     * @throws ExResultError
+     */
+    private void buildResultAnswer(final Slot s, final Meta meta, final DataBuffer buffer) throws ExResultError {
+        // Копируем cmdID финализации в метаданные ответа.
+        meta.finalizationID = s.execmeta.meta.finalizationID;
+        if (s.isRestored && s.execmeta.meta.answerErrorID != RESULT_OK) {
+            // Восстановленная из журнала команда не исполнена (ошибка обработчика или прерывание перезапуском) - ответ
+            // с ошибкой, но с cmdID финализации (результат можно освободить). Ошибку исполнения живой команды, как и
+            // прежде, клиент видит только по данным результата - клиенты прежних версий ошибку не финализируют.
+            meta.answerErrorID = s.execmeta.meta.answerErrorID;
+            meta.answerErrorMessage = s.execmeta.meta.answerErrorMessage;
+            meta.buildAnswer(buffer.reset()).flipBuffer();
+            return;
+        }
+        // Формируем и возвращаем результат.
+        meta.buildAnswer(buffer.reset()).putArea(s.execmeta.buffer).flipBuffer();
+    }
+
+    /**
+     * Отправка ответа с результатом исполнения команды (как на GETRESULT) вне цикла приёма. Если слот не содержит
+     * результата - отсылается ответ с ошибкой. Вызывать только синхронизированно на cmdSlots!
+     *
+     * @param slot    Слот.
+     * @param meta    Метаданные ответа.
+     * @param address Адрес получателя.
+     */
+    private void sendResultAnswer(final Slot slot, final Meta meta, final SocketAddress address) {
+        try {
+            if (slot.state == Slot.State.RESULT) {
+                buildResultAnswer(slot, meta, answerBuffer);
+            } else {
+                meta.answerErrorID = RESULT_COMMANDNOTFOUND;
+                meta.answerErrorMessage = "Слот уже освобожден!";
+                meta.buildAnswer(answerBuffer.reset()).flipBuffer();
+            }
+        } catch (Exception ex) {
+            logger.errorf("Ошибка формирования ответа с результатом - %s!", ExError.exMsg(ex));
+            return;
+        }
+        sendAnswer(address, meta, answerBuffer);
+    }
+
+    /**
+     * Отправка уведомления с результатом исполнения команды отправителю (для EXECUTE_NOTIFY). Уведомление - ответ на
+     * GETRESULT с messageID запроса EXECUTE_NOTIFY. Вызывать только синхронизированно на cmdSlots!
+     *
+     * @param slot Слот.
+     */
+    private void sendResultNotify(final Slot slot) {
+        Meta meta = new Meta();
+        meta.senderID = slot.execmeta.meta.senderID;
+        meta.messageID = slot.execmeta.meta.messageID;
+        meta.requestType = RequestType.GETRESULT;
+        meta.commandID = slot.execmeta.meta.commandID;
+        meta.headerFormat = slot.execmeta.meta.headerFormat; // Уведомление - в формате запроса.
+        sendResultAnswer(slot, meta, slot.execmeta.address);
+    }
+
+    /**
+     * Завершение отложенного запроса GETRESULT для команды слота (если есть) - отсылка ответа. Для пакета команд
+     * отложенный запрос хранится по первой команде пакета и завершается при готовности результатов всех команд.
+     * Вызывать только синхронизированно на cmdSlots!
+     *
+     * @param slot Слот.
+     */
+    private void completeResultWaiter(final Slot slot) {
+        if (resultWaiters.isEmpty()) return;
+        Meta m = slot.execmeta.meta;
+        completeResultWaiter(slot, new IDKey(m.senderID, m.commandID));
+        if (slot.batchFirstID != m.commandID) completeResultWaiter(slot, new IDKey(m.senderID, slot.batchFirstID));
+    }
+
+    /**
+     * Завершение отложенного запроса GETRESULT с заданным ключом (если есть и готов ответ). Вызывать только
+     * синхронизированно на cmdSlots!
+     *
+     * @param slot Слот завершённой команды.
+     * @param key  Ключ отложенного запроса.
+     */
+    private void completeResultWaiter(final Slot slot, final IDKey key) {
+        ResultWaiter w = resultWaiters.get(key);
+        if (w == null) return;
+        if (w.count == 1) {
+            if (!key.equals(slot.key)) return; // Запрос результата другой команды (первой команды пакета).
+            resultWaiters.remove(key);
+            expiryWheel.cancel(w.expiryTimer);
+            sendResultAnswer(slot, w.meta, w.address);
+            return;
+        }
+        try {
+            try {
+                if (!buildBatchResultAnswer(w.key, w.count, w.meta, answerBuffer)) return; // Готовы не все.
+            } catch (ExResultError ex) {
+                w.meta.answerErrorID = ex.errorID;
+                w.meta.answerErrorMessage = ex.getMessage();
+                w.meta.buildAnswer(answerBuffer.reset()).flipBuffer();
+            }
+        } catch (Exception ex) {
+            logger.errorf("Ошибка формирования ответа с результатом - %s!", ExError.exMsg(ex));
+            return;
+        }
+        resultWaiters.remove(key);
+        expiryWheel.cancel(w.expiryTimer);
+        sendAnswer(w.address, w.meta, answerBuffer);
+    }
+
+    /**
+     * Действие таймера истечения времени ожидания отложенного запроса GETRESULT - отсылка ответа "результат не
+     * готов". Вызывается только при продвижении expiryWheel!
+     */
+    private void expireResultWaiter(final ResultWaiter w) {
+        if (resultWaiters.get(w.key) != w) return;
+        resultWaiters.remove(w.key);
+        try {
+            w.meta.answerErrorID = RESULT_RESULTNOTREADY;
+            w.meta.answerErrorMessage = "Результат еще не готов!";
+            w.meta.buildAnswer(answerBuffer.reset()).flipBuffer();
+            sendAnswer(w.address, w.meta, answerBuffer);
+        } catch (Exception ex) {
+            logger.errorf("Ошибка формирования ответа - %s!", ExError.exMsg(ex));
+        }
+    }
+
+    /** Учёт задержки финализации результата слота (см. latencySeries()). */
+    private static void recordFinalize(final Slot slot) {
+        LatencySeries ls = slot.metrics;
+        if (ls != null) ls.record(LatencyStage.RESULT_FINALIZE, System.nanoTime() - slot.resultNanos);
     }
 
     /**
@@ -419,34 +1551,185 @@ public abstract class QueuedRCService extends RCService {
     @Override
     protected void requestFinalize(final Meta meta, final DataBuffer buffer) throws ExResultError {
 
+        if (buffer.remaining() >= 2) { // Финализация пакета команд.
+            requestFinalizeBatch(meta, buffer);
+            return;
+        }
+        IDKey key = new IDKey(meta.senderID, meta.commandID);
+        // Без блокировки: отсекаем запросы для отсутствующих и не завершённых команд.
+        Slot fs = slotIndex.get(key);
+        if (fs == null) {
+            throw new ExResultError(RESULT_COMMANDNOTFOUND, "Нет слота с данной командой!");
+        }
+        Slot.State fst = fs.state;
+        if (fst == Slot.State.QUEUE || fst == Slot.State.EXECUTE) {
+            throw new ExResultError(RESULT_RESULTNOTREADY, "Слот не в режиме хранения результата! {state=%s}",
+                    fst.name());
+        }
+
         // Синхронизация межпотокового доступа к слотам и очереди.
         synchronized (cmdSlots) {
             // Находим слот с совпадающей командой и проверяем его состояние.
-            for (Slot s : cmdSlots) {
-                if (s != null && isSameCommand(s, meta)) {
-                    // Нашли совпадающую команду.
-                    switch (s.state) {
-                        case FREE:
-                            throw new ExResultError(RESULT_COMMANDNOTFOUND, "Слот уже освобожден!");
-                        case QUEUE:
-                        case EXECUTE:
-                            throw new ExResultError(RESULT_RESULTNOTREADY, "Слот не в режиме хранения результата! {state=%s}",
-                                    s.state.name());
-                        case RESULT:
-                            // Если совпадает код финализации (это указывает на то, что результат был получен).
-                            if (s.execmeta.meta.finalizationID == meta.finalizationID) {
-                                s.state = Slot.State.FREE; // Освобождаем слот!
-                                meta.buildAnswer(buffer.reset()).flipBuffer();
-                                notifyProcessor(); // Уведомляем процессор.
-                                return;
-                            }
-                            throw new ExResultError(RESULT_WRONGFINALIZATIONID, "Неверный ID финализации! {finid=%d msgfinid=%d}",
-                                    s.execmeta.meta.finalizationID, meta.finalizationID);
+            Slot s = slotIndex.get(key);
+            if (s == null) {
+                throw new ExResultError(RESULT_COMMANDNOTFOUND, "Нет слота с данной командой!");
+            }
+            switch (s.state) {
+                case QUEUE:
+                case EXECUTE:
+                    throw new ExResultError(RESULT_RESULTNOTREADY, "Слот не в режиме хранения результата! {state=%s}",
+                            s.state.name());
+                case RESULT:
+                    // Если совпадает код финализации (это указывает на то, что результат был получен).
+                    if (s.execmeta.meta.finalizationID == meta.finalizationID) {
+                        recordFinalize(s);
+                        freeSlot(s); // Освобождаем слот!
+                        meta.buildAnswer(buffer.reset()).flipBuffer();
+                        notifyProcessor(); // Уведомляем процессор.
+                        return;
                     }
+                    throw new ExResultError(RESULT_WRONGFINALIZATIONID, "Неверный ID финализации! {finid=%d msgfinid=%d}",
+                            s.execmeta.meta.finalizationID, meta.finalizationID);
+            }
+            throw new ExResultError(RESULT_COMMANDNOTFOUND, "Слот уже освобожден!");
+        }
+    }
+
+    /**
+     * Выполнение запроса: "FINALIZE" для пакета команд (последовательные ID команд). Слоты освобождаются все или ни
+     * одного (уже освобождённые - пропускаются).
+     *
+     * @param meta   Метаданные.
+     * @param buffer Буфер (тело запроса: кол-во команд и ID финализации для каждой).
+     * @throws ExResultError
+     */
+    private void requestFinalizeBatch(final Meta meta, final DataBuffer buffer) throws ExResultError {
+        int count;
+        long[] finids;
+        try {
+            count = buffer.getInt2();
+            if (count < 1 || count > cmdSlots.length) {
+                throw new ExResultError(RESULT_WRONGVALUE, "Неверное кол-во команд! {count=%d}", count);
+            }
+            finids = new long[count];
+            for (int i = 0; i < count; i++) finids[i] = buffer.getLong();
+        } catch (ExResultError ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new ExResultError(RESULT_WRONGFORMAT, "Ошибка при разборе запроса - %s!", ExError.exMsg(ex));
+        }
+
+        // Синхронизация межпотокового доступа к слотам и очереди.
+        synchronized (cmdSlots) {
+            int found = 0;
+            for (int i = 0; i < count; i++) {
+                Slot s = slotIndex.get(new IDKey(meta.senderID, meta.commandID + i));
+                if (s == null) continue; // Уже освобождён.
+                if (s.state != Slot.State.RESULT) {
+                    throw new ExResultError(RESULT_RESULTNOTREADY, "Слот не в режиме хранения результата! " +
+                            "{cmdid=%d state=%s}", meta.commandID + i, s.state.name());
+                }
+                if (s.execmeta.meta.finalizationID != finids[i]) {
+                    throw new ExResultError(RESULT_WRONGFINALIZATIONID, "Неверный ID финализации! " +
+                            "{cmdid=%d finid=%d msgfinid=%d}", meta.commandID + i, s.execmeta.meta.finalizationID, finids[i]);
                 }
+                found++;
             }
-            // Не нашли совпадений.
-            throw new ExResultError(RESULT_COMMANDNOTFOUND, "Нет слота с данной командой!");
+            if (found == 0) {
+                throw new ExResultError(RESULT_COMMANDNOTFOUND, "Нет слотов с данными командами!");
+            }
+            for (int i = 0; i < count; i++) {
+                Slot s = slotIndex.get(new IDKey(meta.senderID, meta.commandID + i));
+                if (s != null) {
+                    recordFinalize(s);
+                    freeSlot(s); // Освобождаем слот!
+                }
+            }
+            meta.buildAnswer(buffer.reset()).flipBuffer();
+            notifyProcessor(); // Уведомляем процессор.
+        }
+    }
+
+    /**
+     * Выполнение запроса: "CANCEL".
+     * <p>
+     * Команда в очереди удаляется сразу (CANCEL_DEQUEUED), отложенный запрос её результата завершается ошибкой.
+     * Присоединённая к исполняемой команда отсоединяется - также CANCEL_DEQUEUED. Исполняемой команде передаётся запрос
+     * на отмену (CANCEL_REQUESTED): флаг слота и вызов commandCancel(), результат - как обычно, по завершении
+     * исполнения. Если к исполняемой команде присоединены команды других отправителей - исполнение не прерывается
+     * (результат нужен им, CANCEL_SHARED). Для исполненной команды отменять нечего (CANCEL_COMPLETED).
+     *
+     * @param meta   Метаданные.
+     * @param buffer Буфер.
+     * @throws ExResultError
+     */
+    @Override
+    protected void requestCancel(final Meta meta, final DataBuffer buffer) throws ExResultError {
+        IDKey key = new IDKey(meta.senderID, meta.commandID);
+        int res;
+        // Синхронизация межпотокового доступа к слотам и очереди.
+        synchronized (cmdSlots) {
+            Slot s = slotIndex.get(key);
+            if (s == null) {
+                throw new ExResultError(RESULT_COMMANDNOTFOUND, "Нет слота с данной командой!");
+            }
+            switch (s.state) {
+                case QUEUE:
+                    freeSlot(s);
+                    cancelResultWaiter(key);
+                    notifyProcessor(); // Уведомляем процессор.
+                    res = CANCEL_DEQUEUED;
+                    break;
+                case EXECUTE:
+                    Slot leader = findLeader(s);
+                    if (leader != null) { // Присоединённая команда - отсоединяем, исполнение не затрагиваем.
+                        leader.followers.remove(s);
+                        s.execmeta.meta.executeTimeout = 0; // Результат не сохраняется.
+                        finishSlot(s);
+                        freeSlot(s);
+                        cancelResultWaiter(key);
+                        notifyProcessor(); // Уведомляем процессор.
+                        res = CANCEL_DEQUEUED;
+                    } else if (s.followers == null || s.followers.isEmpty()) {
+                        s.isCancelRequested = true;
+                        commandCancel(s);
+                        res = CANCEL_REQUESTED;
+                    } else {
+                        res = CANCEL_SHARED;
+                    }
+                    break;
+                default:
+                    res = CANCEL_COMPLETED;
+            }
+            logger.infof("CANCEL {cmdid=%d result=%d}", meta.commandID, res);
+        }
+        meta.buildAnswer(buffer.reset()).put(res).flipBuffer();
+    }
+
+    /** Поиск исполняемого слота, к которому присоединён слот (null - не присоединён). Только под блокировкой! */
+    private Slot findLeader(final Slot slot) {
+        for (Slot s : coalesceLeaders) {
+            if (s.followers != null && s.followers.contains(slot)) return s;
+        }
+        return null;
+    }
+
+    /**
+     * Завершение отложенного запроса GETRESULT отменённой команды (если есть) - отсылка ответа "команда не найдена".
+     * Вызывать только синхронизированно на cmdSlots!
+     */
+    private void cancelResultWaiter(final IDKey key) {
+        ResultWaiter w = resultWaiters.get(key);
+        if (w == null || w.count != 1) return; // Запрос результатов пакета завершится по готовности остальных.
+        resultWaiters.remove(key);
+        expiryWheel.cancel(w.expiryTimer);
+        try {
+            w.meta.answerErrorID = RESULT_COMMANDNOTFOUND;
+            w.meta.answerErrorMessage = "Команда отменена!";
+            w.meta.buildAnswer(answerBuffer.reset()).flipBuffer();
+            sendAnswer(w.address, w.meta, answerBuffer);
+        } catch (Exception ex) {
+            logger.errorf("Ошибка формирования ответа - %s!", ExError.exMsg(ex));
         }
     }
 
@@ -479,35 +1762,49 @@ public abstract class QueuedRCService extends RCService {
      */
     private AtomicReference<ProcessorState> processorState = new AtomicReference<>(ProcessorState.STOPPED);
 
-    /** Возвращает ближайщую команду, которую можно обработать. */
+    /**
+     * Возвращает ближайщую команду, которую можно обработать (с учётом режима обработки). Вызывать только
+     * синхронизированно на cmdSlots!
+     * <p>
+     * Из команд, которые можно запустить, выбирается команда с наименьшей меткой планирования (взвешенная
+     * справедливая очередь по классам приоритета, метка уменьшается по мере ожидания - см. setAgingTime()). При
+     * равных метках - первая поставленная в очередь. Запустить можно: в режиме SERIAL_FOR_CLIENT - первую в очереди
+     * команду отправителя без исполняемых команд; в режиме SERIAL_FOR_ALL - первую в очереди команду любого
+     * отправителя, если не исполняется ни одна команда; в режиме PARALLEL_FOR_ALL - любую.
+     */
     protected Slot peekQueue() {
-        switch (prcMode) {
-            case SERIAL_FOR_ALL:
-                // Проверяем на отсутствие исполнения команд среди слотов и если нет - возвращаем первый элемент.
-                for (Slot s : cmdSlots) {
-                    if (s != null && s.state == Slot.State.EXECUTE) return null;
-                }
-                return cmdQueue.peek(); // Берем самый первый элемент.
-
-            case SERIAL_FOR_CLIENT:
-                // Если нужно - пробегаем всю очередь.
-                for (Slot qs : cmdQueue) {
-                    // Проверяем на отсутствие исполнения команд клиента среди слотов и если нет - возвращаем элемент.
-                    boolean isexec = false;
-                    for (Slot s : cmdSlots) {
-                        if (s != null && isSameSender(qs, s.execmeta.meta) && s.state == Slot.State.EXECUTE) {
-                            isexec = true;
-                            break;
-                        }
-                    }
-                    if (!isexec) return qs; // Если нет исполняемых этого клиента - возвращаем.
+        if (readyQueue.isEmpty()) return null;
+        long now = System.currentTimeMillis();
+        int aging = agingTime;
+        Slot best = null;
+        long bestkey = 0;
+        if (prcMode == ProcessingMode.SERIAL_FOR_CLIENT) {
+            for (Slot head : readyQueue) {
+                long key = scheduleKey(head, now, aging);
+                if (best == null || key < bestkey || (key == bestkey && head.seq < best.seq)) {
+                    best = head;
+                    bestkey = key;
                 }
-                return null;
-
-            case PARALLEL_FOR_ALL:
-                return cmdQueue.peek(); // Берем самый первый элемент.
+            }
+            return best;
         }
-        return null;
+        // Одна общая группа: сравниваем первых кандидатов классов приоритета (в классе у первого - наименьшая метка).
+        for (TreeSet<Slot> c : readyQueue.first().group.candidates) {
+            if (c.isEmpty()) continue;
+            Slot s = c.first();
+            long key = scheduleKey(s, now, aging);
+            if (best == null || key < bestkey || (key == bestkey && s.seq < best.seq)) {
+                best = s;
+                bestkey = key;
+            }
+        }
+        return best;
+    }
+
+    /** Метка планирования команды с учётом старения (меньше - раньше). */
+    private static long scheduleKey(Slot slot, long now, int aging) {
+        if (aging <= 0) return slot.finishTag;
+        return slot.finishTag - (now - slot.queueTime) * WFQ_COST / aging;
     }
 
 
@@ -517,31 +1814,44 @@ public abstract class QueuedRCService extends RCService {
         processorState.set(ProcessorState.READY);
 
         while (!isTerminating()) {
-            Slot slot = null;
+            Slot slot;
+            long delay;
             // Синхронизация межпотокового доступа к слотам и очереди.
             synchronized (cmdSlots) {
-                // Проверяем в цикле слоты на исполнение.
-                while (!isTerminating() && slot == null) {
-                    slot = peekQueue(); // Проверяем очередь на наличие команд для исполнения.
-                    logger.infof("peekQueue(%s)", slot == null ? "null" : slot.toString());
-                    if (slot != null) {
-                        cmdQueue.remove(slot); // По дизайну в очереди должны находиться только слоты в состоянии QUEUE.
-                        slot.state = Slot.State.EXECUTE;
-                    } else {
-                        try {
-                            logger.info("wait");
-                            cmdSlots.wait();
-                        } catch (InterruptedException ignore) { // Реагируем на прерывание штатно.
-                        }
-                        logger.info("stop wait");
-                    }
+                // Освобождаем слоты с истекшими таймаутами, отвечаем на отложенные запросы с истекшим ожиданием.
+                long now = System.currentTimeMillis();
+                expiryWheel.advance(now);
+                slot = peekQueue(); // Проверяем очередь на наличие команд для исполнения.
+                if (slot != null && !startSlot(slot)) slot = null;
+                // Ожидание ограничено ближайшим сроком таймеров колеса (если таймеры есть).
+                delay = expiryWheel.nextTimerDelay(now);
+            }
+            if (slot == null) {
+                // Ожидание изменений в слотах (notifyProcessor()) или срока таймера колеса.
+                if (delay > 0) {
+                    LockSupport.parkNanos(this, delay * 1000000L);
+                } else {
+                    LockSupport.park(this);
                 }
+                Thread.interrupted(); // Прерывание только будит процессор (выход - по isTerminating()).
+                continue;
             }
             if (!isTerminating() && slot != null) {
                 processorState.set(ProcessorState.PROCESSING);
                 Slot f_slot = slot;
-                slot.cmdThread = new Thread(() -> commandExecutionThreadBody(f_slot));
-                slot.cmdThread.start();
+                try {
+                    executor.execute(slot.execmeta.meta.senderID, () -> commandExecutionThreadBody(f_slot));
+                } catch (Exception ex) { // Исполнитель отказал (остановлен) - команда не будет исполнена.
+                    logger.errorf("Ошибка запуска команды на исполнение - %s!", ExError.exMsg(ex));
+                    synchronized (cmdSlots) {
+                        slot.execmeta.buffer.reset().flip();
+                        finishFollowers(slot, "Ошибка запуска команды на исполнение!");
+                        slot.execmeta.meta.executeTimeout = 0; // Результат не сохраняется.
+                        finishSlot(slot);
+                        freeSlot(slot);
+                        notifyProcessor();
+                    }
+                }
                 processorState.set(ProcessorState.READY);
             }
         }
@@ -554,40 +1864,93 @@ public abstract class QueuedRCService extends RCService {
      * завершение слота.
      */
     private void commandExecutionThreadBody(Slot slot) {
+        slot.cmdThread = Thread.currentThread();
         logger.infof("Выполнение команды: %s", slot.toString());
         String err = null;
+        long started = System.nanoTime();
+        slot.execStartNanos = started;
         try {
             commandExecutionBody(slot);
         } catch (Exception ex) {
             err = ex.getMessage();
         }
+        long nanos = System.nanoTime() - started;
+        LatencySeries ls = slot.metrics;
+        if (ls != null) {
+            ls.record(LatencyStage.QUEUE_EXECUTE, started - slot.queueNanos);
+            ls.record(LatencyStage.EXECUTE_RESULT, nanos);
+        }
         // Изменяем состояние.
         // Синхронизация межпотокового доступа к слотам и очереди.
         synchronized (cmdSlots) {
-            slot.execmeta.resultTime = System.currentTimeMillis();
-            if (slot.execmeta.meta.executeTimeout == 0) {
-                slot.state = Slot.State.FREE; // Освобождаем сразу - минуя ожидание финализации, cmdID не нужен.
-            } else {
-                slot.state = Slot.State.RESULT;
-                // Задаём cmdID для последующей финализации результата!
-                slot.execmeta.meta.finalizationID = generateFinalizationID();
-                if (err != null) {
-                    slot.execmeta.meta.answerErrorID = RESULT_ERROR;
-                    slot.execmeta.meta.answerErrorMessage = err;
-                }
-                // Даже если таймаут уже истёк - результат сохраняем. Он будет доступен до следующего вызова
-                // EXECUTE, который почистит все просроченные слоты в соответствии с режимом очереди.
-            }
+            slot.execStartNanos = 0;
+            RttEstimator e = serviceTimes.get(slot.commandType);
+            if (e == null) serviceTimes.put(slot.commandType, e = new RttEstimator(0, 0, Integer.MAX_VALUE));
+            e.sample(nanos);
+            finishFollowers(slot, err); // До завершения - слот может быть сразу освобождён.
+            completeSlot(slot, err);
             notifyProcessor(); // Уведомляем процессор.
         }
         logger.infof("Завершение выполнения команды: %s", slot.toString());
     }
 
+    /**
+     * Завершение исполнения команды слота: перевод в хранение результата (или освобождение, если результат не
+     * хранится), отправка уведомления и ответа на отложенный запрос. Результат должен быть в буфере слота. Вызывать
+     * только синхронизированно на cmdSlots!
+     *
+     * @param slot Слот.
+     * @param err  Текст ошибки исполнения (null - без ошибки).
+     */
+    private void completeSlot(final Slot slot, final String err) {
+        slot.execmeta.resultTime = System.currentTimeMillis();
+        slot.resultNanos = System.nanoTime();
+        if (slot.execmeta.meta.executeTimeout == 0) {
+            finishSlot(slot);
+            freeSlot(slot); // Освобождаем сразу - минуя ожидание финализации, cmdID не нужен.
+        } else {
+            // Задаём cmdID для последующей финализации результата (до смены состояния - см. finishSlot())!
+            slot.execmeta.meta.finalizationID = generateFinalizationID();
+            if (err != null) {
+                slot.execmeta.meta.answerErrorID = RESULT_ERROR;
+                slot.execmeta.meta.answerErrorMessage = err;
+            }
+            finishSlot(slot);
+            journalSlot(slot);
+        }
+        // Отправляем результат не дожидаясь запроса GETRESULT (или отвечаем на отложенный запрос).
+        if (slot.state == Slot.State.RESULT && slot.execmeta.meta.requestType == RequestType.EXECUTE_NOTIFY) {
+            sendResultNotify(slot);
+        }
+        completeResultWaiter(slot);
+    }
+
+    /**
+     * Завершение команд, присоединённых к исполненной: результат исполненной команды копируется в их слоты. Вызывать
+     * только синхронизированно на cmdSlots и до завершения слота исполненной команды!
+     *
+     * @param leader Слот исполненной команды.
+     * @param err    Текст ошибки исполнения (null - без ошибки).
+     */
+    private void finishFollowers(final Slot leader, final String err) {
+        if (leader.followers == null || leader.followers.isEmpty()) return;
+        for (Slot f : leader.followers) {
+            String ferr = err;
+            try {
+                f.execmeta.buffer.reset().putArea(leader.execmeta.buffer).flip();
+            } catch (RuntimeException ex) {
+                f.execmeta.buffer.reset().flip();
+                ferr = "Результат не помещается в буфер слота!";
+            }
+            completeSlot(f, ferr);
+        }
+        leader.followers.clear();
+    }
+
     /** Уведомлление процессора о изменении в слотах (возможно появилась возможность запустить ожидающую команду). */
     private void notifyProcessor() {
-        synchronized (cmdSlots) {
-            cmdSlots.notifyAll();
-        }
+        Thread t = prcThread;
+        if (t != null) LockSupport.unpark(t);
     }
 
     /**
@@ -604,19 +1967,80 @@ public abstract class QueuedRCService extends RCService {
      * параметрах её получения, объект команды.
      */
     protected static class Slot {
-        /** Состояния слота. Только для внутренних нужд класса! */
-        private State state;
+        /** Атомарное изменение состояния слота. */
+        private static final AtomicReferenceFieldUpdater<Slot, State> STATE =
+                AtomicReferenceFieldUpdater.newUpdater(Slot.class, State.class, "state");
+
+        /** Состояния слота. Только для внутренних нужд класса! Изменяется только через casState()! */
+        private volatile State state;
+        /**
+         * Поколение слота - увеличивается при каждом освобождении. Служит для проверки того, что результат, прочитанный
+         * без блокировки, не был освобождён (и перезаписан) во время чтения.
+         */
+        private volatile long generation;
         /** Информация о команде для процессора. */
         public ExecMeta execmeta;
-        /** Поток исполнения команды. Если null - исполняется в потоке процессора. */
+        /** Поток исполнения команды (назначается исполнителем команд при запуске). */
         public Thread cmdThread;
+        /** Ключ команды в индексе слотов (null - слот свободен). */
+        private IDKey key;
+        /** Группа последовательного исполнения (null - слот свободен). */
+        private SlotGroup group;
+        /** Порядковый номер постановки в очередь (для соблюдения очерёдности исполнения). */
+        private long seq;
+        /** Метка планирования (виртуальное время завершения, см. peekQueue()). */
+        private long finishTag;
+        /** Класс приоритета команды в очереди (номер в Priority). */
+        private int priorityClass;
+        /** Тип команды (для оценки времени исполнения, см. commandType()). */
+        private int commandType;
+        /** Оценка времени исполнения команды при постановке в очередь (мсек, см. SlotGroup.queuedWork). */
+        private double workEstimate;
+        /** Время начала исполнения команды (наносек), если = 0 - не исполняется (или ожидает потока исполнителя). */
+        private volatile long execStartNanos;
+        /** Время постановки в очередь (для старения метки планирования). */
+        private long queueTime;
+        /** Серия гистограмм задержек команды (null - задержки не учитываются, см. latencySeries()). */
+        private LatencySeries metrics;
+        /** Время получения запроса команды (наносек, с точностью до мсек - см. requestExecute()). */
+        private long receiveNanos;
+        /** Время постановки в очередь или присоединения к исполняемой команде (наносек). */
+        private long queueNanos;
+        /** Время готовности результата (наносек). */
+        private long resultNanos;
+        /** ID первой команды пакета (для одиночной команды - ID самой команды). */
+        private long batchFirstID;
+        /** Таймер истечения таймаута слота (создаётся при первом использовании слота). */
+        private TimingWheel.Timer expiryTimer;
+        /** Данные объединяемой команды (null - команда не объединяется, см. isCoalescable()). */
+        private byte[] coalesceKey;
+        /** Слоты команд, присоединённых к исполняемой команде слота (создаётся при первом присоединении). */
+        private ArrayList<Slot> followers;
+        /** Признак запроса на отмену исполняемой команды (см. requestCancel()). */
+        private volatile boolean isCancelRequested;
+        /** Признак слота, восстановленного из журнала (результат-ошибка отдаётся с ID финализации). */
+        private boolean isRestored;
 
         public Slot(int buffersize) {
             this.state = State.FREE;
+            this.generation = 0;
             this.execmeta = new ExecMeta(buffersize);
             this.cmdThread = null;
         }
 
+        /**
+         * Признак запроса на отмену команды клиентом. Обработчик длительной команды должен проверять его и, по
+         * возможности, прерывать исполнение (результат - как обычно, с кодом отмены устройства).
+         */
+        public boolean isCancelRequested() {
+            return isCancelRequested;
+        }
+
+        /** Атомарная смена состояния слота (если текущее состояние равно ожидаемому). */
+        private boolean casState(State expect, State update) {
+            return STATE.compareAndSet(this, expect, update);
+        }
+
         @Override
         public String toString() {
             return String.format("State=%s execMeta={%s}", state.name(), execmeta.toString());
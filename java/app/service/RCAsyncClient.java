@@ -0,0 +1,511 @@
+/*
+ * Copyright (c) 2016. Aleksey Nikolaevich Dokshin. All right reserved.
+ * Contacts: dant.it@gmail.com, dokshin@list.ru.
+ */
+
+package app.service;
+
+import app.DataBuffer;
+import app.ExError;
+import app.FireCallback;
+import app.LoggerExt;
+import util.TimingWheel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static app.service.RCService.Meta;
+
+/**
+ * Асинхронный клиент для сервиса удаленного управления. В отличие от RCClient допускает множество одновременно
+ * ожидающих ответа запросов на одном канале: запросы отсылаются и ответы принимаются одним потоком клиента (на
+ * селекторе), ответы сопоставляются запросам по ID сообщения. Результаты запросов возвращаются как
+ * CompletableFuture.
+ * <p>
+ * ВНИМАНИЕ! Завершение CompletableFuture (и синхронные обработчики, добавленные к ним) выполняется в потоке клиента -
+ * блокирующие операции в них недопустимы (для них - асинхронные варианты обработчиков). Ответы, отсылаемые сервисом
+ * фрагментами, не поддерживаются (размер ответа ограничен размером датаграммы).
+ */
+public class RCAsyncClient extends Service {
+
+    private final LoggerExt logger;
+
+    private final int clientID;
+    private final InetSocketAddress address;
+    private final int maxmsgsize;
+
+    /** Канал для отправки запросов и приёма ответов (существует только во время работы клиента). */
+    private volatile DatagramChannel channel;
+    /** Селектор для ожидания ответов (существует только во время работы клиента). */
+    private volatile Selector selector;
+    /** Буфер для приёма ответов. Используется только потоком клиента! */
+    private final DataBuffer ioBuffer;
+
+    private final AtomicLong messageID = new AtomicLong(System.currentTimeMillis());
+    private final AtomicLong commandID = new AtomicLong(System.currentTimeMillis());
+
+    /** Объект для генерации CRC16 для сообщений и их проверки (тот же класс, что и у сервиса!). */
+    private final RCService.MessageCRC crc16 = new RCService.MessageCRC();
+
+    /** Задачи для исполнения потоком клиента (отправка запросов, постановка таймеров) - из любых потоков. */
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+    /** Запросы, ожидающие ответа, ключ - ID сообщения. Используется только потоком клиента! */
+    private final HashMap<Long, Request> pending;
+    /** Длительность тика колеса таймеров (мсек). */
+    private static final long TIMER_TICK_TIME = 10;
+    /** Кол-во ячеек колеса таймеров. */
+    private static final int TIMER_WHEEL_SIZE = 512;
+    /** Колесо таймеров: таймауты ответов и паузы между запросами результата. Используется только потоком клиента! */
+    private final TimingWheel timers;
+
+    /**
+     * Время ожидания результата сервисом при запросе GETRESULT (если > 0 - долгий опрос, иначе - периодические запросы
+     * с паузой RESULT_POLL_PAUSE).
+     */
+    private volatile int resultWaitTimeout = 0;
+    /** Пауза между запросами результата при периодическом опросе (мсек). */
+    private static final int RESULT_POLL_PAUSE = 30;
+
+    /** Запрос, ожидающий ответа. */
+    private static class Request {
+        /** Адрес сервиса. */
+        final InetSocketAddress address;
+        /** Метаданные запроса. */
+        final Meta meta;
+        /** Датаграмма запроса (с длиной и CRC16). */
+        final DataBuffer datagram;
+        /** Таймаут ожидания ответа (мсек). */
+        final int answerTimeout;
+        /** Результат запроса. */
+        final CompletableFuture<Answer> future;
+        /** Таймер истечения ожидания ответа. */
+        TimingWheel.Timer timer;
+
+        Request(InetSocketAddress address, Meta meta, DataBuffer datagram, int answertimeout) {
+            this.address = address;
+            this.meta = meta;
+            this.datagram = datagram;
+            this.answerTimeout = answertimeout;
+            this.future = new CompletableFuture<>();
+            this.timer = null;
+        }
+    }
+
+    /** Ответ на запрос. */
+    public static class Answer {
+        /** Метаданные ответа. */
+        public final Meta meta;
+        /** Данные ответа (тело ответа). */
+        public final DataBuffer body;
+
+        public Answer(Meta meta, DataBuffer body) {
+            this.meta = meta;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Конструктор.
+     *
+     * @param clientid   ID клиента (отправителя, см. Meta.checkSenderID()).
+     * @param address    Адрес сервиса (если null - запросы только с явным указанием адреса).
+     * @param maxmsgsize Максимальный размер сообщения.
+     */
+    public RCAsyncClient(int clientid, InetSocketAddress address, int maxmsgsize) {
+        super("RCAsyncClient-" + clientid);
+        Meta.checkSenderID(clientid);
+        this.logger = LoggerExt.getNewLogger("RCAsyncClient-" + clientid);
+        this.clientID = clientid;
+        this.address = address;
+        this.maxmsgsize = maxmsgsize;
+        this.channel = null;
+        this.selector = null;
+        this.ioBuffer = new DataBuffer(maxmsgsize);
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.pending = new HashMap<>();
+        this.timers = new TimingWheel(TIMER_WHEEL_SIZE, TIMER_TICK_TIME, System.currentTimeMillis());
+    }
+
+    /**
+     * Установка времени ожидания результата сервисом при запросе GETRESULT (долгий опрос).
+     *
+     * @param timeout Время ожидания (мсек), если = 0 - результат запрашивается периодически без ожидания.
+     */
+    public void setResultWaitTimeout(int timeout) {
+        this.resultWaitTimeout = Math.max(0, timeout);
+    }
+
+    /** Время ожидания результата сервисом при запросе GETRESULT. */
+    public int getResultWaitTimeout() {
+        return resultWaitTimeout;
+    }
+
+    /** ID клиента (отправителя). */
+    public int getClientID() {
+        return clientID;
+    }
+
+    /** Генерация cmdID для нового сообщения запроса. */
+    protected long generateMessageID() {
+        return messageID.addAndGet(1);
+    }
+
+    /** Генерация cmdID для новой команды. */
+    protected long generateCommandID() {
+        return commandID.addAndGet(1);
+    }
+
+    @Override
+    protected void fireOnStart() {
+        FireCallback.safe(super::fireOnStart);
+        if (!isTerminating()) {
+            try {
+                channel = DatagramChannel.open();
+                channel.configureBlocking(false);
+                selector = Selector.open();
+                channel.register(selector, SelectionKey.OP_READ);
+            } catch (Exception ex) {
+                logger.errorf("Ошибка создания UDP канала - %s!", ExError.exMsg(ex));
+                terminate();
+            }
+        }
+    }
+
+    @Override
+    protected void fireOnStop() {
+        try {
+            if (selector != null) {
+                selector.close();
+                selector = null;
+            }
+        } catch (Exception ignore) {
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        } catch (Exception ignore) {
+        }
+        // Ожидающие ответа запросы (и неисполненные задачи) завершаются ошибкой.
+        runTasks();
+        ArrayList<Request> list = new ArrayList<>(pending.values());
+        pending.clear();
+        timers.clear();
+        for (Request r : list) {
+            r.future.completeExceptionally(new ExTerminate("Клиент остановлен!"));
+        }
+        FireCallback.safe(super::fireOnStop);
+    }
+
+    @Override
+    protected void terminate() {
+        super.terminate();
+        wakeupSelector(); // Для досрочного выхода из ожидания ответов.
+    }
+
+    @Override
+    protected void halt() {
+        super.halt();
+        wakeupSelector(); // Для досрочного выхода из ожидания ответов.
+    }
+
+    /** Пробуждение потока клиента, ожидающего ответы на селекторе. */
+    private void wakeupSelector() {
+        Selector sel = selector;
+        if (sel != null) sel.wakeup();
+    }
+
+    /** Постановка задачи на исполнение потоком клиента. */
+    private void execute(Runnable task) {
+        tasks.add(task);
+        wakeupSelector();
+    }
+
+    /**
+     * Исполнение действия в потоке клиента с задержкой (по колесу таймеров, с точностью до тика). Действие не должно
+     * блокировать поток!
+     *
+     * @param delay  Задержка (мсек).
+     * @param action Действие.
+     */
+    protected void schedule(long delay, Runnable action) {
+        execute(() -> timers.schedule(new TimingWheel.Timer(action), System.currentTimeMillis() + delay));
+    }
+
+    /** Исполнение задач, поставленных для потока клиента. */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception ex) {
+                logger.errorf("Ошибка исполнения задачи - %s!", ExError.exMsg(ex));
+            }
+        }
+    }
+
+    /**
+     * Тело обработчика клиента. Исполняет задачи (отправка запросов), продвигает колесо таймеров и принимает ответы.
+     *
+     * @throws ExError
+     */
+    @Override
+    protected void serviceBody() throws ExError {
+        try {
+            while (!isTerminating()) {
+                long now = System.currentTimeMillis();
+                timers.advance(now);
+                runTasks();
+                // Ожидание ограничено ближайшим сроком таймеров колеса (если таймеры есть).
+                long delay = timers.nextTimerDelay(now);
+                selector.select(delay);
+                selector.selectedKeys().clear();
+                Thread.interrupted(); // Прерывание потока только будит селектор.
+                receiveAnswers();
+            }
+        } catch (IOException ex) {
+            logger.errorf("Ошибка IO - %s!", ExError.exMsg(ex));
+        } catch (Exception ex) {
+            logger.errorf("Ошибка клиента - %s!", ExError.exMsg(ex));
+        }
+    }
+
+    /**
+     * Отправка запроса сервису. Результат - ответ сервиса, или ошибка (ExRequestError, ExTimeout, ExTerminate).
+     *
+     * @param answertimeout Время ожидания ответа от сервиса.
+     * @param meta          Метаданные запроса.
+     * @param body          Данные запроса (тело запроса), копируются при вызове.
+     * @return Результат запроса.
+     */
+    public CompletableFuture<Answer> request(int answertimeout, Meta meta, DataBuffer body) {
+        return request(address, answertimeout, meta, body);
+    }
+
+    /**
+     * Отправка запроса сервису по указанному адресу. Результат - ответ сервиса, или ошибка (ExRequestError, ExTimeout,
+     * ExTerminate).
+     *
+     * @param address       Адрес сервиса.
+     * @param answertimeout Время ожидания ответа от сервиса.
+     * @param meta          Метаданные запроса.
+     * @param body          Данные запроса (тело запроса), копируются при вызове.
+     * @return Результат запроса.
+     */
+    public CompletableFuture<Answer> request(InetSocketAddress address, int answertimeout, Meta meta,
+                                             DataBuffer body) {
+        Request r;
+        try {
+            if (address == null) throw new ExError("Не указан адрес сервиса!");
+            DataBuffer dg = new DataBuffer(maxmsgsize);
+            dg.reset().shift(4); // оставляем для длины и CRC16.
+            meta.buildRequest(dg).putArea(body).flip();
+            int len = dg.length() - 4;
+            dg.putInt2At(0, len).putInt2At(2, crc16.calculate(dg, 4, len));
+            r = new Request(address, meta, dg, answertimeout);
+        } catch (Exception ex) {
+            CompletableFuture<Answer> f = new CompletableFuture<>();
+            f.completeExceptionally(new RCClient.ExRequestError(RCClient.ERR_REQ_BUILD,
+                    "Ошибка построения запроса - %s!", ExError.exMsg(ex)));
+            return f;
+        }
+        if (getState() != State.WORKING || isTerminating()) {
+            r.future.completeExceptionally(new ExTerminate("Клиент не работает!"));
+            return r.future;
+        }
+        execute(() -> sendRequest(r));
+        return r.future;
+    }
+
+    /** Отправка запроса и постановка таймера ожидания ответа. Только в потоке клиента! */
+    private void sendRequest(Request r) {
+        if (isTerminating() || channel == null) {
+            r.future.completeExceptionally(new ExTerminate("Клиент остановлен!"));
+            return;
+        }
+        try {
+            int sendsize = channel.send(r.datagram.rewind().getBB(), r.address);
+            if (sendsize != r.datagram.length()) {
+                throw new RCClient.ExRequestError(RCClient.ERR_REQ_SEND, "Ошибка отправки запроса для %s! " +
+                        "{отправлено %d из %d}", r.address, sendsize, r.datagram.length());
+            }
+            logger.infof("Отправлено в %s {meta={%s}}", r.address, r.meta.toString());
+        } catch (RCClient.ExRequestError ex) {
+            r.future.completeExceptionally(ex);
+            return;
+        } catch (Exception ex) {
+            r.future.completeExceptionally(new RCClient.ExRequestError(RCClient.ERR_REQ_SEND,
+                    "Ошибка отправки запроса - %s!", ExError.exMsg(ex)));
+            return;
+        }
+        r.timer = new TimingWheel.Timer(() -> {
+            if (pending.remove(r.meta.messageID) == r) {
+                r.future.completeExceptionally(new RCClient.ExTimeout("Истекло время получения ответа на запрос!"));
+            }
+        });
+        timers.schedule(r.timer, System.currentTimeMillis() + r.answerTimeout);
+        pending.put(r.meta.messageID, r);
+    }
+
+    /** Приём всех имеющихся ответов и завершение соответствующих им запросов. Только в потоке клиента! */
+    private void receiveAnswers() throws IOException {
+        while (!isTerminating()) {
+            SocketAddress from = channel.receive(ioBuffer.reset().getBB());
+            if (from == null) break;
+            try {
+                int len = ioBuffer.flip().length(); // После этого окно равно полученному пакету.
+                if (len < 4) {
+                    throw new ExError("Длина датаграммы меньше 4 байт! {len=%d}", len);
+                }
+                int msglen = ioBuffer.getInt2();
+                int msgcrc = ioBuffer.getInt2();
+                if (msglen != len - 4) {
+                    throw new ExError("Длина сообщения не совпадает с длиной в сообщении! {len=%d-4 msglen=%d}", len, msglen);
+                }
+                int crc = crc16.calculate(ioBuffer, 4, len - 4);
+                if (msgcrc != crc) {
+                    throw new ExError("Не совпадает контрольная сумма! [crc=0x%04X msgcrc=0x%04X}", crc, msgcrc);
+                }
+                Meta mm = new Meta();
+                mm.parseAnswer(ioBuffer.tail());
+
+                // Ответ сопоставляется запросу по ID сообщения, остальные ключевые поля должны совпадать.
+                Request r = pending.get(mm.messageID);
+                if (r == null || !r.address.equals(from) || mm.senderID != r.meta.senderID || mm.requestType != r.meta.requestType
+                        || mm.commandID != r.meta.commandID) {
+                    logger.infof("Пропущен ответ не на ожидающий запрос! {meta={%s}}", mm.toString());
+                    continue;
+                }
+                pending.remove(mm.messageID);
+                timers.cancel(r.timer);
+                DataBuffer body = new DataBuffer(Math.max(1, ioBuffer.tail().length()));
+                body.reset().putArea(ioBuffer).flip();
+                logger.infof("Получено от %s {meta={%s}}", from.toString(), mm.toString());
+                r.future.complete(new Answer(mm, body));
+
+            } catch (Exception ex) {
+                logger.errorf("Неверный формат сообщения - %s!", ExError.exMsg(ex));
+            }
+        }
+    }
+
+    /**
+     * Запрос состояния сервиса (GETSTATE).
+     *
+     * @param answertimeout Время ожидания ответа.
+     * @return Результат запроса.
+     */
+    public CompletableFuture<RCClient.ResultGetState> remoteGetState(int answertimeout) {
+        return remoteGetState(address, answertimeout);
+    }
+
+    /**
+     * Запрос состояния сервиса по указанному адресу (GETSTATE).
+     *
+     * @param address       Адрес сервиса.
+     * @param answertimeout Время ожидания ответа.
+     * @return Результат запроса.
+     */
+    public CompletableFuture<RCClient.ResultGetState> remoteGetState(InetSocketAddress address, int answertimeout) {
+        Meta meta = new Meta();
+        meta.senderID = clientID;
+        meta.messageID = generateMessageID();
+        meta.requestType = RCService.RequestType.GETSTATE;
+        return request(address, answertimeout, meta, new DataBuffer(0).reset().flip())
+                .thenApply(a -> new RCClient.ResultGetState(a.meta, a.body));
+    }
+
+    /**
+     * Выполнение команды и получение результата в течение таймаута (EXECUTE + GETRESULT + FINALIZE - аналогично
+     * RCClient.remoteExecute()).
+     *
+     * @param answertimeout  Таймаут ожидания ответов на запросы сервису.
+     * @param executetimeout Таймаут ожидания завершения выполнения удалённой команды (аналогично
+     *                       RCClient.remoteExecute()).
+     * @param buf            Буфер с данными команды (рабочее окно). По завершении в него помещается результат
+     *                       команды - до завершения буфер использовать нельзя!
+     * @return Результат запроса.
+     */
+    public CompletableFuture<RCClient.ResultExecute> remoteExecute(int answertimeout, int executetimeout,
+                                                                   DataBuffer buf) {
+        long dt = System.currentTimeMillis();
+        Meta meta = new Meta();
+        meta.senderID = clientID;
+        meta.messageID = generateMessageID();
+        meta.requestType = RCService.RequestType.EXECUTE;
+        meta.commandID = generateCommandID();
+        meta.executeTimeout = executetimeout;
+
+        CompletableFuture<RCClient.ResultExecute> f = new CompletableFuture<>();
+        request(answertimeout, meta, buf.rewind()).whenComplete((a, ex) -> {
+            if (ex != null) {
+                f.completeExceptionally(ex);
+            } else if (a.meta.answerErrorID != RCService.RESULT_OK || executetimeout == 0) {
+                buf.reset().flip();
+                f.complete(new RCClient.ResultExecute(a.meta));
+            } else {
+                requestResult(f, meta, dt, Math.abs(executetimeout), answertimeout, buf);
+            }
+        });
+        return f;
+    }
+
+    /**
+     * Запрос результата исполнения команды (GETRESULT) с повтором до получения результата или истечения таймаута, с
+     * последующей финализацией результата.
+     */
+    private void requestResult(CompletableFuture<RCClient.ResultExecute> f, Meta cmdmeta, long dt, int executetimeout,
+                               int answertimeout, DataBuffer buf) {
+        Meta meta = new Meta(cmdmeta);
+        meta.messageID = generateMessageID();
+        meta.requestType = RCService.RequestType.GETRESULT;
+        // Долгий опрос: сервис ответит по готовности результата, но не позже времени ожидания.
+        int waittime = (int) Math.min(resultWaitTimeout, dt + executetimeout - System.currentTimeMillis());
+        DataBuffer body = new DataBuffer(4).reset();
+        if (waittime > 0) body.putInt(waittime);
+        request(answertimeout + Math.max(0, waittime), meta, body.flip()).whenComplete((a, ex) -> {
+            if (ex != null) {
+                f.completeExceptionally(ex);
+                return;
+            }
+            if (a.meta.answerErrorID == RCService.RESULT_OK) {
+                buf.reset().putArea(a.body).flip();
+                finalizeResult(a.meta, answertimeout);
+                f.complete(new RCClient.ResultExecute(a.meta));
+                return;
+            }
+            if (a.meta.answerErrorID != RCService.RESULT_RESULTNOTREADY
+                    || System.currentTimeMillis() - dt > executetimeout) {
+                // Ошибка исполнения - с ID финализации: слот с результатом-ошибкой тоже освобождаем.
+                if (a.meta.finalizationID != 0) finalizeResult(a.meta, answertimeout);
+                buf.reset().flip();
+                f.complete(new RCClient.ResultExecute(a.meta)); // Ошибка или истекло время получения результата.
+                return;
+            }
+            Runnable next = () -> requestResult(f, cmdmeta, dt, executetimeout, answertimeout, buf);
+            if (waittime > 0) {
+                next.run();
+            } else { // Пауза перед повторным запросом - таймером потока клиента (без блокировки потока).
+                schedule(RESULT_POLL_PAUSE, next);
+            }
+        });
+    }
+
+    /** Финализация результата (FINALIZE). Результат запроса не влияет на результат команды. */
+    private void finalizeResult(Meta resmeta, int answertimeout) {
+        Meta meta = new Meta(resmeta);
+        meta.messageID = generateMessageID();
+        meta.requestType = RCService.RequestType.FINALIZE;
+        request(answertimeout, meta, new DataBuffer(0).reset().flip());
+    }
+}
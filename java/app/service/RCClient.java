@@ -9,11 +9,20 @@ import app.DataBuffer;
 import app.ExError;
 import app.LoggerExt;
 import util.CommonTools;
+import util.RttEstimator;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.DatagramPacket;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static app.service.RCService.Meta;
@@ -29,23 +38,309 @@ public class RCClient {
 
     private final int clientID;
 
-    private final DatagramChannel channel;
-    private final InetSocketAddress address;
+    /** Канал для UDP обмена (null - локальный транспорт). Пересоздаётся, если закрыт прерыванием потока. */
+    private DatagramChannel channel;
+    /** Пакет для ожидания ответа по UDP (блокирующий приём в ioBuffer с тайм-аутом сокета, без создания объектов). */
+    private final DatagramPacket waitPacket;
+    /** Селектор для ожидания ответов по локальному сокету (null - другой транспорт). */
+    private final Selector selector;
+    /** Канал разделяемой памяти (null - обмен по UDP). */
+    private final ShmChannel shm;
+    /** Файл локального сокета сервиса (null - обмен по UDP). */
+    private final File unixFile;
+    /** Соединение локального сокета (null - не установлено, устанавливается при отправке запроса). */
+    private UnixSocketTransport.Connection unixConnection;
+    /** Признак локального транспорта (разделяемая память, локальный сокет) - CRC16 не используется. */
+    private final boolean isLocalTransport;
+    private final SocketAddress address;
     private final DataBuffer ioBuffer;
-    protected final DataBuffer tmpBuffer; // Оставляем доступным для потомков - для доп.разбора!
+    /** Буфер с датаграммой текущего запроса (для повторной отправки). */
+    private final DataBuffer requestBuffer;
+    protected DataBuffer tmpBuffer; // Оставляем доступным для потомков - для доп.разбора! Растёт до maxAnswerSize.
 
     private AtomicLong messageID = new AtomicLong(System.currentTimeMillis());
     private AtomicLong commandID = new AtomicLong(System.currentTimeMillis());
 
+    /** Буфер для сброса ранее полученных датаграмм перед отправкой запроса. */
+    private final DataBuffer tmpReceiveBuffer;
+
+    /**
+     * Режим получения результата: true - результат отсылается сервисом сам по завершении исполнения (EXECUTE_NOTIFY),
+     * false - результат запрашивается периодически (EXECUTE + GETRESULT).
+     */
+    private volatile boolean isResultNotify = false;
+    /**
+     * Время ожидания уведомления о результате, после которого результат запрашивается явно (GETRESULT) - на случай
+     * потери датаграммы уведомления.
+     */
+    private volatile int notifyFallbackTimeout = 1000;
+    /**
+     * Время ожидания результата сервисом при запросе GETRESULT (если > 0, то сервис откладывает ответ до готовности
+     * результата, но не дольше этого времени). Если = 0 - результат запрашивается периодически.
+     */
+    private volatile int resultWaitTimeout = 0;
+    /** Метаданные ожидаемого уведомления о результате (ответ GETRESULT с messageID запроса EXECUTE_NOTIFY). */
+    private Meta notifyMeta;
+    /** Флаг получения ожидаемого уведомления до начала его ожидания (данные уведомления - в notifyBuffer). */
+    private boolean isNotifyReceived;
+    /** Буфер для данных уведомления о результате, полученного до начала его ожидания (растёт до maxAnswerSize). */
+    private DataBuffer notifyBuffer;
+
+    /** Пауза после последнего полученного фрагмента ответа, после которой запрашиваются недостающие фрагменты. */
+    private static final int FRAGMENT_GAP_TIMEOUT = 50;
+    /** Максимальное кол-во запросов недостающих фрагментов для одного ответа. */
+    private static final int FRAGMENT_MAX_REQUESTS = 5;
+    /**
+     * Максимальный размер ответа, собираемого из фрагментов (не меньше размера сообщения). Буфер сборки создаётся по
+     * размеру собираемого ответа - датаграммы клиента не должны вмещать весь ответ.
+     */
+    private volatile int maxAnswerSize;
+    /** Буфер для сборки ответа из фрагментов (создаётся при получении первого фрагмента, растёт до maxAnswerSize). */
+    private DataBuffer fragmentBuffer;
+    /** Флаги полученных фрагментов собираемого ответа. */
+    private boolean[] fragmentReceived;
+    /** ID сообщения собираемого ответа. */
+    private long fragmentMessageID;
+    /** Размер собираемого ответа. */
+    private int fragmentTotal;
+    /** Кол-во недостающих фрагментов собираемого ответа (если = 0 - ответ не собирается). */
+    private int fragmentsLeft;
+    /** Время получения последнего фрагмента (или последнего запроса недостающих фрагментов). */
+    private long fragmentTime;
+    /** Кол-во запросов недостающих фрагментов собираемого ответа. */
+    private int fragmentRequests;
+
+    /** Оценка времени отклика сервиса (RTT) и таймаута повторной отправки запроса (RTO). */
+    private final RttEstimator rtt;
+    /**
+     * Режим повторной отправки запросов: true - при отсутствии ответа в течение RTO запрос отправляется повторно с тем
+     * же ID сообщения (сервис отбрасывает дубликаты, отвечая ранее отосланным ответом), false - запрос отправляется
+     * один раз.
+     */
+    private volatile boolean isRetransmit = true;
+    /** Время следующей повторной отправки текущего запроса (если = 0 - повторная отправка не производится). */
+    private long retransmitTime;
+    /** Дополнительное время ожидания ответа на текущий запрос (время ожидания результата сервисом). */
+    private int retransmitWait;
+    /** Кол-во повторных отправок текущего запроса. */
+    private int retransmitCount;
+    /** Время отправки текущего запроса (наносек, для замера RTT). */
+    private long requestNanos;
+    /** Признак получения ответа на текущий запрос фрагментами (по нему RTT не замеряется). */
+    private boolean isAnswerAssembled;
+    /** Общее кол-во повторных отправок запросов. */
+    private final AtomicLong retransmitTotal = new AtomicLong(0);
+
+    /**
+     * Формат заголовка запросов (Meta.HEADER_FULL или Meta.HEADER_COMPACT). Компактный - только после согласования с
+     * сервисом (см. negotiateHeaderFormat()), т.к. старые сервисы его не разбирают.
+     */
+    private volatile int headerFormat = Meta.HEADER_FULL;
+
+    /**
+     * Класс приоритета команд (передаётся в запросах исполнения). Приоритет, отличный от NORMAL, старые сервисы не
+     * разбирают (запрос остаётся без ответа)!
+     */
+    private volatile RCService.Priority commandPriority = RCService.Priority.NORMAL;
+
+    // Метаданные для повторного использования (чтобы цикл запросов не создавал мусора). Используются только под
+    // синхронизацией на клиенте (в remote*() методах)!
+    /** Метаданные запросов команды. */
+    private final Meta requestMeta = new Meta();
+    /** Метаданные запроса финализации. */
+    private final Meta finalizeMeta = new Meta();
+    /** Метаданные ожидаемого уведомления о результате (на них указывает notifyMeta). */
+    private final Meta notifyMetaBuffer = new Meta();
+    /** Метаданные для разбора полученных ответов. */
+    private final Meta answerMeta = new Meta();
+
 
     public RCClient(int clientid, InetSocketAddress address, int maxmsgsize) throws IOException {
+        this(clientid, address, null, null, maxmsgsize);
+    }
+
+    /**
+     * Конструктор клиента для сервиса на этом же компьютере - обмен через локальный сокет (AF_UNIX, Java 16+) вместо
+     * UDP (см. NetUDPService.setUnixSocket()). Логика запросов та же. Соединение устанавливается при отправке запроса
+     * (и восстанавливается после разрыва).
+     *
+     * @param clientid   ID клиента (отправителя, см. Meta.checkSenderID()).
+     * @param unixsocket Файл локального сокета сервиса.
+     * @param maxmsgsize Максимальный размер сообщения.
+     * @throws IOException
+     */
+    public RCClient(int clientid, File unixsocket, int maxmsgsize) throws IOException {
+        this(clientid, null, null, unixsocket, maxmsgsize);
+    }
+
+    /**
+     * Конструктор клиента для сервиса на этом же компьютере - обмен через канал разделяемой памяти вместо UDP (см.
+     * NetUDPService.addSharedMemoryChannel()). Логика запросов та же.
+     *
+     * @param clientid   ID клиента (отправителя, см. Meta.checkSenderID()).
+     * @param shm        Канал разделяемой памяти (созданный сервисом, см. ShmChannel.open()).
+     * @param maxmsgsize Максимальный размер сообщения.
+     * @throws IOException
+     */
+    public RCClient(int clientid, ShmChannel shm, int maxmsgsize) throws IOException {
+        this(clientid, null, shm, null, maxmsgsize);
+    }
+
+    private RCClient(int clientid, InetSocketAddress address, ShmChannel shm, File unixsocket, int maxmsgsize)
+            throws IOException {
+        Meta.checkSenderID(clientid);
         this.logger = LoggerExt.getNewLogger("RCClient-" + clientid);
         this.clientID = clientid;
-        this.channel = DatagramChannel.open();
-        this.channel.configureBlocking(false);
-        this.address = address;
+        this.shm = shm;
+        this.unixFile = unixsocket;
+        this.unixConnection = null;
+        this.isLocalTransport = shm != null || unixsocket != null;
+        if (shm != null) {
+            this.channel = null;
+            this.selector = null;
+            this.address = shm.getAddress();
+        } else if (unixsocket != null) {
+            this.channel = null;
+            this.selector = Selector.open();
+            this.address = new UnixSocketTransport.Address(unixsocket, 0);
+        } else {
+            this.channel = DatagramChannel.open();
+            this.channel.configureBlocking(false);
+            this.selector = null;
+            this.address = address;
+        }
+        // Локальный транспорт доставляет надёжно - повторная отправка не нужна.
+        this.isRetransmit = !isLocalTransport;
         this.ioBuffer = new DataBuffer(maxmsgsize);
+        this.waitPacket = new DatagramPacket(ioBuffer.buffer(), ioBuffer.arrayOffset(), ioBuffer.capacity());
+        this.requestBuffer = new DataBuffer(maxmsgsize);
         this.tmpBuffer = new DataBuffer(maxmsgsize);
+        this.tmpReceiveBuffer = new DataBuffer(maxmsgsize);
+        this.notifyBuffer = new DataBuffer(maxmsgsize);
+        this.maxAnswerSize = maxmsgsize;
+        this.rtt = new RttEstimator(200, 20, 2000);
+    }
+
+    /**
+     * Установка режима повторной отправки запросов. Сервис должен отбрасывать дубликаты запросов (отвечать на них
+     * ранее отосланным ответом)!
+     *
+     * @param isretransmit Режим: true - запрос повторяется при отсутствии ответа в течение RTO, false - нет.
+     * @param minrto       Минимальный RTO (мсек).
+     * @param maxrto       Максимальный RTO (мсек).
+     */
+    public void setRetransmit(boolean isretransmit, int minrto, int maxrto) {
+        this.isRetransmit = isretransmit;
+        this.rtt.setLimits(minrto, maxrto);
+    }
+
+    /** Режим повторной отправки запросов. */
+    public boolean isRetransmit() {
+        return isRetransmit;
+    }
+
+    /** Оценка времени отклика сервиса (для просмотра состояния). */
+    public RttEstimator getRttEstimator() {
+        return rtt;
+    }
+
+    /** Общее кол-во повторных отправок запросов. */
+    public long getRetransmitCount() {
+        return retransmitTotal.get();
+    }
+
+    /**
+     * Установка максимального размера ответа, собираемого из фрагментов (см. RCService.setMaxAnswerSize()). Буфер
+     * данных запроса (в который копируется ответ) должен вмещать ответ.
+     *
+     * @param size Максимальный размер ответа (не меньше размера сообщения).
+     */
+    public void setMaxAnswerSize(int size) {
+        this.maxAnswerSize = Math.max(ioBuffer.capacity(), size);
+    }
+
+    /** Максимальный размер ответа, собираемого из фрагментов. */
+    public int getMaxAnswerSize() {
+        return maxAnswerSize;
+    }
+
+    /**
+     * Установка класса приоритета для последующих команд (планирование исполнения сервисом, см.
+     * QueuedRCService.peekQueue()).
+     *
+     * @param priority Класс приоритета.
+     */
+    public void setCommandPriority(RCService.Priority priority) {
+        this.commandPriority = priority != null ? priority : RCService.Priority.NORMAL;
+    }
+
+    /** Класс приоритета команд. */
+    public RCService.Priority getCommandPriority() {
+        return commandPriority;
+    }
+
+    /** Формат заголовка запросов (Meta.HEADER_FULL или Meta.HEADER_COMPACT). */
+    public int getHeaderFormat() {
+        return headerFormat;
+    }
+
+    /**
+     * Согласование формата заголовка запросов с сервисом (запрос HELLO). Если сервис поддерживает компактный формат -
+     * далее запросы отсылаются в нём (ответы сервис строит в формате запроса). Если сервис не поддерживает запрос
+     * HELLO (старая версия - ответа нет или ответ с ошибкой) - остаётся исходный формат.
+     *
+     * @param answertimeout Время ожидания ответа.
+     * @return Принятый формат заголовка.
+     * @throws ExRequestError
+     */
+    public synchronized int negotiateHeaderFormat(int answertimeout) throws ExRequestError {
+        Meta meta = requestMeta.set(EMPTY_META);
+        meta.senderID = clientID;
+        meta.messageID = generateMessageID();
+        meta.requestType = RCService.RequestType.HELLO;
+        int format = Meta.HEADER_FULL;
+        try {
+            request(answertimeout, meta, tmpBuffer.reset().put(Meta.HEADER_COMPACT).flip());
+            if (meta.answerErrorID == RCService.RESULT_OK && tmpBuffer.remaining() > 0) {
+                format = tmpBuffer.get() == Meta.HEADER_COMPACT ? Meta.HEADER_COMPACT : Meta.HEADER_FULL;
+            }
+        } catch (ExTimeout ex) {
+            logger.infof("Нет ответа на согласование формата заголовка - исходный формат!");
+        }
+        headerFormat = format;
+        return format;
+    }
+
+    /**
+     * Установка режима получения результата исполнения команд. Сервис должен поддерживать запрос EXECUTE_NOTIFY!
+     *
+     * @param isnotify        Режим: true - результат отсылается сервисом сам по завершении исполнения, false - результат
+     *                        запрашивается периодически.
+     * @param fallbacktimeout Время ожидания уведомления, после которого результат запрашивается явно (мсек).
+     */
+    public void setResultNotify(boolean isnotify, int fallbacktimeout) {
+        this.isResultNotify = isnotify;
+        this.notifyFallbackTimeout = fallbacktimeout;
+    }
+
+    /** Режим получения результата: true - уведомлением от сервиса, false - периодическими запросами. */
+    public boolean isResultNotify() {
+        return isResultNotify;
+    }
+
+    /**
+     * Установка времени ожидания результата сервисом при запросе GETRESULT (долгий опрос). Сервис должен
+     * поддерживать отложенные запросы GETRESULT (иначе параметр игнорируется сервисом и опрос идёт как обычно)!
+     *
+     * @param timeout Время ожидания (мсек), если = 0 - результат запрашивается периодически без ожидания.
+     */
+    public void setResultWaitTimeout(int timeout) {
+        this.resultWaitTimeout = Math.max(0, timeout);
+    }
+
+    /** Время ожидания результата сервисом при запросе GETRESULT. */
+    public int getResultWaitTimeout() {
+        return resultWaitTimeout;
     }
 
     /** Объект для генерации CRC16 для сообщений и их проверки (тот же класс, что и у сервиса!). */
@@ -61,6 +356,11 @@ public class RCClient {
         return commandID.addAndGet(1);
     }
 
+    /** Генерация последовательных cmdID для пакета команд (возвращается ID первой команды). */
+    protected long generateCommandIDs(int count) {
+        return commandID.addAndGet(count) - count + 1;
+    }
+
     /** Ошибка при подготовке запроса. */
     public static final int ERR_REQ_BUILD = 1;
     /** Ошибка при отправке запроса. */
@@ -82,56 +382,147 @@ public class RCClient {
      * @throws RCService.ExResultError
      */
     private void request(int answertimeout, Meta meta, DataBuffer body) throws ExRequestError, ExTimeout {
+        request(answertimeout, 0, meta, body);
+    }
+
+    /**
+     * Отправка запроса сервису и получение ответа на запрос. При отсутствии ответа в течение RTO (плюс время ожидания
+     * сервисом) запрос повторяется с тем же ID сообщения, RTO при каждом повторе удваивается. По ответу на запрос без
+     * повторов уточняется оценка RTT (для запросов с ожиданием сервисом - не уточняется).
+     *
+     * @param answertimeout Время ожидания ответа от сервиса (включая время ожидания сервисом).
+     * @param waittime      Время ожидания сервисом (ответ может задерживаться сервисом на это время).
+     * @param meta          Метаданные запроса.
+     * @param body          Данные запроса (тело запроса).
+     */
+    private void request(int answertimeout, int waittime, Meta meta, DataBuffer body) throws ExRequestError, ExTimeout {
 
         long dt = System.currentTimeMillis();
 
+        // Согласование формата - всегда в исходном формате (сервис может не знать компактный).
+        meta.headerFormat = meta.requestType == RCService.RequestType.HELLO ? Meta.HEADER_FULL : headerFormat;
+        meta.priority = commandPriority; // Передаётся только в запросах исполнения.
         try {
-            ioBuffer.reset().shift(4); // оставляем для длины и CRC16.
-            meta.buildRequest(ioBuffer).putArea(body).flip();
-            int len = ioBuffer.length() - 4;
-            int crc = crc16.calculate(ioBuffer, 4, len);
-            ioBuffer.putInt2At(0, len).putInt2At(2, crc);
+            requestBuffer.reset().shift(4); // оставляем для длины и CRC16.
+            meta.buildRequest(requestBuffer).putArea(body).flip();
+            int len = requestBuffer.length() - 4;
+            int crc = isLocalTransport ? 0 : crc16.calculate(requestBuffer, 4, len); // Локально не проверяется.
+            requestBuffer.putInt2At(0, len).putInt2At(2, crc);
         } catch (Exception ex) {
             throw new ExRequestError(ERR_REQ_BUILD, "Ошибка построения запроса - %s!", ExError.exMsg(ex));
         }
 
         try {
             // Убираем из приёмного буфера все сообщения.
-            while (channel.receive(ioBuffer.getBB()) != null);
-            // Отправляем (должно уйти с первого раза - иначе ошибка!).
-            int sendsize = channel.send(ioBuffer.getBB(), address);
-            // Если не всё отправили - ошибка!
-            if (sendsize != ioBuffer.length()) {
-                throw new ExRequestError(ERR_REQ_SEND, "Ошибка отправки запроса для %s! {отправлено %d из %d}",
-                        address, sendsize, ioBuffer.length());
+            try {
+                while (receiveDatagram(tmpReceiveBuffer) != null);
+            } catch (IOException ex) {
+                if (unixFile == null) throw ex; // Разрыв локального сокета - соединение установится при отправке.
+            }
+            requestNanos = System.nanoTime();
+            sendRequest();
+            if (logger.isEnabled()) { // Проверка - чтобы не формировать аргументы при отключенном логе.
+                logger.infof("Отправлено в %s {meta={%s} datahex=%s",
+                        address, meta.toString(), body.getHexAt(0, body.length()));
             }
-            logger.infof("Отправлено в %s {meta={%s} datahex=%s",
-                    address, meta.toString(), body.getHexAt(0, body.length()));
         } catch (ExRequestError ex) {
             throw ex;
         } catch (Exception ex) {
             throw new ExRequestError(ERR_REQ_SEND, "Ошибка отправки запроса - %s!", ExError.exMsg(ex));
         }
 
-        String err = null;
+        answerError = null;
+        fragmentsLeft = 0;
+        retransmitCount = 0;
+        retransmitWait = Math.max(0, waittime);
+        retransmitTime = isRetransmit ? dt + rtt.getRto() + retransmitWait : 0;
+        isAnswerAssembled = false;
+        try {
+            if (!receiveAnswer(dt + answertimeout, meta, body)) {
+                if (answerError != null) {
+                    throw new ExRequestError(ERR_ANSW_PARSE, answerError);
+                } else {
+                    throw new ExTimeout("Истекло время получения ответа на запрос!");
+                }
+            }
+            // Алгоритм Карна: ответ на повторённый запрос не даёт достоверного замера.
+            if (retransmitCount == 0 && retransmitWait == 0 && !isAnswerAssembled) {
+                rtt.sample(System.nanoTime() - requestNanos);
+            }
+        } finally {
+            retransmitTime = 0;
+        }
+    }
 
+    /** Отправка (или повторная отправка) датаграммы текущего запроса. */
+    private void sendRequest() throws Exception {
+        // Отправляем (должно уйти с первого раза - иначе ошибка!).
+        int sendsize = sendDatagram(requestBuffer);
+        // Если не всё отправили - ошибка!
+        if (sendsize != requestBuffer.length()) {
+            throw new ExRequestError(ERR_REQ_SEND, "Ошибка отправки запроса для %s! {отправлено %d из %d}",
+                    address, sendsize, requestBuffer.length());
+        }
+    }
+
+    /**
+     * Повторная отправка текущего запроса (с тем же ID сообщения) при отсутствии ответа в течение RTO. RTO
+     * удваивается.
+     *
+     * @param now Текущее время.
+     */
+    private void retransmitRequest(long now) {
+        rtt.backoff();
+        retransmitCount++;
+        retransmitTotal.incrementAndGet();
+        retransmitTime = now + rtt.getRto() + retransmitWait;
+        try {
+            sendRequest();
+            if (logger.isEnabled()) {
+                logger.infof("Повторно отправлено в %s {повтор=%d rto=%d}", address, retransmitCount, rtt.getRto());
+            }
+        } catch (Exception ex) {
+            logger.errorf("Ошибка повторной отправки запроса - %s!", ExError.exMsg(ex));
+        }
+    }
+
+    /** Текст ошибки разбора последней битой датаграммы при ожидании ответа (null - ошибок не было). */
+    private String answerError;
+
+    /**
+     * Ожидание ответа на запрос. Датаграммы, не относящиеся к запросу (запоздавшие ответы на прошлые запросы), а также
+     * битые датаграммы - пропускаются. Если во время ожидания приходит ожидаемое уведомление о результате (см.
+     * notifyMeta) - оно сохраняется для последующей обработки. Ответ, пришедший фрагментами, собирается (при паузе в
+     * получении фрагментов - недостающие фрагменты запрашиваются повторно).
+     *
+     * @param deadline Время окончания ожидания.
+     * @param meta     Метаданные запроса (при получении ответа заполняются данными ответа).
+     * @param body     Буфер для данных ответа (тела ответа).
+     * @return Результат: true - ответ получен, false - истекло время ожидания.
+     * @throws ExRequestError
+     */
+    private boolean receiveAnswer(long deadline, Meta meta, DataBuffer body) throws ExRequestError {
+        long wait = 0; // Первая попытка - без ожидания.
         while (true) {
             SocketAddress client;
             try {
-                client = channel.receive(ioBuffer.reset().getBB());
+                client = receiveDatagram(ioBuffer, wait);
             } catch (Exception ex) {
                 throw new ExRequestError(ERR_ANSW_RECEIVE, "Ошибка получения ответа - %s!", ExError.exMsg(ex));
             }
+            wait = 0;
 
             if (client == null) {
-                if (System.currentTimeMillis() - dt > answertimeout) {
-                    if (err != null) {
-                        throw new ExRequestError(ERR_ANSW_PARSE, err);
-                    } else {
-                        throw new ExTimeout("Истекло время получения ответа на запрос!");
-                    }
-                }
-                CommonTools.safeInterruptedSleep(10); // Если нет пакетов - ожидаем.
+                long now = System.currentTimeMillis();
+                if (now > deadline) return false;
+                if (fragmentsLeft > 0 && now - fragmentTime > FRAGMENT_GAP_TIMEOUT) requestMissingFragments(now);
+                // Пока ответ собирается из фрагментов - запрос не повторяем (недостающие фрагменты запрашиваются).
+                if (retransmitTime > 0 && fragmentsLeft == 0 && now >= retransmitTime) retransmitRequest(now);
+                // Если нет пакетов - следующий приём с ожиданием, но не дольше ближайшего события по времени.
+                wait = deadline - now + 1;
+                if (fragmentsLeft > 0) wait = Math.min(wait, fragmentTime + FRAGMENT_GAP_TIMEOUT + 1 - now);
+                if (retransmitTime > 0 && fragmentsLeft == 0) wait = Math.min(wait, retransmitTime - now);
+                wait = Math.max(1, wait);
 
             } else {
                 try {
@@ -146,57 +537,306 @@ public class RCClient {
                     if (msglen != len - 4) {
                         throw new ExRequestError(ERR_ANSW_PARSE, "Длина сообщения не совпадает с длиной в сообщении! {len=%d-4 msglen=%d}", len, msglen);
                     }
-                    // Проверяем контрольную сумму.
-                    int crc = crc16.calculate(ioBuffer, 4, len - 4);
+                    // Проверяем контрольную сумму (для локального транспорта - не проверяется).
+                    int crc = isLocalTransport ? msgcrc : crc16.calculate(ioBuffer, 4, len - 4);
                     if (msgcrc != crc) {
                         throw new ExRequestError(ERR_ANSW_PARSE, "Не совпадает контрольная сумма! [crc=0x%04X msgcrc=0x%04X}", crc, msgcrc);
                     }
 
                     // Если сообщение не битое - парсим метаданные!
-                    Meta mm = new Meta();
+                    Meta mm = answerMeta;
                     mm.parseAnswer(ioBuffer.tail()); // Окно от тек.позиции и до конца данных.
 
-                    logger.infof("Получено от %s {meta={%s} datahex=%s}",
-                            client.toString(), mm.toString(), ioBuffer.getHexAt(ioBuffer.pos(), ioBuffer.remaining()));
+                    if (logger.isEnabled()) {
+                        logger.infof("Получено от %s {meta={%s} datahex=%s}", client.toString(), mm.toString(),
+                                ioBuffer.getHexAt(ioBuffer.pos(), ioBuffer.remaining()));
+                    }
+
+                    DataBuffer src = ioBuffer;
+                    if (mm.requestType == RCService.RequestType.FRAGMENT) {
+                        if (!isFragmentFor(mm, meta)) {
+                            if (logger.isEnabled()) {
+                                logger.infof("Пропущен фрагмент не текущего ответа! {meta={%s}}", mm.toString());
+                            }
+                            continue;
+                        }
+                        if (mm.answerErrorID != RCService.RESULT_OK) { // Недостающие фрагменты получить невозможно.
+                            fragmentsLeft = 0;
+                            answerError = String.format("Ошибка получения фрагментов ответа - %s!", mm.answerErrorMessage);
+                            return false;
+                        }
+                        if (!putFragment(mm)) continue; // Ответ собран не полностью.
+                        // Ответ собран - разбираем как обычный.
+                        src = fragmentBuffer.area(0, fragmentTotal);
+                        isAnswerAssembled = true;
+                        mm.parseAnswer(src); // Метаданные фрагмента больше не нужны.
+                    }
 
                     // Сравниваем поля запроса и ответа - должны совпадать!
-                    if (mm.senderID != meta.senderID) {
-                        throw new ExRequestError(ERR_ANSW_PARSE, "Не совпадает запрос и ответ - senderID!");
-                    }
-                    if (mm.messageID != meta.messageID) {
-                        throw new ExRequestError(ERR_ANSW_PARSE, "Не совпадает запрос и ответ - messageID!");
+                    if (isAnswerFor(mm, meta)) {
+                        copyAnswer(mm, meta, body, src);
+                        return true;
                     }
-                    if (mm.requestType != meta.requestType) {
-                        throw new ExRequestError(ERR_ANSW_PARSE, "Не совпадает запрос и ответ - requestType!");
+                    // Уведомление о результате, пришедшее раньше, чем начато его ожидание - сохраняем.
+                    if (notifyMeta != null && meta != notifyMeta && isAnswerFor(mm, notifyMeta)) {
+                        int size = src.tail().length();
+                        if (notifyBuffer.capacity() < size) notifyBuffer = new DataBuffer(size); // Собранный ответ.
+                        copyAnswer(mm, notifyMeta, notifyBuffer, src);
+                        isNotifyReceived = true;
+                        continue;
                     }
-                    if (mm.commandID != meta.commandID) {
-                        throw new ExRequestError(ERR_ANSW_PARSE, "Не совпадает запрос и ответ - commandID!");
+                    if (logger.isEnabled()) {
+                        logger.infof("Пропущен ответ не на текущий запрос! {meta={%s}}", mm.toString());
                     }
-                    meta.finalizationID = mm.finalizationID;
-                    meta.answerErrorID = mm.answerErrorID;
-                    meta.answerErrorMessage = mm.answerErrorMessage;
-
-                    // Обрабатываем команду.
-                    int datasize = ioBuffer.tail().length();
-                    body.reset();
-                    if (datasize > 0) body.putArea(ioBuffer);
-                    body.flip();
 
                 } catch (ExRequestError ex) {
                     logger.errorf("Неверный формат сообщения - %s!", ExError.exMsg(ex));
-                    //throw ex;
-                    err = String.format("Неверный формат сообщения - %s!", ExError.exMsg(ex));
+                    answerError = String.format("Неверный формат сообщения - %s!", ExError.exMsg(ex));
 
                 } catch (Exception ex) {
                     logger.errorf("Ошибка при разборе сообщения - %s!", ExError.exMsg(ex));
-                    //throw new ExRequestError(ERR_ANSW_PARSE, "Неверный формат сообщения - %s!", ExError.exMsg(ex));
-                    err = String.format("Ошибка при разборе сообщения - %s!", ExError.exMsg(ex)); //throw ex;
+                    answerError = String.format("Ошибка при разборе сообщения - %s!", ExError.exMsg(ex));
                 }
-                break;
             }
         }
     }
 
+    /**
+     * Отправка датаграммы (окно буфера: [2] длина, [2] CRC16, сообщение). Через канал разделяемой памяти передаётся
+     * только сообщение.
+     *
+     * @param dg Буфер с датаграммой.
+     * @return Кол-во отправленных байт (для канала разделяемой памяти: 0 - нет места в кольце).
+     */
+    private int sendDatagram(DataBuffer dg) throws IOException {
+        if (shm != null) return shm.requests.offer(dg, 4, dg.length() - 4) ? dg.length() : 0;
+        if (unixFile != null) {
+            if (unixConnection == null) {
+                SocketChannel sc = UnixSocketTransport.connect(unixFile);
+                sc.register(selector, SelectionKey.OP_READ);
+                unixConnection = new UnixSocketTransport.Connection(sc, (UnixSocketTransport.Address) address,
+                        ioBuffer.capacity());
+            }
+            try {
+                if (unixConnection.write(dg, 4, dg.length() - 4)) return dg.length();
+                throw new IOException("Буфер сокета заполнен - запрос не отправлен!");
+            } catch (IOException ex) {
+                closeUnixConnection();
+                throw ex;
+            }
+        }
+        return channel.send(dg.rewind().getBB(), address);
+    }
+
+    /** Закрытие соединения локального сокета (будет установлено заново при отправке запроса). */
+    private void closeUnixConnection() {
+        if (unixConnection != null) {
+            unixConnection.close();
+            unixConnection = null;
+        }
+    }
+
+    /**
+     * Приём датаграммы без ожидания (в буфер с начала, позиция - после данных). Сообщение из канала разделяемой памяти
+     * дополняется длиной (CRC16 = 0) - для единообразного разбора.
+     *
+     * @param dst Буфер для датаграммы.
+     * @return Адрес отправителя или null, если датаграмм нет.
+     */
+    private SocketAddress receiveDatagram(DataBuffer dst) throws IOException, ExError {
+        if (shm != null) {
+            int len = shm.answers.poll(dst.reset(), 4);
+            if (len < 0) return null;
+            dst.putInt2(len).putInt2(0).shift(len);
+            return address;
+        }
+        if (unixFile != null) {
+            if (unixConnection == null) return null;
+            int len;
+            try {
+                if (unixConnection.fill() < 0) throw new IOException("Соединение закрыто сервисом!");
+                len = unixConnection.next(dst.reset(), 4);
+            } catch (IOException | ExError ex) {
+                closeUnixConnection();
+                throw ex;
+            }
+            if (len < 0) return null;
+            dst.putInt2(len).putInt2(0).shift(len);
+            return address;
+        }
+        return channel.receive(dst.reset().getBB());
+    }
+
+    /**
+     * Приём датаграммы с ожиданием (в буфер с начала, позиция - после данных).
+     *
+     * @param dst     Буфер для датаграммы.
+     * @param timeout Время ожидания (мсек), 0 - без ожидания.
+     * @return Адрес отправителя или null, если датаграмм нет.
+     */
+    private SocketAddress receiveDatagram(DataBuffer dst, long timeout) throws IOException, ExError {
+        if (timeout > 0) {
+            if (channel != null && dst == ioBuffer) return receiveDatagramUDP(timeout);
+            waitDatagram(timeout);
+        }
+        return receiveDatagram(dst);
+    }
+
+    /**
+     * Блокирующий приём датаграммы UDP в ioBuffer с тайм-аутом сокета (в отличие от Selector.select() не создаёт
+     * объектов). Прерывание потока, как и при ожидании паузой, не завершает ожидание ответа: канал, закрытый
+     * прерыванием, пересоздаётся (ответ на запрос будет получен после его повторной отправки).
+     *
+     * @param timeout Время ожидания (мсек).
+     * @return Адрес отправителя (без лога - адрес сервиса, фактический не запрашивается) или null, если датаграмм нет.
+     */
+    private SocketAddress receiveDatagramUDP(long timeout) throws IOException {
+        if (Thread.interrupted()) return null; // Иначе канал будет закрыт сразу.
+        DatagramPacket p = waitPacket;
+        try {
+            channel.configureBlocking(true);
+            try {
+                channel.socket().setSoTimeout((int) Math.min(timeout, Integer.MAX_VALUE));
+                p.setLength(ioBuffer.capacity());
+                channel.socket().receive(p);
+            } finally {
+                if (channel.isOpen()) channel.configureBlocking(false);
+            }
+        } catch (SocketTimeoutException ex) {
+            return null;
+        } catch (ClosedByInterruptException ex) {
+            Thread.interrupted();
+            logger.warning("Канал закрыт прерыванием потока - пересоздаётся!");
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            return null;
+        }
+        ioBuffer.reset().shift(p.getLength());
+        return logger.isEnabled() ? p.getSocketAddress() : address;
+    }
+
+    /**
+     * Ожидание поступления сообщения в канал разделяемой памяти или локальный сокет (или истечения времени ожидания).
+     *
+     * @param timeout Время ожидания (мсек).
+     */
+    private void waitDatagram(long timeout) {
+        if (shm != null) {
+            shm.answers.await(timeout);
+            return;
+        }
+        try {
+            selector.select(timeout);
+            selector.selectedKeys().clear();
+        } catch (Exception ex) {
+            CommonTools.safeInterruptedSleep(10);
+        }
+    }
+
+    /** Проверка соответствия метаданных ответа метаданным запроса (ключевые поля должны совпадать). */
+    private static boolean isAnswerFor(Meta answer, Meta request) {
+        return answer.senderID == request.senderID && answer.messageID == request.messageID
+                && answer.requestType == request.requestType && answer.commandID == request.commandID;
+    }
+
+    /**
+     * Перенос данных ответа (в буфере-источнике, текущая позиция - после метаданных) в метаданные и буфер запроса.
+     */
+    private void copyAnswer(Meta answer, Meta request, DataBuffer body, DataBuffer src) {
+        request.finalizationID = answer.finalizationID;
+        request.answerErrorID = answer.answerErrorID;
+        request.answerErrorMessage = answer.answerErrorMessage;
+        request.retryAfter = answer.retryAfter;
+
+        int datasize = src.tail().length();
+        if (body == tmpBuffer && body.capacity() < datasize) body = tmpBuffer = new DataBuffer(datasize); // Собранный ответ.
+        body.reset();
+        if (datasize > 0) body.putArea(src);
+        body.flip();
+    }
+
+    /** Проверка принадлежности фрагмента ответу на запрос (или ожидаемому уведомлению о результате). */
+    private boolean isFragmentFor(Meta fragment, Meta request) {
+        if (fragment.senderID != request.senderID) return false;
+        return fragment.messageID == request.messageID
+                || (notifyMeta != null && fragment.messageID == notifyMeta.messageID);
+    }
+
+    /**
+     * Помещение фрагмента ответа (тело фрагмента - в ioBuffer от тек.позиции) в собираемый ответ. Если фрагмент
+     * относится к другому ответу - сборка начинается заново (предыдущий несобранный ответ отбрасывается).
+     *
+     * @param fragment Метаданные фрагмента.
+     * @return Результат: true - ответ собран полностью (в fragmentBuffer), false - нет.
+     * @throws ExRequestError При неверном формате фрагмента.
+     */
+    private boolean putFragment(Meta fragment) throws ExRequestError {
+        int idx = ioBuffer.getInt2();
+        int count = ioBuffer.getInt2();
+        int total = ioBuffer.getInt();
+        int offset = ioBuffer.getInt();
+        int len = ioBuffer.remaining();
+        if (total > maxAnswerSize || idx >= count || offset + len > total) {
+            throw new ExRequestError(ERR_ANSW_PARSE, "Неверный фрагмент ответа! {idx=%d count=%d total=%d offset=%d len=%d}",
+                    idx, count, total, offset, len);
+        }
+        if (fragmentsLeft == 0 || fragmentMessageID != fragment.messageID || fragmentTotal != total
+                || fragmentReceived.length != count) {
+            if (fragmentBuffer == null || fragmentBuffer.capacity() < total) fragmentBuffer = new DataBuffer(total);
+            fragmentMessageID = fragment.messageID;
+            fragmentTotal = total;
+            fragmentReceived = new boolean[count];
+            fragmentsLeft = count;
+            fragmentRequests = 0;
+        }
+        fragmentTime = System.currentTimeMillis();
+        if (!fragmentReceived[idx]) {
+            fragmentBuffer.reset().putArrayAt(offset, ioBuffer.buffer(),
+                    ioBuffer.arrayOffset() + ioBuffer.offset() + ioBuffer.pos(), len);
+            fragmentReceived[idx] = true;
+            fragmentsLeft--;
+        }
+        return fragmentsLeft == 0;
+    }
+
+    /**
+     * Запрос недостающих фрагментов собираемого ответа (FRAGMENT с ID сообщения исходного запроса). После
+     * FRAGMENT_MAX_REQUESTS запросов - фрагменты больше не запрашиваются (ожидание ответа до истечения таймаута).
+     *
+     * @param now Текущее время.
+     */
+    private void requestMissingFragments(long now) {
+        fragmentTime = now;
+        if (fragmentRequests >= FRAGMENT_MAX_REQUESTS) return;
+        fragmentRequests++;
+        DataBuffer buf = tmpReceiveBuffer; // Во время ожидания ответа не используется.
+        try {
+            Meta fm = new Meta();
+            fm.senderID = clientID;
+            fm.messageID = fragmentMessageID;
+            fm.requestType = RCService.RequestType.FRAGMENT;
+            fm.headerFormat = headerFormat;
+            buf.reset().shift(4); // оставляем для длины и CRC16.
+            fm.buildRequest(buf);
+            int n = Math.min(fragmentsLeft, (buf.remaining() - 2) / 2);
+            buf.putInt2(n);
+            for (int i = 0; i < fragmentReceived.length && n > 0; i++) {
+                if (!fragmentReceived[i]) {
+                    buf.putInt2(i);
+                    n--;
+                }
+            }
+            buf.flip();
+            int len = buf.length() - 4;
+            buf.putInt2At(0, len).putInt2At(2, isLocalTransport ? 0 : crc16.calculate(buf, 4, len));
+            sendDatagram(buf);
+            logger.infof("Запрошены недостающие фрагменты ответа! {messageID=0x%X left=%d}", fragmentMessageID,
+                    fragmentsLeft);
+        } catch (Exception ex) {
+            logger.errorf("Ошибка запроса недостающих фрагментов ответа - %s!", ExError.exMsg(ex));
+        }
+    }
+
     /**
      * Исключение выбрасываемое при неверном формате сообщения.
      */
@@ -240,11 +880,21 @@ public class RCClient {
         /** Время последней остановки сервиса. */
         public long lastStopTime;
 
+        public ResultGetState() {
+            super();
+        }
+
         public ResultGetState(Meta src, DataBuffer buffer) {
-            super(src);
+            set(src, buffer);
+        }
+
+        /** Заполнение результата из метаданных и данных ответа (для повторного использования объекта). */
+        public ResultGetState set(Meta src, DataBuffer buffer) {
+            set(src);
             lastStartTime = buffer.getLong();
             lastAutoRestartTime = buffer.getLong();
             lastStopTime = buffer.getLong();
+            return this;
         }
 
         public ResultGetState(ResultGetState src) {
@@ -255,13 +905,25 @@ public class RCClient {
         }
     }
 
-    public synchronized ResultGetState remoteGetState(int answertimeout) throws ExRequestError, ExTimeout {
-        Meta meta = new Meta();
+    public ResultGetState remoteGetState(int answertimeout) throws ExRequestError, ExTimeout {
+        return remoteGetState(answertimeout, new ResultGetState());
+    }
+
+    /**
+     * Запрос состояния сервиса с заполнением переданного объекта результата (без создания объектов).
+     *
+     * @param answertimeout Время ожидания ответа.
+     * @param result        Объект для результата.
+     * @return Результат (переданный объект).
+     */
+    public synchronized ResultGetState remoteGetState(int answertimeout, ResultGetState result)
+            throws ExRequestError, ExTimeout {
+        Meta meta = requestMeta.set(EMPTY_META);
         meta.senderID = clientID;
         meta.messageID = generateMessageID();
         meta.requestType = RCService.RequestType.GETSTATE;
         request(answertimeout, meta, tmpBuffer.reset().flip());
-        return new ResultGetState(meta, tmpBuffer);
+        return result.set(meta, tmpBuffer);
     }
 
     public static class ResultStop extends Meta {
@@ -282,11 +944,18 @@ public class RCClient {
     }
 
     public static class ResultExecute extends Meta {
+        public ResultExecute() {
+            super();
+        }
+
         public ResultExecute(Meta src) {
             super(src);
         }
     }
 
+    /** Пустые метаданные (для сброса повторно используемых метаданных). */
+    private static final Meta EMPTY_META = new Meta();
+
     /**
      * Выполнение команды и получение результата в течение таймаута.
      *
@@ -295,56 +964,286 @@ public class RCClient {
      *                       только при свободной очереди (сам таймаут берется по модулю). Если ноль, то результат не
      *                       запрашивается.
      */
-    public synchronized ResultExecute remoteExecute(int answertimeout, int executetimeout, DataBuffer buf)
+    public ResultExecute remoteExecute(int answertimeout, int executetimeout, DataBuffer buf)
             throws ExRequestError, ExTimeout {
+        return remoteExecute(answertimeout, executetimeout, buf, new ResultExecute());
+    }
+
+    /**
+     * Выполнение команды и получение результата в течение таймаута с заполнением переданного объекта результата. При
+     * повторном использовании объекта результата полный цикл EXECUTE - GETRESULT - FINALIZE не создаёт объектов
+     * (при отключенном логе и без ошибок).
+     *
+     * @param answertimeout  Таймаут ожидания ответов на команды сервиса.
+     * @param executetimeout Таймаут ожидания завершения выполнения удалённой команды (см. выше).
+     * @param buf            Буфер с данными команды, по завершении - с результатом команды.
+     * @param result         Объект для результата.
+     * @return Результат (переданный объект).
+     */
+    public synchronized ResultExecute remoteExecute(int answertimeout, int executetimeout, DataBuffer buf,
+                                                    ResultExecute result) throws ExRequestError, ExTimeout {
 
         long dt = System.currentTimeMillis();
+        boolean isnotify = isResultNotify && executetimeout != 0;
 
-        // Выполнение запроса: EXECUTE.
-        Meta meta = new Meta();
+        // Выполнение запроса: EXECUTE (или EXECUTE_NOTIFY).
+        Meta meta = requestMeta.set(EMPTY_META);
         meta.senderID = clientID;
         meta.messageID = generateMessageID();
-        meta.requestType = RCService.RequestType.EXECUTE;
+        meta.requestType = isnotify ? RCService.RequestType.EXECUTE_NOTIFY : RCService.RequestType.EXECUTE;
         meta.commandID = generateCommandID();
         meta.executeTimeout = executetimeout;
-        request(answertimeout, meta, buf.rewind());
-        buf.reset().flip();
-        if (meta.answerErrorID != RCService.RESULT_OK) {
-            return new ResultExecute(meta);
-        }
-        if (executetimeout != 0) {
-            executetimeout = Math.abs(executetimeout); // Берем по модулю - реальный таймаут на исполнение команды.
-            // Выполнение запроса: GETRESULT.
-            while (true) {
-                meta.messageID = generateMessageID();
-                meta.requestType = RCService.RequestType.GETRESULT;
-                request(answertimeout, meta, buf.reset().flip());
-                if (meta.answerErrorID == RCService.RESULT_OK) {
-                    break; // Результат получен.
-                }
-                if (meta.answerErrorID != RCService.RESULT_RESULTNOTREADY) {
-                    return new ResultExecute(meta); // Какая-то ошибка помимо "результат не готов".
-                }
-                if (System.currentTimeMillis() - dt > executetimeout) {
-                    return new ResultExecute(meta); // Истекло время получения результата.
+        if (isnotify) {
+            // Уведомление может прийти и раньше ответа на сам запрос - поэтому ожидаем его сразу.
+            notifyMeta = notifyMetaBuffer.set(meta);
+            notifyMeta.requestType = RCService.RequestType.GETRESULT;
+            isNotifyReceived = false;
+        }
+        try {
+            request(answertimeout, meta, buf.rewind());
+            buf.reset().flip();
+            if (meta.answerErrorID != RCService.RESULT_OK) {
+                return (ResultExecute) result.set(meta);
+            }
+            if (executetimeout != 0) {
+                executetimeout = Math.abs(executetimeout); // Берем по модулю - реальный таймаут на исполнение команды.
+                // Ожидание уведомления о результате или выполнение запроса: GETRESULT.
+                while (true) {
+                    int waittime = 0;
+                    if (!isnotify || !waitResultNotify(dt + executetimeout, meta, buf)) {
+                        meta.messageID = generateMessageID();
+                        meta.requestType = RCService.RequestType.GETRESULT;
+                        // Долгий опрос: сервис ответит по готовности результата, но не позже времени ожидания.
+                        waittime = (int) Math.min(resultWaitTimeout, dt + executetimeout - System.currentTimeMillis());
+                        buf.reset();
+                        if (waittime > 0) buf.putInt(waittime);
+                        request(answertimeout + Math.max(0, waittime), waittime, meta, buf.flip());
+                    }
+                    if (meta.answerErrorID == RCService.RESULT_OK) {
+                        break; // Результат получен.
+                    }
+                    if (meta.answerErrorID != RCService.RESULT_RESULTNOTREADY) {
+                        // Какая-то ошибка помимо "результат не готов". Ошибка исполнения - с ID финализации: слот с
+                        // результатом-ошибкой тоже освобождаем.
+                        if (meta.finalizationID != 0) finalizeResult(answertimeout, meta);
+                        return (ResultExecute) result.set(meta);
+                    }
+                    if (System.currentTimeMillis() - dt > executetimeout) {
+                        return (ResultExecute) result.set(meta); // Истекло время получения результата.
+                    }
+                    // Пауза перед повторным запросом результата (при уведомлении или долгом опросе - пауза это
+                    // ожидание результата сервисом).
+                    if (!isnotify && waittime <= 0) CommonTools.safeInterruptedSleep(30);
                 }
-                CommonTools.safeInterruptedSleep(30); // Пауза перед повторным запросом результата.
             }
+        } finally {
+            notifyMeta = null;
+        }
+        if (executetimeout != 0) finalizeResult(answertimeout, meta);
+        return (ResultExecute) result.set(meta);
+    }
 
-            // Выполнение запроса: FINALIZATION.
-            // Даже если он не удастся - не должен влиять на результат (т.к. команда выполнена и результат получен).
-            try {
-                Meta fmeta = new Meta(meta);
-                fmeta.messageID = generateMessageID();
-                fmeta.requestType = RCService.RequestType.FINALIZE;
-                request(answertimeout, fmeta, tmpBuffer.reset().flip());
-                if (fmeta.answerErrorID == RCService.RESULT_COMMANDNOTFOUND) {
-                    fmeta.answerErrorID = RCService.RESULT_OK;
-                }
-            } catch (Exception ignore) {
+    /**
+     * Выполнение запроса: FINALIZATION - освобождение слота с результатом (ID финализации - из ответа GETRESULT).
+     * Даже если он не удастся - не должен влиять на результат (т.к. команда выполнена и результат получен).
+     */
+    private void finalizeResult(int answertimeout, Meta meta) {
+        try {
+            Meta fmeta = finalizeMeta.set(meta);
+            fmeta.messageID = generateMessageID();
+            fmeta.requestType = RCService.RequestType.FINALIZE;
+            request(answertimeout, fmeta, tmpBuffer.reset().flip());
+        } catch (Exception ignore) {
+        }
+    }
+
+    public static class ResultCancel extends Meta {
+        /** Результат отмены (RCService.CANCEL_*), если = -1 - запрос не выполнен (см. answerErrorID). */
+        public final int cancelResult;
+
+        public ResultCancel(Meta src, DataBuffer buffer) {
+            super(src);
+            this.cancelResult = src.answerErrorID == RCService.RESULT_OK && buffer.remaining() > 0 ? buffer.get() : -1;
+        }
+    }
+
+    /**
+     * Отмена команды (например, после истечения таймаута remoteExecute() - чтобы брошенная команда не занимала
+     * очередь или устройство). ID команды - из результата исполнения (ResultExecute.commandID).
+     *
+     * @param answertimeout Таймаут ожидания ответа.
+     * @param commandid     ID отменяемой команды.
+     */
+    public synchronized ResultCancel remoteCancel(int answertimeout, long commandid) throws ExRequestError, ExTimeout {
+        Meta meta = new Meta();
+        meta.senderID = clientID;
+        meta.messageID = generateMessageID();
+        meta.requestType = RCService.RequestType.CANCEL;
+        meta.commandID = commandid;
+        request(answertimeout, meta, tmpBuffer.reset().flip());
+        return new ResultCancel(meta, tmpBuffer);
+    }
+
+    public static class ResultMetrics extends Meta {
+        /** Гистограммы задержек обработки команд (пустой список - запрос не выполнен, см. answerErrorID). */
+        public final ArrayList<RCService.LatencyMetrics> metrics;
+        /** Признак полного снимка (false - часть гистограмм не поместилась в ответ). */
+        public final boolean isComplete;
+
+        public ResultMetrics(Meta src, DataBuffer buffer) throws ExError {
+            super(src);
+            this.metrics = new ArrayList<>();
+            this.isComplete = src.answerErrorID != RCService.RESULT_OK
+                    || RCService.LatencyMetrics.parse(buffer, metrics);
+        }
+    }
+
+    /**
+     * Получение гистограмм задержек обработки команд сервиса (для мониторинга). Снимок, не помещающийся в датаграмму,
+     * приходит фрагментами, если у сервиса включена фрагментация ответов (см. RCService.setMaxAnswerSize()), иначе -
+     * неполным (см. ResultMetrics.isComplete). Собранный ответ не может быть больше максимального размера ответа
+     * клиента (см. setMaxAnswerSize()).
+     *
+     * @param answertimeout Таймаут ожидания ответа.
+     */
+    public synchronized ResultMetrics remoteMetrics(int answertimeout) throws ExRequestError, ExTimeout {
+        Meta meta = new Meta();
+        meta.senderID = clientID;
+        meta.messageID = generateMessageID();
+        meta.requestType = RCService.RequestType.METRICS;
+        request(answertimeout, meta, tmpBuffer.reset().flip());
+        try {
+            return new ResultMetrics(meta, tmpBuffer);
+        } catch (Exception ex) {
+            throw new ExRequestError(ERR_ANSW_PARSE, "Ошибка разбора метрик - %s!", ExError.exMsg(ex));
+        }
+    }
+
+    public static class ResultExecuteBatch extends Meta {
+        /** Кол-во команд пакета. */
+        public final int count;
+
+        public ResultExecuteBatch(Meta src, int count) {
+            super(src);
+            this.count = count;
+        }
+    }
+
+    /**
+     * Выполнение пакета команд одним запросом (EXECUTE_BATCH) и получение результатов всех команд одним ответом в
+     * течение таймаута. Сервис должен поддерживать пакеты команд! Пакет с данными команд и ответ с результатами должны
+     * помещаться в сообщение.
+     *
+     * @param answertimeout  Таймаут ожидания ответов на команды сервиса.
+     * @param executetimeout Таймаут ожидания завершения выполнения всех команд пакета (аналогично remoteExecute()).
+     * @param bufs           Буферы с данными команд (рабочие окна), при получении результатов - в них помещаются
+     *                       результаты команд (в том же порядке).
+     */
+    public synchronized ResultExecuteBatch remoteExecuteBatch(int answertimeout, int executetimeout, DataBuffer... bufs)
+            throws ExRequestError, ExTimeout {
+
+        long dt = System.currentTimeMillis();
+        int count = bufs.length;
+
+        // Выполнение запроса: EXECUTE_BATCH.
+        Meta meta = new Meta();
+        meta.senderID = clientID;
+        meta.messageID = generateMessageID();
+        meta.requestType = RCService.RequestType.EXECUTE_BATCH;
+        meta.commandID = generateCommandIDs(count);
+        meta.executeTimeout = executetimeout;
+        try {
+            tmpBuffer.reset().putInt2(count);
+            for (DataBuffer b : bufs) tmpBuffer.putInt2(b.length()).putArea(b);
+            tmpBuffer.flip();
+        } catch (Exception ex) {
+            throw new ExRequestError(ERR_REQ_BUILD, "Ошибка построения пакета команд - %s!", ExError.exMsg(ex));
+        }
+        request(answertimeout, meta, tmpBuffer);
+        if (meta.answerErrorID != RCService.RESULT_OK || executetimeout == 0) {
+            return new ResultExecuteBatch(meta, count);
+        }
+
+        // Выполнение запроса: GETRESULT с кол-вом команд (результаты всех команд пакета).
+        executetimeout = Math.abs(executetimeout); // Берем по модулю - реальный таймаут на исполнение команд.
+        while (true) {
+            meta.messageID = generateMessageID();
+            meta.requestType = RCService.RequestType.GETRESULT;
+            int waittime = (int) Math.min(resultWaitTimeout, dt + executetimeout - System.currentTimeMillis());
+            tmpBuffer.reset().putInt(Math.max(0, waittime)).putInt2(count).flip();
+            request(answertimeout + Math.max(0, waittime), waittime, meta, tmpBuffer);
+            if (meta.answerErrorID == RCService.RESULT_OK) {
+                break; // Результаты получены.
             }
+            if (meta.answerErrorID != RCService.RESULT_RESULTNOTREADY) {
+                // Какая-то ошибка помимо "результат не готов". Ответ-ошибка на пакет - без ID финализации: ошибки
+                // исполнения команд пакета приходят в успешном ответе (и финализируются ниже вместе с остальными).
+                return new ResultExecuteBatch(meta, count);
+            }
+            if (System.currentTimeMillis() - dt > executetimeout) {
+                return new ResultExecuteBatch(meta, count); // Истекло время получения результата.
+            }
+            if (waittime <= 0) CommonTools.safeInterruptedSleep(30);
+        }
+
+        // Разбор результатов: [2] N, далее N раз: [8] ID финализации, [2] длина, [M] данные.
+        long[] finids = new long[count];
+        try {
+            int n = tmpBuffer.getInt2();
+            if (n != count) {
+                throw new ExRequestError(ERR_ANSW_PARSE, "Кол-во результатов не совпадает с кол-вом команд! " +
+                        "{count=%d n=%d}", count, n);
+            }
+            for (int i = 0; i < count; i++) {
+                finids[i] = tmpBuffer.getLong();
+                int len = tmpBuffer.getInt2();
+                bufs[i].reset().putArray(tmpBuffer.buffer(),
+                        tmpBuffer.arrayOffset() + tmpBuffer.offset() + tmpBuffer.pos(), len).flip();
+                tmpBuffer.shift(len);
+            }
+        } catch (ExRequestError ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new ExRequestError(ERR_ANSW_PARSE, "Ошибка разбора результатов пакета команд - %s!", ExError.exMsg(ex));
+        }
+
+        // Выполнение запроса: FINALIZATION (для всех команд пакета).
+        // Даже если он не удастся - не должен влиять на результат (т.к. команды выполнены и результаты получены).
+        try {
+            Meta fmeta = new Meta(meta);
+            fmeta.messageID = generateMessageID();
+            fmeta.requestType = RCService.RequestType.FINALIZE;
+            tmpBuffer.reset().putInt2(count);
+            for (long id : finids) tmpBuffer.putLong(id);
+            request(answertimeout, fmeta, tmpBuffer.flip());
+        } catch (Exception ignore) {
+        }
+        return new ResultExecuteBatch(meta, count);
+    }
+
+    /**
+     * Ожидание уведомления о результате исполнения команды (для EXECUTE_NOTIFY), но не дольше notifyFallbackTimeout.
+     *
+     * @param deadline Время окончания ожидания результата.
+     * @param meta     Метаданные команды (при получении уведомления заполняются данными ответа).
+     * @param buf      Буфер для результата.
+     * @return Результат: true - уведомление получено, false - нет (нужно запросить результат явно).
+     * @throws ExRequestError
+     */
+    private boolean waitResultNotify(long deadline, Meta meta, DataBuffer buf) throws ExRequestError {
+        if (isNotifyReceived) {
+            buf.reset().putArea(notifyBuffer).flip();
+        } else {
+            long now = System.currentTimeMillis();
+            long wait = Math.min(notifyFallbackTimeout, deadline - now);
+            if (wait <= 0 || !receiveAnswer(now + wait, notifyMeta, buf)) return false;
         }
-        return new ResultExecute(meta);
+        meta.messageID = notifyMeta.messageID;
+        meta.requestType = RCService.RequestType.GETRESULT;
+        meta.finalizationID = notifyMeta.finalizationID;
+        meta.answerErrorID = notifyMeta.answerErrorID;
+        meta.answerErrorMessage = notifyMeta.answerErrorMessage;
+        return true;
     }
 
     /** Исключение при возврате кода ошибки в ответе на запрос. */
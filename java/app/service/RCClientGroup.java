@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2016. Aleksey Nikolaevich Dokshin. All right reserved.
+ * Contacts: dant.it@gmail.com, dokshin@list.ru.
+ */
+
+package app.service;
+
+import app.ExError;
+import app.FireCallback;
+import app.LoggerExt;
+import util.RttEstimator;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Групповой клиент для мониторинга множества сервисов удаленного управления одним потоком: один канал, один селектор
+ * (см. RCAsyncClient). Периодически опрашивает состояние всех сервисов группы (GETSTATE). Запросы одного цикла опроса
+ * равномерно распределяются по периоду со случайным смещением (джиттером) - чтобы не отсылать их пачкой и не
+ * синхронизировать опросы разных групп.
+ * <p>
+ * Последнее полученное состояние и статистика хранятся в описателе сервиса (Endpoint). Обработчик состояний
+ * вызывается в потоке клиента - блокирующие операции в нём недопустимы!
+ */
+public class RCClientGroup extends RCAsyncClient {
+
+    private final LoggerExt logger;
+
+    /** Описатель сервиса группы. */
+    public static class Endpoint {
+        /** Адрес сервиса. */
+        public final InetSocketAddress address;
+        /** Оценка времени отклика сервиса (по запросам состояния). */
+        public final RttEstimator rtt;
+        /** Последнее полученное состояние сервиса (null - не было получено). */
+        private volatile RCClient.ResultGetState state;
+        /** Время получения последнего состояния. */
+        private volatile long stateTime;
+        /** Ошибка последнего запроса состояния (null - запрос успешен). */
+        private volatile Throwable error;
+        /** Кол-во запросов состояния подряд, завершившихся ошибкой. */
+        private volatile int failures;
+        /** Признак ожидания ответа на запрос состояния. Используется только потоком клиента! */
+        private boolean isPolling;
+
+        Endpoint(InetSocketAddress address) {
+            this.address = address;
+            this.rtt = new RttEstimator(200, 1, 10000);
+            this.state = null;
+            this.stateTime = 0;
+            this.error = null;
+            this.failures = 0;
+            this.isPolling = false;
+        }
+
+        /** Последнее полученное состояние сервиса (null - не было получено). */
+        public RCClient.ResultGetState getState() {
+            return state;
+        }
+
+        /** Время получения последнего состояния. */
+        public long getStateTime() {
+            return stateTime;
+        }
+
+        /** Ошибка последнего запроса состояния (null - запрос успешен). */
+        public Throwable getError() {
+            return error;
+        }
+
+        /** Кол-во запросов состояния подряд, завершившихся ошибкой. */
+        public int getFailures() {
+            return failures;
+        }
+
+        /** Признак доступности сервиса (последний запрос состояния успешен). */
+        public boolean isAvailable() {
+            return state != null && error == null;
+        }
+    }
+
+    /** Обработчик результатов запросов состояния. */
+    public interface StateListener {
+        /**
+         * Получен результат запроса состояния (вызывается в потоке клиента!).
+         *
+         * @param endpoint Описатель сервиса.
+         * @param state    Состояние сервиса (null - при ошибке).
+         * @param error    Ошибка запроса (null - при успехе).
+         */
+        void onState(Endpoint endpoint, RCClient.ResultGetState state, Throwable error);
+    }
+
+    /** Сервисы группы. */
+    private final ConcurrentHashMap<InetSocketAddress, Endpoint> endpoints;
+    /** Период опроса состояния (мсек), если = 0 - опрос не производится. */
+    private volatile int sweepPeriod;
+    /** Время ожидания ответа на запрос состояния (мсек). */
+    private volatile int answerTimeout;
+    /** Обработчик результатов запросов состояния. */
+    private volatile StateListener listener;
+    /** Генератор джиттера. Используется только потоком клиента! */
+    private final Random random;
+
+    /**
+     * Конструктор.
+     *
+     * @param clientid      ID клиента (отправителя).
+     * @param maxmsgsize    Максимальный размер сообщения.
+     * @param sweepperiod   Период опроса состояния сервисов (мсек), если = 0 - опрос не производится.
+     * @param answertimeout Время ожидания ответа на запрос состояния (мсек).
+     */
+    public RCClientGroup(int clientid, int maxmsgsize, int sweepperiod, int answertimeout) {
+        super(clientid, null, maxmsgsize);
+        this.logger = LoggerExt.getNewLogger("RCClientGroup-" + clientid);
+        this.endpoints = new ConcurrentHashMap<>();
+        this.sweepPeriod = Math.max(0, sweepperiod);
+        this.answerTimeout = answertimeout;
+        this.listener = null;
+        this.random = new Random();
+    }
+
+    /** Установка обработчика результатов запросов состояния. */
+    public void setStateListener(StateListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Добавление сервиса в группу (если уже есть - возвращается имеющийся описатель).
+     *
+     * @param address Адрес сервиса.
+     * @return Описатель сервиса.
+     */
+    public Endpoint addEndpoint(InetSocketAddress address) {
+        return endpoints.computeIfAbsent(address, Endpoint::new);
+    }
+
+    /**
+     * Удаление сервиса из группы.
+     *
+     * @param address Адрес сервиса.
+     * @return Описатель удалённого сервиса (null - не было в группе).
+     */
+    public Endpoint removeEndpoint(InetSocketAddress address) {
+        return endpoints.remove(address);
+    }
+
+    /** Описатель сервиса группы (null - нет в группе). */
+    public Endpoint getEndpoint(InetSocketAddress address) {
+        return endpoints.get(address);
+    }
+
+    /** Список описателей сервисов группы (копия). */
+    public ArrayList<Endpoint> getEndpoints() {
+        return new ArrayList<>(endpoints.values());
+    }
+
+    /** Кол-во сервисов в группе. */
+    public int size() {
+        return endpoints.size();
+    }
+
+    /** Период опроса состояния (мсек). */
+    public int getSweepPeriod() {
+        return sweepPeriod;
+    }
+
+    @Override
+    protected void fireOnStart() {
+        FireCallback.safe(super::fireOnStart);
+        if (!isTerminating() && sweepPeriod > 0) schedule(0, this::sweep);
+    }
+
+    /**
+     * Цикл опроса: запросы состояния всех сервисов группы распределяются по периоду со случайным смещением. Только в
+     * потоке клиента!
+     */
+    private void sweep() {
+        if (isTerminating()) return;
+        int period = sweepPeriod;
+        for (Endpoint ep : endpoints.values()) {
+            schedule(random.nextInt(period), () -> poll(ep));
+        }
+        schedule(period, this::sweep);
+    }
+
+    /**
+     * Запрос состояния сервиса. Если ответ на предыдущий запрос ещё ожидается - запрос не производится. Только в
+     * потоке клиента!
+     */
+    private void poll(Endpoint ep) {
+        if (isTerminating() || ep.isPolling || endpoints.get(ep.address) != ep) return;
+        ep.isPolling = true;
+        long t = System.nanoTime();
+        remoteGetState(ep.address, answerTimeout).whenComplete((st, e) -> {
+            ep.isPolling = false;
+            // Ошибка запроса приходит в зависимую стадию обёрнутой.
+            Throwable ex = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (ex == null) {
+                ep.rtt.sample(System.nanoTime() - t);
+                ep.state = st;
+                ep.stateTime = System.currentTimeMillis();
+                ep.error = null;
+                ep.failures = 0;
+            } else {
+                ep.error = ex;
+                ep.failures++;
+                logger.infof("Ошибка запроса состояния %s - %s!", ep.address, ExError.exMsg(ex));
+            }
+            StateListener l = listener;
+            if (l != null) {
+                try {
+                    l.onState(ep, st, ex);
+                } catch (Exception lex) {
+                    logger.errorf("Ошибка обработчика состояния - %s!", ExError.exMsg(lex));
+                }
+            }
+        });
+    }
+}
@@ -7,10 +7,15 @@ package app.service;
 
 import app.DataBuffer;
 import app.ExError;
+import app.FireCallback;
 import app.LoggerExt;
+import util.LatencyHistogram;
 
-import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -31,6 +36,35 @@ public abstract class RCService extends NetUDPService {
 
     private final LoggerExt logger;
 
+    /**
+     * Кэш ответов на изменяющие состояние запросы (EXECUTE, EXECUTE_NOTIFY, FINALIZE, STOP) по ключу: отправитель +
+     * ID сообщения. Повторно полученный запрос (перепосылка клиентом при потере ответа) не обрабатывается, а
+     * отсылается ранее сформированный ответ. Хранится в порядке добавления (старые - в начале). Изменяем только
+     * синхронизированно на нём!
+     */
+    private final LinkedHashMap<IDKey, CachedAnswer> answerCache;
+    /** Максимальное кол-во ответов в кэше (если = 0 - кэш отключен). */
+    private volatile int answerCacheSize;
+    /** Время хранения ответа в кэше (мсек). */
+    private volatile int answerCacheTimeout;
+
+    /** Максимальный размер тела датаграммы (сообщение без дескриптора - длины и CRC16). */
+    private final int messageSize;
+    /**
+     * Максимальный размер ответа (применяется при запуске сервиса). Если больше размера датаграммы, то ответы большего
+     * размера отсылаются фрагментами (см. тип запроса FRAGMENT).
+     */
+    private volatile int maxAnswerSize;
+    /**
+     * Рабочий буфер обработки сообщений размером maxAnswerSize (только при фрагментации ответов, иначе - null):
+     * запрос копируется в него, ответ формируется в нём. Используется только потоком приёма!
+     */
+    private DataBuffer workBuffer;
+    /** Буфер для формирования фрагментов ответа. Используем только синхронизированно на нём! */
+    private final DataBuffer fragmentBuffer;
+    /** Размер заголовка фрагмента: метаданные ответа [15] + [2] номер + [2] кол-во + [4] размер ответа + [4] смещение. */
+    private static final int FRAGMENT_HEADER_SIZE = 4 + 8 + 1 + 2 + 2 + 2 + 4 + 4;
+
     /**
      * Конструктор.
      *
@@ -40,6 +74,68 @@ public abstract class RCService extends NetUDPService {
     public RCService(String name, int udpport, int maxmsgsize) {
         super(name, udpport, maxmsgsize);
         this.logger = LoggerExt.getNewLogger("RCService-" + name).enable(true).toFile();
+        this.answerCache = new LinkedHashMap<>();
+        this.answerCacheSize = 256;
+        this.answerCacheTimeout = 30000;
+        this.messageSize = maxmsgsize - 4;
+        this.maxAnswerSize = messageSize;
+        this.workBuffer = null;
+        this.fragmentBuffer = new DataBuffer(messageSize);
+    }
+
+    /**
+     * Установка максимального размера ответа. Если он больше размера датаграммы, то ответы, не помещающиеся в
+     * датаграмму, отсылаются фрагментами (клиент собирает ответ и при потере фрагментов запрашивает недостающие).
+     * Применяется при (следующем) запуске сервиса.
+     *
+     * @param size Максимальный размер ответа (не меньше размера датаграммы).
+     */
+    public void setMaxAnswerSize(int size) {
+        int chunk = messageSize - FRAGMENT_HEADER_SIZE;
+        this.maxAnswerSize = Math.max(messageSize, Math.min(size, chunk * 0xFFFF));
+    }
+
+    /** Максимальный размер ответа. */
+    public int getMaxAnswerSize() {
+        return maxAnswerSize;
+    }
+
+    @Override
+    protected void fireOnStart() {
+        workBuffer = maxAnswerSize > messageSize ? new DataBuffer(maxAnswerSize) : null;
+        FireCallback.safe(super::fireOnStart);
+    }
+
+    /**
+     * Установка параметров кэша ответов на повторные запросы.
+     *
+     * @param size    Максимальное кол-во ответов в кэше (если = 0 - кэш отключен).
+     * @param timeout Время хранения ответа в кэше (мсек).
+     */
+    public void setAnswerCache(int size, int timeout) {
+        synchronized (answerCache) {
+            this.answerCacheSize = Math.max(0, size);
+            this.answerCacheTimeout = Math.max(0, timeout);
+            purgeAnswerCache(System.currentTimeMillis());
+        }
+    }
+
+    /** Максимальное кол-во ответов в кэше. */
+    public int getAnswerCacheSize() {
+        return answerCacheSize;
+    }
+
+    /** Время хранения ответа в кэше (мсек). */
+    public int getAnswerCacheTimeout() {
+        return answerCacheTimeout;
+    }
+
+    @Override
+    protected void fireOnStop() {
+        synchronized (answerCache) {
+            answerCache.clear(); // После перезапуска ответы неактуальны (слоты команд очищены).
+        }
+        FireCallback.safe(super::fireOnStop);
     }
 
     /** Успешно. */
@@ -61,6 +157,25 @@ public abstract class RCService extends NetUDPService {
     public static final int RESULT_WRONGVALUE = 6;
     /** Неверный ResultID. */
     public static final int RESULT_WRONGFINALIZATIONID = 7;
+    /**
+     * Сервис перегружен: команда не будет исполнена до истечения её таймаута. В ответе - рекомендуемая пауза перед
+     * повтором (Meta.retryAfter). Возвращается при включённом (по умолчанию) контроле допуска (см.
+     * QueuedRCService.setAdmissionControl()).
+     */
+    public static final int RESULT_BUSY = 8;
+
+    // Результаты отмены команды (в теле ответа на запрос CANCEL).
+    /** Команда удалена из очереди (не исполнялась, результата не будет). */
+    public static final int CANCEL_DEQUEUED = 0;
+    /** Команда исполняется - передан запрос на отмену (результат - по завершении исполнения, как обычно). */
+    public static final int CANCEL_REQUESTED = 1;
+    /** Команда уже исполнена (результат готов) - отменять нечего. */
+    public static final int CANCEL_COMPLETED = 2;
+    /**
+     * Команда исполняется, но её результат нужен присоединённым командам других отправителей - запрос на отмену не
+     * передан, исполнение продолжается (результат - по завершении исполнения, как обычно).
+     */
+    public static final int CANCEL_SHARED = 3;
 
     /**
      * Обработчик поступившего сообщения. Ответ возвращается в том же буфере.
@@ -72,38 +187,65 @@ public abstract class RCService extends NetUDPService {
      */
     protected void processMessage(SocketAddress address, long receivetime, DataBuffer msgbuffer) throws ExWrongMessage {
 
+        // Если ответ может не поместиться в датаграмму - обработка в рабочем буфере (с последующей фрагментацией).
+        DataBuffer buf = workBuffer != null ? workBuffer.reset().putArea(msgbuffer.rewind()).flip() : msgbuffer;
+
         Meta meta;
         try {
             // Парсим метаданные сообщения (полностью вместе с доп.параметрами!).
             meta = new Meta();
-            meta.parseRequest(msgbuffer.rewind()).tail(); // Окно на остаток данных (тело команды).
+            meta.parseRequest(buf.rewind()).tail(); // Окно на остаток данных (тело команды).
         } catch (Exception ex) {
             throw new ExWrongMessage(ex.getMessage()); // Если метаданные не распарсились - ответ не отсылается!
         }
         logger.infof("rc:start:processMessage(%s)", meta.toString());
 
+        // Повтор уже обработанного запроса (ответ был потерян) - отсылаем прежний ответ без повторной обработки.
+        if (replayCachedAnswer(address, meta, msgbuffer)) {
+            logger.infof("rc:end:processMessage(%s) - повтор ответа из кэша", meta.toString());
+            return;
+        }
+
         // Если метаданные верные, то при ошибках обработки - отсылается ответ с ошибкой!
         try {
             switch (meta.requestType) {
                 case GETSTATE: // Получение состояния сервиса и процессора команд.
-                    requestGetState(meta, msgbuffer);
+                    requestGetState(meta, buf);
+                    requestGetStateTrailer(meta, buf);
                     break;
                 case EXECUTE: // Передача команды на испонение процессору.
-                    requestExecute(address, receivetime, meta, msgbuffer);
+                case EXECUTE_NOTIFY: // То же, но с отправкой результата отправителю сразу по завершении исполнения.
+                    requestExecute(address, receivetime, meta, buf);
+                    break;
+                case EXECUTE_BATCH: // Передача пакета команд на исполнение процессору.
+                    requestExecuteBatch(address, receivetime, meta, buf);
                     break;
                 case GETRESULT: // Запрос результата исполнения команды.
-                    requestGetResult(meta, msgbuffer);
+                    requestGetResult(address, meta, buf);
                     break;
                 case FINALIZE:
-                    requestFinalize(meta, msgbuffer);
+                    requestFinalize(meta, buf);
+                    break;
+                case CANCEL: // Отмена команды.
+                    requestCancel(meta, buf);
+                    break;
+                case FRAGMENT: // Повторная отправка потерянных фрагментов ответа.
+                    requestFragments(address, meta, buf);
+                    break;
+                case HELLO: // Согласование формата заголовка сообщений.
+                    requestHello(meta, buf);
+                    break;
+                case METRICS: // Получение гистограмм задержек обработки команд.
+                    requestMetrics(meta, buf);
                     break;
                 case STOP: // Остановка сервиса (нужно ли вообще?).
-                    requestStop(meta, msgbuffer);
+                    requestStop(meta, buf);
                     break;
             }
         } catch (ExResultError ex) {
             meta.answerErrorID = ex.errorID;
             meta.answerErrorMessage = ex.getMessage();
+            if (ex instanceof ExBusy) meta.retryAfter = ((ExBusy) ex).retryAfter;
             logger.infof("Результат-ошибка! {%s}", meta.toString());
         } catch (Exception ex) {
             meta.answerErrorID = RESULT_ERROR;
@@ -112,15 +254,210 @@ public abstract class RCService extends NetUDPService {
         }
         try {
             if (meta.answerErrorID != RESULT_OK) {
-                meta.buildAnswer(msgbuffer.reset()).flipBuffer();
+                meta.buildAnswer(buf.reset()).flipBuffer();
             }
         } catch (Exception ex) {
             logger.errorf(ex, "Ошибка постоения ответа! {%s}", meta.toString());
             throw new ExWrongMessage(ex.getMessage()); // Ответ не отсылается!
         }
+        if (buf == msgbuffer) {
+            cacheAnswer(meta, msgbuffer);
+        } else {
+            int len = buf.offset() + buf.length();
+            if (len <= msgbuffer.capacity()) {
+                msgbuffer.reset().putArea(buf.offset(0)).flipBuffer(); // Ответ помещается в датаграмму.
+                cacheAnswer(meta, msgbuffer);
+            } else {
+                // Ответ отсылается фрагментами. Сохраняется в кэше (для повторной отправки потерянных фрагментов).
+                byte[] data = buf.offset(0).getArrayAt(0, len);
+                putCachedAnswer(meta, data);
+                sendFragments(address, meta, data, null);
+                msgbuffer.area(0, 0); // Ответ уже отослан.
+            }
+        }
         logger.infof("rc:end:processMessage(%s)", meta.toString());
     }
 
+    /**
+     * Отправка ответа по инициативе сервиса (не в ответ на только что полученное сообщение). Если ответ не помещается
+     * в датаграмму - отсылается фрагментами. Может вызываться из любого потока.
+     *
+     * @param address Адрес получателя.
+     * @param meta    Метаданные ответа.
+     * @param answer  Буфер с ответом (рабочее окно).
+     * @return Результат: true - ответ отправлен, false - ошибка отправки.
+     */
+    protected boolean sendAnswer(SocketAddress address, Meta meta, DataBuffer answer) {
+        if (answer.length() <= messageSize) return sendMessage(address, answer);
+        byte[] data = answer.getArrayAt(0, answer.length());
+        putCachedAnswer(meta, data);
+        return sendFragments(address, meta, data, null);
+    }
+
+    /**
+     * Отправка ответа фрагментами. Каждый фрагмент - ответ типа FRAGMENT (с ID отправителя и сообщения исходного
+     * запроса), тело: [2] номер фрагмента, [2] кол-во фрагментов, [4] размер ответа, [4] смещение фрагмента в ответе,
+     * [N] данные фрагмента.
+     *
+     * @param address Адрес получателя.
+     * @param meta    Метаданные ответа.
+     * @param data    Данные ответа.
+     * @param indexes Номера отсылаемых фрагментов (если null - все фрагменты).
+     * @return Результат: true - все фрагменты отправлены, false - ошибка отправки.
+     */
+    private boolean sendFragments(SocketAddress address, Meta meta, byte[] data, int[] indexes) {
+        int chunk = messageSize - FRAGMENT_HEADER_SIZE;
+        int count = (data.length + chunk - 1) / chunk;
+        Meta fm = new Meta();
+        fm.senderID = meta.senderID;
+        fm.messageID = meta.messageID;
+        fm.requestType = RequestType.FRAGMENT;
+        fm.headerFormat = meta.headerFormat;
+        boolean ok = true;
+        synchronized (fragmentBuffer) {
+            int n = indexes != null ? indexes.length : count;
+            for (int i = 0; i < n; i++) {
+                int idx = indexes != null ? indexes[i] : i;
+                int off = idx * chunk;
+                int len = Math.min(chunk, data.length - off);
+                try {
+                    fm.buildAnswer(fragmentBuffer.reset()).putInt2(idx).putInt2(count).putInt(data.length).putInt(off)
+                            .putArray(data, off, len).flip();
+                } catch (Exception ex) {
+                    logger.errorf(ex, "Ошибка построения фрагмента ответа! {%s idx=%d}", meta.toString(), idx);
+                    return false;
+                }
+                ok &= sendMessage(address, fragmentBuffer);
+            }
+        }
+        logger.infof("Ответ отослан фрагментами! {%s size=%d count=%d sent=%d}", meta.toString(), data.length, count,
+                indexes != null ? indexes.length : count);
+        return ok;
+    }
+
+    /**
+     * Выполнение команды сервиса: "FRAGMENT" - повторная отправка потерянных фрагментов ответа (ответ берётся из кэша
+     * ответов по ID отправителя и сообщения исходного запроса). Тело запроса: [2] кол-во фрагментов N, далее N раз: [2]
+     * номер фрагмента. Ответ (кроме ошибки) в буфере не формируется - фрагменты отсылаются сразу.
+     *
+     * @param address Адрес отправителя.
+     * @param meta    Метаданные запроса.
+     * @param buffer  Буфер.
+     * @throws ExResultError
+     */
+    protected void requestFragments(final SocketAddress address, final Meta meta, final DataBuffer buffer)
+            throws ExResultError {
+        CachedAnswer a;
+        synchronized (answerCache) {
+            a = answerCache.get(new IDKey(meta.senderID, meta.messageID));
+        }
+        if (a == null || a.data.length <= messageSize) {
+            throw new ExResultError(RESULT_COMMANDNOTFOUND, "Ответ для повторной отправки фрагментов не найден!");
+        }
+        int chunk = messageSize - FRAGMENT_HEADER_SIZE;
+        int count = (a.data.length + chunk - 1) / chunk;
+        int[] indexes;
+        try {
+            indexes = new int[buffer.getInt2()];
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = buffer.getInt2();
+                if (indexes[i] >= count) {
+                    throw new ExResultError(RESULT_WRONGVALUE, "Неверный номер фрагмента! {idx=%d count=%d}",
+                            indexes[i], count);
+                }
+            }
+        } catch (ExResultError ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new ExResultError(RESULT_WRONGFORMAT, "Ошибка при разборе запроса - %s!", ExError.exMsg(ex));
+        }
+        sendFragments(address, meta, a.data, indexes);
+        buffer.area(0, 0); // Ответ не отсылается (фрагменты уже отосланы).
+    }
+
+    /** Проверка необходимости кэширования ответа на запрос (только для запросов, изменяющих состояние сервиса). */
+    private static boolean isCachedRequest(RequestType type) {
+        switch (type) {
+            case EXECUTE:
+            case EXECUTE_NOTIFY:
+            case EXECUTE_BATCH:
+            case FINALIZE:
+            case CANCEL:
+            case STOP:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Ответ на запрос из кэша ответов. Ответ берётся, только если в кэше есть неустаревший ответ на сообщение с тем же
+     * отправителем и ID, и совпадают тип запроса и ID команды (иначе это другой запрос с совпавшим ID сообщения).
+     *
+     * @param meta      Метаданные запроса.
+     * @param msgbuffer Буфер сообщения (при успехе в нём формируется ответ).
+     * @return Результат: true - ответ сформирован из кэша, false - ответа в кэше нет.
+     */
+    private boolean replayCachedAnswer(SocketAddress address, Meta meta, DataBuffer msgbuffer) {
+        if (answerCacheSize == 0 || !isCachedRequest(meta.requestType)) return false;
+        CachedAnswer a;
+        synchronized (answerCache) {
+            a = answerCache.get(new IDKey(meta.senderID, meta.messageID));
+            if (a == null) return false;
+            if (System.currentTimeMillis() - a.time > answerCacheTimeout
+                    || a.requestType != meta.requestType || a.commandID != meta.commandID) {
+                return false;
+            }
+        }
+        if (a.data.length > msgbuffer.capacity()) { // Ответ отсылался фрагментами - повторяем все фрагменты.
+            sendFragments(address, meta, a.data, null);
+            msgbuffer.area(0, 0);
+        } else {
+            msgbuffer.reset().putArray(a.data, 0, a.data.length).flipBuffer();
+        }
+        return true;
+    }
+
+    /**
+     * Сохранение в кэше сформированного ответа на запрос.
+     *
+     * @param meta      Метаданные запроса.
+     * @param msgbuffer Буфер сообщения с ответом (конец рабочего окна - конец ответа).
+     */
+    private void cacheAnswer(Meta meta, DataBuffer msgbuffer) {
+        if (answerCacheSize == 0 || !isCachedRequest(meta.requestType)) return;
+        int len = msgbuffer.offset() + msgbuffer.length();
+        if (len == 0) return; // Ответа нет (не отсылается).
+        putCachedAnswer(meta, msgbuffer.offset(0).getArrayAt(0, len));
+    }
+
+    /**
+     * Помещение ответа в кэш (для ответов, отсылаемых фрагментами - независимо от типа запроса).
+     *
+     * @param meta Метаданные запроса.
+     * @param data Данные ответа.
+     */
+    private void putCachedAnswer(Meta meta, byte[] data) {
+        if (answerCacheSize == 0) return;
+        long now = System.currentTimeMillis();
+        synchronized (answerCache) {
+            IDKey key = new IDKey(meta.senderID, meta.messageID);
+            answerCache.remove(key); // Для помещения в конец (порядок добавления).
+            answerCache.put(key, new CachedAnswer(meta.requestType, meta.commandID, now, data));
+            purgeAnswerCache(now);
+        }
+    }
+
+    /** Удаление из кэша устаревших ответов и ответов сверх максимального кол-ва (самых старых). */
+    private void purgeAnswerCache(long now) {
+        Iterator<Map.Entry<IDKey, CachedAnswer>> it = answerCache.entrySet().iterator();
+        while (it.hasNext()) {
+            CachedAnswer a = it.next().getValue();
+            if (answerCache.size() <= answerCacheSize && now - a.time <= answerCacheTimeout) break;
+            it.remove();
+        }
+    }
+
     /**
      * Выполнение команды сервиса: "GETSTATE".
      * <p>
@@ -136,10 +473,22 @@ public abstract class RCService extends NetUDPService {
     }
 
     /**
-     * Выполнение команды сервиса: "EXECUTE".
+     * Выполнение команды сервиса: "GETSTATE" - дополнение ответа после полей всех классов цепочки requestGetState().
+     * Новые поля состояния добавляются только сюда: клиенты прежних версий читают поля по их положению в ответе, а
+     * лишние байты в конце не читают. По умолчанию дополнения нет.
+     *
+     * @param meta   Метаданные.
+     * @param buffer Буфер с ответом requestGetState() (рабочее окно - тело ответа).
+     */
+    protected void requestGetStateTrailer(final Meta meta, final DataBuffer buffer) throws ExResultError {
+    }
+
+    /**
+     * Выполнение команды сервиса: "EXECUTE" и "EXECUTE_NOTIFY".
      * <p>
      * Если команда не дубль и есть свободные слоты - команда помещается в очередь на выполнение процессором. ВАЖНО:
-     * Предварительно происходит освобождение слотов с истекшими таймаутами!
+     * Предварительно происходит освобождение слотов с истекшими таймаутами! Для EXECUTE_NOTIFY по завершении
+     * исполнения команды отправителю (без запроса) отсылается ответ с результатом - такой же, как на GETRESULT.
      *
      * @param meta   Метаданные сообщения команды.
      * @param buffer Данные команды (определяются как рабочая область).
@@ -148,18 +497,54 @@ public abstract class RCService extends NetUDPService {
                                            final DataBuffer buffer) throws ExResultError;
 
     /**
-     * Выполнение команды сервиса: "GETRESULT". Возвращает или ошибку или имеющийся результат исполнения команды.
+     * Выполнение команды сервиса: "EXECUTE_BATCH".
+     * <p>
+     * Пакет из N команд ставится на исполнение целиком или не ставится вовсе. Командам назначаются последовательные
+     * ID: от ID команды в метаданных и далее (ID+1, ..., ID+N-1), таймаут исполнения - общий. Тело запроса: [2] N,
+     * далее N раз: [2] длина данных команды, [M] данные команды. В ответе: [2] N.
+     * <p>
+     * По умолчанию пакеты не поддерживаются (ошибка).
      *
      * @param meta   Метаданные сообщения команды.
-     * @param buffer Данные команды (определяются как рабочая область).
+     * @param buffer Данные команд (определяются как рабочая область).
+     * @throws ExResultError
+     */
+    protected void requestExecuteBatch(final SocketAddress address, final long receivetime, final Meta meta,
+                                       final DataBuffer buffer) throws ExResultError {
+        throw new ExResultError(RESULT_WRONGVALUE, "Пакетное исполнение команд не поддерживается!");
+    }
+
+    /**
+     * Выполнение команды сервиса: "GETRESULT". Возвращает или ошибку или имеющийся результат исполнения команды.
+     * <p>
+     * В теле запроса может быть указано время ожидания результата [4]. Если результат еще не готов, то запрос
+     * откладывается и ответ отсылается позже - по готовности результата или по истечении времени ожидания. Для
+     * отложенного запроса ответ в буфере не формируется (рабочее окно пустое).
+     * <p>
+     * После времени ожидания может быть указано кол-во команд N [2] (для пакета команд, см. EXECUTE_BATCH) - тогда
+     * запрашиваются результаты команд с ID от ID команды в метаданных до ID+N-1 и ответ формируется только при
+     * готовности всех результатов. Тело ответа: [2] N, далее N раз: [8] ID финализации, [2] длина результата, [M]
+     * данные результата.
+     * <p>
+     * Если команда, восстановленная из журнала слотов, не исполнена (ошибка обработчика, прерывание перезапуском
+     * сервиса) - ответ с ошибкой исполнения, но с ID финализации: слот с результатом-ошибкой клиент должен
+     * финализировать, как и успешный. Признак - ненулевой ID финализации в ответе (у ошибок обработки самого запроса
+     * он равен 0). Для остальных команд ошибка обработчика, как и прежде, не меняет ответ: RESULT_OK с данными слота
+     * (клиенты прежних версий финализируют только его).
+     *
+     * @param address Адрес отправителя сообщения.
+     * @param meta    Метаданные сообщения команды.
+     * @param buffer  Данные команды (определяются как рабочая область).
      * @throws ExResultError
      */
-    protected abstract void requestGetResult(final Meta meta, final DataBuffer buffer) throws ExResultError;
+    protected abstract void requestGetResult(final SocketAddress address, final Meta meta, final DataBuffer buffer)
+            throws ExResultError;
 
     /**
      * Выполнение команды сервиса: "FINALIZE".
      * <p>
-     * Возвращается результат операции освобождения слота.
+     * Возвращается результат операции освобождения слота. Для пакета команд в теле запроса указываются: [2] кол-во
+     * команд N, далее N раз: [8] ID финализации (для команд с ID от ID команды в метаданных до ID+N-1).
      *
      * @param meta   Метаданные сообщения команды.
      * @param buffer Данные команды (определяются как рабочая область).
@@ -167,6 +552,48 @@ public abstract class RCService extends NetUDPService {
      */
     protected abstract void requestFinalize(final Meta meta, final DataBuffer buffer) throws ExResultError;
 
+    /**
+     * Выполнение команды сервиса: "CANCEL".
+     * <p>
+     * Отмена команды с ID команды в метаданных. Тело ответа: [1] результат отмены (CANCEL_DEQUEUED, CANCEL_REQUESTED,
+     * CANCEL_COMPLETED или CANCEL_SHARED). По умолчанию отмена не поддерживается.
+     *
+     * @param meta   Метаданные сообщения команды.
+     * @param buffer Данные команды (определяются как рабочая область).
+     * @throws ExResultError
+     */
+    protected void requestCancel(final Meta meta, final DataBuffer buffer) throws ExResultError {
+        throw new ExResultError(RESULT_CANNOTEXECUTE, "Отмена команд не поддерживается сервисом!");
+    }
+
+    /**
+     * Выполнение команды сервиса: "METRICS".
+     * <p>
+     * Возвращает снимок гистограмм задержек обработки команд (см. LatencyMetrics.build()). По умолчанию метрики не
+     * поддерживаются.
+     *
+     * @param meta   Метаданные сообщения.
+     * @param buffer Буфер.
+     * @throws ExResultError
+     */
+    protected void requestMetrics(final Meta meta, final DataBuffer buffer) throws ExResultError {
+        throw new ExResultError(RESULT_CANNOTEXECUTE, "Метрики не поддерживаются сервисом!");
+    }
+
+    /**
+     * Выполнение команды сервиса: "HELLO".
+     * <p>
+     * Согласование формата заголовка: принимается наибольшая версия, поддерживаемая и клиентом, и сервисом. Сервис
+     * разбирает оба формата всегда, согласование нужно клиенту - чтобы не слать компактные заголовки старому сервису.
+     *
+     * @param buffer Буфер.
+     */
+    protected void requestHello(final Meta meta, final DataBuffer buffer) throws ExResultError {
+        if (buffer.remaining() < 1) throw new ExResultError(RESULT_WRONGFORMAT, "Не задана версия формата заголовка!");
+        int version = Math.min(buffer.get(), Meta.HEADER_COMPACT);
+        meta.buildAnswer(buffer.reset()).put(version).flipBuffer();
+    }
+
     /**
      * Выполнение команды сервиса: "STOP".
      *
@@ -188,6 +615,58 @@ public abstract class RCService extends NetUDPService {
         return finalizationID.addAndGet(1);
     }
 
+    /**
+     * Ключ для поиска по паре: отправитель + идентификатор (команды или сообщения). Для использования в хэш-таблицах.
+     */
+    public static final class IDKey {
+        /** ID отправителя. */
+        public final int senderID;
+        /** ID команды или сообщения (уникальный для отправителя). */
+        public final long id;
+
+        public IDKey(int senderid, long id) {
+            this.senderID = senderid;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof IDKey)) return false;
+            IDKey k = (IDKey) o;
+            return senderID == k.senderID && id == k.id;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * senderID + (int) (id ^ (id >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d:%d", senderID, id);
+        }
+    }
+
+    /** Ответ в кэше ответов на повторные запросы. */
+    private static final class CachedAnswer {
+        /** Тип запроса (для проверки совпадения запроса). */
+        final RequestType requestType;
+        /** ID команды (для проверки совпадения запроса). */
+        final long commandID;
+        /** Время формирования ответа. */
+        final long time;
+        /** Данные ответа (сообщение без дескриптора - длины и CRC16). */
+        final byte[] data;
+
+        CachedAnswer(RequestType type, long commandid, long time, byte[] data) {
+            this.requestType = type;
+            this.commandID = commandid;
+            this.time = time;
+            this.data = data;
+        }
+    }
+
     /** Нумератор типов запросов (не путать с командами в теле сообщения!). */
     public enum RequestType {
 
@@ -199,6 +678,30 @@ public abstract class RCService extends NetUDPService {
         GETRESULT(3),
         /** Финализация результата (освобождение результата). */
         FINALIZE(4),
+        /**
+         * Выполнение команды с уведомлением: по завершении исполнения результат отсылается отправителю сервисом сам
+         * (как ответ на GETRESULT с messageID запроса EXECUTE_NOTIFY). GETRESULT нужен только при потере уведомления.
+         */
+        EXECUTE_NOTIFY(5),
+        /** Выполнение пакета команд (с последовательными ID команд). */
+        EXECUTE_BATCH(6),
+        /**
+         * Фрагмент ответа (в ответе) или запрос повторной отправки потерянных фрагментов ответа (в запросе, с ID
+         * сообщения исходного запроса).
+         */
+        FRAGMENT(7),
+        /**
+         * Согласование формата заголовка сообщений (запрос - всегда в исходном формате). Тело запроса: [1] максимальная
+         * версия формата, поддерживаемая клиентом. Тело ответа: [1] версия формата, принятая сервисом.
+         */
+        HELLO(8),
+        /**
+         * Отмена команды: команда в очереди удаляется (не исполняется), исполняемой команде передаётся запрос на отмену
+         * (отменяется, если обработчик команды это поддерживает). Тело ответа: [1] результат отмены (CANCEL_*).
+         */
+        CANCEL(9),
+        /** Получение гистограмм задержек обработки команд (см. LatencyMetrics). */
+        METRICS(10),
         /** Остановка сервиса (в зависимости от параметров - остановка или рестарт). */
         STOP(100);
 
@@ -209,12 +712,195 @@ public abstract class RCService extends NetUDPService {
             this.id = id;
         }
 
+        /** Кэш значений (values() создаёт новый массив при каждом вызове, а разбор идёт на каждый запрос). */
+        private static final RequestType[] VALUES = values();
+
         public static RequestType byId(int id) {
-            for (RequestType s : RequestType.values()) if (s.id == id) return s;
+            for (RequestType s : VALUES) if (s.id == id) return s;
+            return null;
+        }
+    }
+
+    /**
+     * Класс приоритета команды (для планирования исполнения в очереди, см. QueuedRCService.peekQueue()). Команды
+     * исполняются в соответствии с весами классов: при конкуренции доля исполнений класса пропорциональна весу.
+     */
+    public enum Priority {
+
+        /** Интерактивные команды (короткие, ожидаемые оператором: проверки, вывод на дисплей). */
+        INTERACTIVE(0, 8),
+        /** Обычные команды (по умолчанию). */
+        NORMAL(1, 4),
+        /** Фоновые команды (длительные, не срочные: отчёты, синхронизация). */
+        BATCH(2, 1);
+
+        /** Код класса приоритета. */
+        public int id;
+        /** Вес класса при планировании. */
+        public int weight;
+
+        Priority(int id, int weight) {
+            this.id = id;
+            this.weight = weight;
+        }
+
+        /** Кэш значений. */
+        private static final Priority[] VALUES = values();
+
+        public static Priority byId(int id) {
+            for (Priority s : VALUES) if (s.id == id) return s;
+            return null;
+        }
+    }
+
+    /** Этап обработки команды, задержка которого учитывается в метриках (см. LatencyMetrics). */
+    public enum LatencyStage {
+
+        /** От получения запроса до постановки команды в очередь (разбор, ожидание блокировки слотов). */
+        RECEIVE_QUEUE(1),
+        /** От постановки в очередь до начала исполнения (ожидание очереди и потока исполнителя). */
+        QUEUE_EXECUTE(2),
+        /** Исполнение команды (обработчиком устройства). */
+        EXECUTE_RESULT(3),
+        /** От готовности результата до финализации (получение результата клиентом). */
+        RESULT_FINALIZE(4);
+
+        /** Код этапа. */
+        public int id;
+
+        LatencyStage(int id) {
+            this.id = id;
+        }
+
+        /** Кэш значений. */
+        private static final LatencyStage[] VALUES = values();
+
+        public static LatencyStage byId(int id) {
+            for (LatencyStage s : VALUES) if (s.id == id) return s;
             return null;
         }
     }
 
+    /**
+     * Гистограмма задержек этапа обработки команд одного типа запроса и одного типа команды (задержки - в мксек,
+     * счётчики накапливаются с создания сервиса). Снимок метрик (тело ответа на METRICS):
+     * <pre>
+     * [v] Кол-во бит деления октавы на интервалы гистограмм (LatencyHistogram.SUB_BUCKET_BITS).
+     * [1] Признак неполного снимка (гистограммы, не поместившиеся в ответ, опущены).
+     * [2] Кол-во гистограмм N, далее N раз:
+     *     [1] Код типа запроса (EXECUTE, EXECUTE_NOTIFY или EXECUTE_BATCH).
+     *     [z] Тип команды (см. QueuedRCService.commandType()).
+     *     [1] Код этапа (LatencyStage).
+     *     [v] Сумма значений.
+     *     [v] Наибольшее значение.
+     *     [v] Кол-во непустых интервалов K, далее K раз:
+     *         [v] Пропуск - кол-во пустых интервалов перед интервалом.
+     *         [v] Кол-во значений в интервале.
+     * </pre>
+     * Числа - varint, знаковые - в зигзаг-кодировании (как в компактном заголовке).
+     */
+    public static class LatencyMetrics {
+        /** Тип запроса, которым поставлена команда. */
+        public final RequestType requestType;
+        /** Тип команды. */
+        public final int commandType;
+        /** Этап обработки. */
+        public final LatencyStage stage;
+        /** Снимок гистограммы. */
+        public final LatencyHistogram.Snapshot histogram;
+
+        public LatencyMetrics(RequestType requesttype, int commandtype, LatencyStage stage,
+                              LatencyHistogram.Snapshot histogram) {
+            this.requestType = requesttype;
+            this.commandType = commandtype;
+            this.stage = stage;
+            this.histogram = histogram;
+        }
+
+        /** Наибольший размер записи гистограммы (байт) при заданном кол-ве непустых интервалов. */
+        private static int maxSize(int buckets) {
+            return 1 + 5 + 1 + 10 + 10 + 5 + buckets * (5 + 10);
+        }
+
+        /**
+         * Запись снимка метрик в буфер (с текущей позиции). Гистограммы, не помещающиеся в буфер, опускаются (с
+         * признаком неполного снимка).
+         *
+         * @param buffer  Буфер.
+         * @param metrics Гистограммы (пустые - опускаются).
+         * @return Буфер.
+         */
+        public static DataBuffer build(DataBuffer buffer, Iterable<LatencyMetrics> metrics) {
+            buffer.putVarLong(LatencyHistogram.SUB_BUCKET_BITS);
+            int flagpos = buffer.pos();
+            buffer.put(0);
+            int countpos = buffer.pos();
+            buffer.putInt2(0);
+            int n = 0;
+            for (LatencyMetrics m : metrics) {
+                LatencyHistogram.Snapshot h = m.histogram;
+                if (h.count == 0) continue;
+                int k = 0;
+                for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) if (h.getBucketCount(i) != 0) k++;
+                if (n == 0xFFFF || buffer.remaining() < maxSize(k)) {
+                    buffer.putAt(flagpos, 1);
+                    break;
+                }
+                buffer.put(m.requestType.id).putVarLong(Meta.zigzag(m.commandType)).put(m.stage.id)
+                        .putVarLong(h.sum).putVarLong(h.max).putVarLong(k);
+                int prev = -1;
+                for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+                    long c = h.getBucketCount(i);
+                    if (c == 0) continue;
+                    buffer.putVarLong(i - prev - 1).putVarLong(c);
+                    prev = i;
+                }
+                n++;
+            }
+            return buffer.putInt2At(countpos, n);
+        }
+
+        /**
+         * Разбор снимка метрик из буфера (с текущей позиции).
+         *
+         * @param buffer  Буфер.
+         * @param metrics Список для гистограмм (с неизвестным типом запроса или этапом - пропускаются).
+         * @return Признак полного снимка: true - полный, false - часть гистограмм не поместилась в ответ.
+         * @throws ExError При неверном формате снимка.
+         */
+        public static boolean parse(DataBuffer buffer, List<LatencyMetrics> metrics) throws ExError {
+            if (buffer.getVarLong() != LatencyHistogram.SUB_BUCKET_BITS) {
+                throw new ExError("Неподдерживаемый формат гистограмм!");
+            }
+            boolean iscomplete = buffer.get() == 0;
+            int n = buffer.getInt2();
+            for (int j = 0; j < n; j++) {
+                RequestType rt = RequestType.byId(buffer.get());
+                int type = (int) Meta.unzigzag(buffer.getVarLong());
+                LatencyStage stage = LatencyStage.byId(buffer.get());
+                long sum = buffer.getVarLong();
+                long max = buffer.getVarLong();
+                int k = (int) buffer.getVarLong();
+                long[] counts = new long[LatencyHistogram.BUCKET_COUNT];
+                for (int i = 0, idx = -1; i < k; i++) {
+                    idx += (int) buffer.getVarLong() + 1;
+                    if (idx < 0 || idx >= counts.length) throw new ExError("Неверный интервал гистограммы!");
+                    counts[idx] = buffer.getVarLong();
+                }
+                if (rt == null || stage == null) continue;
+                metrics.add(new LatencyMetrics(rt, type, stage, new LatencyHistogram.Snapshot(counts, sum, max)));
+            }
+            return iscomplete;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s type=%d %s: count=%d mean=%.0f p50=%d p99=%d max=%d", requestType.name(),
+                    commandType, stage.name(), histogram.count, histogram.getMean(), histogram.getPercentile(50),
+                    histogram.getPercentile(99), histogram.max);
+        }
+    }
+
     /**
      * Метаданные сообщения. Данные касающиеся получения\отправки сообщения - в слоте.
      * <pre>
@@ -225,20 +911,57 @@ public abstract class RCService extends NetUDPService {
      * [4] cmdID отправителя.
      * [8] cmdID сообщения.
      * [1] cmdID типа запроса.
-     * --- для типа запроса EXECUTE ---
-     * [8] cmdID команды (уникальный для отправителя).
+     * --- для типа запроса EXECUTE, EXECUTE_NOTIFY и EXECUTE_BATCH ---
+     * [8] cmdID команды (уникальный для отправителя, для пакета - ID первой команды).
      * [4] Таймаут исполнения.
+     * [1] Класс приоритета (только если в cmdID типа запроса установлен бит PRIORITY_FLAG, иначе - NORMAL).
      * --- для типа запроса RESULT ---
      * [8] cmdID команды (уникальный для отправителя).
+     * [4] Время ожидания результата (необязательное, в теле запроса).
+     * [2] Кол-во команд пакета (необязательное, в теле запроса).
+     * --- для типа запроса FRAGMENT (ответ, в теле) ---
+     * [2] Номер фрагмента.
+     * [2] Кол-во фрагментов.
+     * [4] Размер ответа (собранного из фрагментов).
+     * [4] Смещение фрагмента в ответе.
      * --- для типа запроса FINALIZE ---
      * [8] cmdID команды (уникальный для отправителя).
      * [8] cmdID верификации.
+     * --- для типа запроса CANCEL ---
+     * [8] cmdID команды (уникальный для отправителя).
+     * [1] Результат отмены (только в ответе, в теле).
      * ---
      *
      * Если это ответ на команду, добавляется:
      * [1] Результат обработки запроса.
      * [N] Если результат не равен RESULT_OK=0, то добавляется строка с сообщением об ошибке иначе далее идут данные,
      * если они предусмотрены.
+     * [1] 0 и [4] рекомендуемая пауза перед повтором, мсек - только для результата RESULT_BUSY, после строки (клиенты
+     * прежних версий читают их как конец строки сообщения, разбор заголовка не нарушается).
+     *
+     * Компактный формат заголовка (HEADER_COMPACT, после согласования запросом HELLO). Числа - varint (см.
+     * DataBuffer.putVarLong()), знаковые - в зигзаг-кодировании, ID команды и финализации - разностью с предыдущим ID
+     * этого же сообщения (сообщения разбираются независимо, потеря датаграмм разбор не нарушает):
+     * [1] Признак формата (0x80 | версия). Исходный формат начинается со старшего байта ID отправителя - ID
+     *     отправителей со старшим байтом, равным признаку, не допускаются (клиенты с таким ID не создаются, см.
+     *     checkSenderID()).
+     * [1] cmdID типа запроса.
+     * [v] ID отправителя (как беззнаковое).
+     * [v] ID сообщения.
+     * --- для типа запроса EXECUTE, EXECUTE_NOTIFY и EXECUTE_BATCH ---
+     * [z] ID команды - ID сообщения.
+     * [z] Таймаут исполнения.
+     * [1] Класс приоритета (только с битом PRIORITY_FLAG в cmdID типа запроса).
+     * --- для типа запроса RESULT ---
+     * [z] ID команды - ID сообщения.
+     * [z] ID финализации - ID команды (только в ответе).
+     * --- для типа запроса FINALIZE ---
+     * [z] ID команды - ID сообщения.
+     * [z] ID финализации - ID команды.
+     * --- для типа запроса CANCEL ---
+     * [z] ID команды - ID сообщения.
+     * --- для ответа ---
+     * [v] Результат обработки запроса, далее - как в исходном формате.
      *
      *
      * Команды ПЦ:
@@ -251,6 +974,33 @@ public abstract class RCService extends NetUDPService {
      */
     public static class Meta {
 
+        /** Формат заголовка: исходный (поля фиксированной длины). */
+        public static final int HEADER_FULL = 0;
+        /** Формат заголовка: компактный (varint, ID - разностью), версия 1. */
+        public static final int HEADER_COMPACT = 1;
+        /** Первый байт сообщения с компактным заголовком. */
+        private static final int COMPACT_MARKER = 0x80 | HEADER_COMPACT;
+
+        /**
+         * Проверка ID отправителя: старший байт не должен совпадать с признаком компактного формата (иначе сообщение
+         * в исходном формате будет разобрано как компактное).
+         *
+         * @param senderid ID отправителя.
+         * @throws IllegalArgumentException Если ID недопустим.
+         */
+        public static void checkSenderID(int senderid) {
+            if ((senderid >>> 24) == COMPACT_MARKER) {
+                throw new IllegalArgumentException(String.format(
+                        "Недопустимый ID отправителя - старший байт совпадает с признаком формата! {id=0x%08X}",
+                        senderid));
+            }
+        }
+        /**
+         * Бит в cmdID типа запроса: за параметрами запроса исполнения следует класс приоритета. Устанавливается только
+         * для приоритета, отличного от NORMAL - старые сервисы такие запросы не разбирают!
+         */
+        private static final int PRIORITY_FLAG = 0x80;
+
         /** [4] ID отправителя (уникальный среди отправителей). */
         public int senderID;
         /** [8] ID сообщения (уникальный на отправителе, возрастает при отправке(!) сообщения). */
@@ -272,11 +1022,21 @@ public abstract class RCService extends NetUDPService {
         public int executeTimeout;
         /** [8] Код для предъявления при финализации результата. */
         public long finalizationID;
+        /** [1] Класс приоритета команды (для запросов исполнения). */
+        public Priority priority;
 
         /** Для ответа на запрос: Код ошибки (именно исполнения запроса, не путать с исполнением команды). */
         public int answerErrorID;
         /** Для ответа на запрос: Текст ошибки (именно исполнения запроса, не путать с исполнением команды). */
         public String answerErrorMessage;
+        /** Для ответа на запрос с результатом RESULT_BUSY: рекомендуемая пауза перед повтором запроса (мсек). */
+        public int retryAfter;
+
+        /**
+         * Формат заголовка (HEADER_FULL или HEADER_COMPACT). При разборе определяется по сообщению, ответ строится в
+         * формате запроса.
+         */
+        public int headerFormat;
 
         /** Конструктор. */
         public Meta() {
@@ -286,29 +1046,45 @@ public abstract class RCService extends NetUDPService {
             this.commandID = 0;
             this.executeTimeout = 0;
             this.finalizationID = 0;
+            this.priority = Priority.NORMAL;
             this.answerErrorID = RESULT_OK;
             this.answerErrorMessage = "";
+            this.retryAfter = 0;
+            this.headerFormat = HEADER_FULL;
         }
 
         /** Конструктор копии. */
         public Meta(Meta src) {
+            set(src);
+        }
+
+        /** Копирование метаданных (для повторного использования объекта без создания нового). */
+        public Meta set(Meta src) {
             this.senderID = src.senderID;
             this.messageID = src.messageID;
             this.requestType = src.requestType;
             this.commandID = src.commandID;
             this.executeTimeout = src.executeTimeout;
             this.finalizationID = src.finalizationID;
+            this.priority = src.priority;
             this.answerErrorID = src.answerErrorID;
             this.answerErrorMessage = src.answerErrorMessage;
+            this.retryAfter = src.retryAfter;
+            this.headerFormat = src.headerFormat;
+            return this;
         }
 
         /** Создание метаданных из данных буфера. */
         public DataBuffer parse(boolean isanswer, DataBuffer buffer) throws ExResultError {
             try {
+                if (buffer.remaining() > 0 && buffer.getAt(buffer.pos()) == COMPACT_MARKER) {
+                    return parseCompact(isanswer, buffer);
+                }
+                headerFormat = HEADER_FULL;
                 senderID = buffer.getInt();
                 messageID = buffer.getLong();
                 int id = buffer.get();
-                requestType = RequestType.byId(id);
+                requestType = RequestType.byId(id & ~PRIORITY_FLAG);
                 if (requestType == null) {
                     throw new ExResultError(RESULT_WRONGVALUE, "Неверный код команды сервиса! {id=%d}", id);
                 }
@@ -316,14 +1092,19 @@ public abstract class RCService extends NetUDPService {
                 commandID = 0;
                 executeTimeout = 0;
                 finalizationID = 0;
+                priority = Priority.NORMAL;
                 answerErrorID = RESULT_OK;
                 answerErrorMessage = "";
+                retryAfter = 0;
 
                 switch (requestType) {
                     case EXECUTE:
+                    case EXECUTE_NOTIFY:
+                    case EXECUTE_BATCH:
                         // Для команды EXECUTE должны следовать дополнительные параметры для исполнения.
                         commandID = buffer.getLong();
                         executeTimeout = buffer.getInt();
+                        if ((id & PRIORITY_FLAG) != 0) parsePriority(buffer);
                         break;
 
                     case GETRESULT:
@@ -337,15 +1118,14 @@ public abstract class RCService extends NetUDPService {
                         // Для команды FINALIZE должны следовать дополнительные параметры.
                         commandID = buffer.getLong();
                         finalizationID = buffer.getLong();
+                        break;
+                    case CANCEL:
+                        commandID = buffer.getLong();
                 }
 
                 if (isanswer) { // Для ответа добавляем результат.
                     answerErrorID = buffer.getInt2();
-                    if (answerErrorID != RESULT_OK && buffer.remaining() > 0) {
-                        answerErrorMessage = buffer.getString(buffer.remaining());
-                    } else {
-                        answerErrorMessage = "";
-                    }
+                    parseAnswerError(buffer);
                 }
 
             } catch (ExResultError ex) {
@@ -356,6 +1136,107 @@ public abstract class RCService extends NetUDPService {
             return buffer;
         }
 
+        /** Разбор компактного заголовка (см. описание класса). */
+        private DataBuffer parseCompact(boolean isanswer, DataBuffer buffer) throws ExResultError {
+            buffer.get(); // Признак формата.
+            headerFormat = HEADER_COMPACT;
+            int id = buffer.get();
+            requestType = RequestType.byId(id & ~PRIORITY_FLAG);
+            if (requestType == null) {
+                throw new ExResultError(RESULT_WRONGVALUE, "Неверный код команды сервиса! {id=%d}", id);
+            }
+            senderID = (int) buffer.getVarLong();
+            messageID = buffer.getVarLong();
+
+            commandID = 0;
+            executeTimeout = 0;
+            finalizationID = 0;
+            priority = Priority.NORMAL;
+            answerErrorID = RESULT_OK;
+            answerErrorMessage = "";
+            retryAfter = 0;
+
+            switch (requestType) {
+                case EXECUTE:
+                case EXECUTE_NOTIFY:
+                case EXECUTE_BATCH:
+                    commandID = messageID + unzigzag(buffer.getVarLong());
+                    executeTimeout = (int) unzigzag(buffer.getVarLong());
+                    if ((id & PRIORITY_FLAG) != 0) parsePriority(buffer);
+                    break;
+                case GETRESULT:
+                    commandID = messageID + unzigzag(buffer.getVarLong());
+                    if (isanswer) finalizationID = commandID + unzigzag(buffer.getVarLong());
+                    break;
+                case FINALIZE:
+                    commandID = messageID + unzigzag(buffer.getVarLong());
+                    finalizationID = commandID + unzigzag(buffer.getVarLong());
+                    break;
+                case CANCEL:
+                    commandID = messageID + unzigzag(buffer.getVarLong());
+            }
+
+            if (isanswer) {
+                answerErrorID = (int) buffer.getVarLong();
+                parseAnswerError(buffer);
+            }
+            return buffer;
+        }
+
+        /**
+         * Разбор ошибки ответа (после результата): строка сообщения до конца данных, для RESULT_BUSY - с завершающим
+         * нулём и паузой перед повтором (если их нет - пауза 0).
+         */
+        private void parseAnswerError(DataBuffer buffer) {
+            answerErrorMessage = "";
+            retryAfter = 0;
+            if (answerErrorID == RESULT_OK) return;
+            int len = buffer.remaining();
+            if (answerErrorID == RESULT_BUSY && len >= 5 && buffer.getAt(buffer.pos() + len - 5) == 0) {
+                answerErrorMessage = buffer.getZString(len - 4);
+                retryAfter = buffer.getInt();
+            } else if (len > 0) {
+                answerErrorMessage = buffer.getString(len);
+            }
+        }
+
+        /** Запись ошибки ответа (после результата, см. parseAnswerError()). */
+        private void buildAnswerError(DataBuffer buffer) {
+            if (answerErrorID == RESULT_OK) return;
+            buffer.putFullString(answerErrorMessage);
+            if (answerErrorID == RESULT_BUSY) buffer.put(0).putInt(retryAfter);
+        }
+
+        /** Разбор класса приоритета. */
+        private void parsePriority(DataBuffer buffer) throws ExResultError {
+            int id = buffer.get();
+            priority = Priority.byId(id);
+            if (priority == null) {
+                throw new ExResultError(RESULT_WRONGVALUE, "Неверный класс приоритета! {id=%d}", id);
+            }
+        }
+
+        /** Код типа запроса для заголовка (с битом PRIORITY_FLAG, если передаётся класс приоритета). */
+        private int requestTypeCode() {
+            switch (requestType) {
+                case EXECUTE:
+                case EXECUTE_NOTIFY:
+                case EXECUTE_BATCH:
+                    if (priority != null && priority != Priority.NORMAL) return requestType.id | PRIORITY_FLAG;
+            }
+            return requestType.id;
+        }
+
+        /** Зигзаг-кодирование знакового числа (малые по модулю числа - в малые беззнаковые). */
+        private static long zigzag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+
+        /** Декодирование зигзаг-кодированного числа. */
+        private static long unzigzag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+
         /** Создание метаданных запроса из данных буфера. */
         public DataBuffer parseRequest(DataBuffer buffer) throws ExResultError {
             return parse(false, buffer);
@@ -372,12 +1253,17 @@ public abstract class RCService extends NetUDPService {
                 if (requestType == null) {
                     throw new ExResultError(RESULT_WRONGVALUE, "Не задана команда!");
                 }
-                buffer.putInt(senderID).putLong(messageID).put(requestType.id);
+                if (headerFormat == HEADER_COMPACT) return buildCompact(isanswer, buffer);
+                int type = requestTypeCode();
+                buffer.putInt(senderID).putLong(messageID).put(type);
 
                 switch (requestType) {
                     case EXECUTE:
+                    case EXECUTE_NOTIFY:
+                    case EXECUTE_BATCH:
                         // Для команды EXECUTE должны следовать дополнительные параметры для исполнения.
                         buffer.putLong(commandID).putInt(executeTimeout);
+                        if ((type & PRIORITY_FLAG) != 0) buffer.put(priority.id);
                         break;
 
                     case GETRESULT:
@@ -390,13 +1276,14 @@ public abstract class RCService extends NetUDPService {
                     case FINALIZE:
                         // Для команды FINALIZE должны следовать дополнительные параметры.
                         buffer.putLong(commandID).putLong(finalizationID);
+                        break;
+                    case CANCEL:
+                        buffer.putLong(commandID);
                 }
 
                 if (isanswer) { // Для ответа добавляем результат.
                     buffer.putInt2(answerErrorID);
-                    if (answerErrorID != RESULT_OK && !answerErrorMessage.isEmpty()) {
-                        buffer.putFullString(answerErrorMessage);
-                    }
+                    buildAnswerError(buffer);
                 }
 
             } catch (ExResultError ex) {
@@ -407,6 +1294,36 @@ public abstract class RCService extends NetUDPService {
             return buffer;
         }
 
+        /** Формирование компактного заголовка (см. описание класса). */
+        private DataBuffer buildCompact(boolean isanswer, DataBuffer buffer) {
+            int type = requestTypeCode();
+            buffer.put(COMPACT_MARKER).put(type).putVarLong(senderID & 0xFFFFFFFFL).putVarLong(messageID);
+
+            switch (requestType) {
+                case EXECUTE:
+                case EXECUTE_NOTIFY:
+                case EXECUTE_BATCH:
+                    buffer.putVarLong(zigzag(commandID - messageID)).putVarLong(zigzag(executeTimeout));
+                    if ((type & PRIORITY_FLAG) != 0) buffer.put(priority.id);
+                    break;
+                case GETRESULT:
+                    buffer.putVarLong(zigzag(commandID - messageID));
+                    if (isanswer) buffer.putVarLong(zigzag(finalizationID - commandID));
+                    break;
+                case FINALIZE:
+                    buffer.putVarLong(zigzag(commandID - messageID)).putVarLong(zigzag(finalizationID - commandID));
+                    break;
+                case CANCEL:
+                    buffer.putVarLong(zigzag(commandID - messageID));
+            }
+
+            if (isanswer) {
+                buffer.putVarLong(answerErrorID & 0xFFFFFFFFL);
+                buildAnswerError(buffer);
+            }
+            return buffer;
+        }
+
         /** Формирование данных запроса в буфере из метаданных. */
         public DataBuffer buildRequest(DataBuffer buffer) throws ExResultError {
             return build(false, buffer);
@@ -434,7 +1351,7 @@ public abstract class RCService extends NetUDPService {
     public static class ExecMeta {
 
         /** Адрес отправителя команды (для информации). */
-        public InetSocketAddress address;
+        public SocketAddress address;
         /** Время приема команды на стороне сервиса (для проверки таймаута исполнения). */
         public long receiveTime;
         /** Время начала ожидания получения результата (время завершение выполнения команды). */
@@ -481,4 +1398,17 @@ public abstract class RCService extends NetUDPService {
             this.errorID = errid;
         }
     }
+
+    /**
+     * Исключение для отказа в исполнении команды из-за перегрузки (RESULT_BUSY) с рекомендуемой паузой перед повтором.
+     */
+    public static class ExBusy extends ExResultError {
+        /** Рекомендуемая пауза перед повтором запроса (мсек). */
+        public final int retryAfter;
+
+        public ExBusy(int retryafter, String fmt, Object... params) {
+            super(RESULT_BUSY, fmt, params);
+            this.retryAfter = retryafter;
+        }
+    }
 }
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2016. Aleksey Nikolaevich Dokshin. All right reserved.
+ * Contacts: dant.it@gmail.com, dokshin@list.ru.
+ */
+
+package app.service;
+
+import app.ExError;
+import app.FireCallback;
+import app.LoggerExt;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Хост сетевых сервисов удаленного управления. Обслуживает каналы всех подключенных к нему сервисов одним потоком на
+ * одном селекторе: запускает и останавливает сервисы, ожидает поступления датаграмм и передаёт их на обработку
+ * (processMessage()) соответствующему сервису. Таким образом кол-во сетевых потоков не зависит от кол-ва устройств.
+ * <p>
+ * Подключенные сервисы не имеют собственного потока "контроллера" и не могут запускаться\останавливаться
+ * самостоятельно - только вместе с хостом. Прерывание сервиса (например, запросом STOP) обрабатывается хостом, в том
+ * числе и авторестарт сервиса. Если нужно распределить сервисы по нескольким потокам - создаётся несколько хостов.
+ */
+public class RCServiceHost extends Service {
+
+    private final LoggerExt logger;
+
+    /** Селектор для ожидания датаграмм всех сервисов (существует только во время работы хоста). */
+    private volatile Selector selector;
+
+    /** Описатель подключенного сервиса. */
+    private static class Entry {
+        /** Сервис. */
+        final NetUDPService service;
+        /** Таймаут авторестарта сервиса (для восстановления значения после каждого перезапуска). */
+        final long savedAutoRestartTimeout;
+        /** Время следующего запуска сервиса (если = -1, то запуск не требуется). */
+        long startTime;
+
+        Entry(NetUDPService service) {
+            this.service = service;
+            this.savedAutoRestartTimeout = service.getAutoRestartTimeout();
+            this.startTime = 0;
+        }
+    }
+
+    /** Список подключенных сервисов. Изменяем и проверяем только синхронизированно на нём! */
+    private final ArrayList<Entry> entries;
+
+    /**
+     * Конструктор.
+     *
+     * @param name Название хоста.
+     */
+    public RCServiceHost(String name) {
+        super(name);
+        this.logger = LoggerExt.getNewLogger("RCServiceHost-" + name).enable(true).toFile();
+        this.selector = null;
+        this.entries = new ArrayList<>();
+    }
+
+    /** Получение селектора хоста (для регистрации каналов сервисов). */
+    Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Подключение сервиса к хосту. Сервис должен быть не запущен. Если хост работает - сервис будет запущен
+     * немедленно, иначе - при запуске хоста.
+     *
+     * @param service Сервис.
+     * @throws ExWrongState Если сервис уже запущен или подключен к хосту.
+     */
+    public void attach(NetUDPService service) throws ExWrongState {
+        synchronized (entries) {
+            if (service.getHost() != null) {
+                throw new ExWrongState("Сервис уже подключен к хосту! {service=%s host=%s}",
+                        service.getName(), service.getHost().getName());
+            }
+            State st = service.getState();
+            if (st != State.CREATED && st != State.STOPPED) {
+                throw new ExWrongState("Сервис уже запущен! {service=%s state=%s}", service.getName(), st.name());
+            }
+            service.setHost(this);
+            entries.add(new Entry(service));
+        }
+        wakeupSelector(); // Для немедленного запуска сервиса.
+    }
+
+    /** Кол-во подключенных сервисов. */
+    public int getServicesCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    protected void terminate() {
+        super.terminate();
+        wakeupSelector(); // Для досрочного выхода из ожидания датаграмм.
+    }
+
+    @Override
+    protected void halt() {
+        super.halt();
+        wakeupSelector(); // Для досрочного выхода из ожидания датаграмм.
+    }
+
+    /** Пробуждение потока хоста, ожидающего датаграммы на селекторе. */
+    private void wakeupSelector() {
+        Selector sel = selector;
+        if (sel != null) sel.wakeup();
+    }
+
+    @Override
+    protected void fireOnStart() {
+        FireCallback.safe(super::fireOnStart);
+        if (!isTerminating()) {
+            logger.infof("Запуск хоста сервисов (services=%d)!", getServicesCount());
+            try {
+                selector = Selector.open();
+            } catch (Exception ex) {
+                logger.errorf("Ошибка создания селектора - %s!", ExError.exMsg(ex));
+                terminate();
+            }
+            synchronized (entries) {
+                for (Entry e : entries) e.startTime = 0; // Все сервисы запускаются вместе с хостом.
+            }
+        }
+    }
+
+    @Override
+    protected void fireOnStop() {
+        // Полная остановка всех работающих сервисов.
+        synchronized (entries) {
+            for (Entry e : entries) {
+                State st = e.service.getState();
+                if (st == State.WORKING || st == State.AUTORESTARTING) {
+                    e.service.halt();
+                    e.service.stopHosted();
+                }
+                e.startTime = -1;
+            }
+        }
+        try {
+            if (selector != null) {
+                selector.close();
+                selector = null;
+            }
+        } catch (Exception ignore) {
+        }
+        logger.info("Остановка хоста сервисов!");
+        FireCallback.safe(super::fireOnStop);
+    }
+
+    /**
+     * Запуск сервисов, время запуска которых наступило, и остановка прерванных сервисов.
+     *
+     * @return Время до ближайшего запуска сервиса (если = 0, то запусков не запланировано).
+     */
+    private long maintainServices() {
+        long now = System.currentTimeMillis();
+        long next = 0;
+        synchronized (entries) {
+            for (Entry e : entries) {
+                NetUDPService s = e.service;
+                if (s.getState() == State.WORKING && s.isTerminating()) {
+                    long timeout = s.stopHosted();
+                    logger.infof("Сервис остановлен! {service=%s restart=%d}", s.getName(), timeout);
+                    e.startTime = timeout < 0 ? -1 : now + timeout;
+                }
+                if (e.startTime >= 0 && e.startTime <= now) {
+                    s.setAutoRestartTimeout(e.savedAutoRestartTimeout);
+                    e.startTime = -1;
+                    if (!s.startHosted()) {
+                        long timeout = s.getAutoRestartTimeout();
+                        logger.errorf("Ошибка запуска сервиса! {service=%s restart=%d}", s.getName(), timeout);
+                        if (timeout >= 0 && s.getState() == State.AUTORESTARTING) e.startTime = now + timeout;
+                    }
+                }
+                if (e.startTime >= 0) {
+                    long dt = Math.max(1, e.startTime - now);
+                    next = next == 0 ? dt : Math.min(next, dt);
+                }
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Тело обработчика хоста. Ожидает на селекторе поступления датаграмм для любого из сервисов и передаёт их на
+     * обработку сервису-владельцу канала. Между ожиданиями производит запуск\остановку сервисов.
+     *
+     * @throws ExError
+     */
+    @Override
+    protected void serviceBody() throws ExError {
+        try {
+            while (!isTerminating()) {
+                long timeout = maintainServices();
+                selector.select(timeout);
+                Thread.interrupted(); // Прерывание потока только будит селектор.
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NetUDPService s = (NetUDPService) key.attachment();
+                    if (!key.isValid() || s.isTerminating()) continue;
+                    try {
+                        s.receiveMessages();
+                    } catch (IOException ex) {
+                        logger.errorf("Ошибка IO сервиса %s - %s!", s.getName(), ExError.exMsg(ex));
+                        s.terminate(); // Сервис будет остановлен (и перезапущен, если задан авторестарт).
+                    }
+                }
+            }
+
+        } catch (IOException ex) {
+            logger.errorf("Ошибка IO - %s!", ExError.exMsg(ex));
+        } catch (Exception ex) {
+            logger.errorf("Ошибка хоста - %s!", ExError.exMsg(ex));
+        }
+    }
+}
@@ -138,6 +138,7 @@ public abstract class RS232RCService extends QueuedRCService {
     public static final int DEV_OK = 0;
     public static final int DEV_DISCONNECTED = 1;
     public static final int DEV_UNSUPPORTED = 2;
+    public static final int DEV_CANCELLED = 3;
     public static final int DEV_ERROR = 100;
 
     /**
@@ -154,6 +155,8 @@ public abstract class RS232RCService extends QueuedRCService {
                 return "DEV_DISCONNECTED";
             case DEV_UNSUPPORTED:
                 return "DEV_UNSUPPORTED";
+            case DEV_CANCELLED:
+                return "DEV_CANCELLED";
             case DEV_ERROR:
                 return "DEV_ERROR";
             default:
@@ -51,6 +51,7 @@ public class SBPinpadRCClient extends RCClient {
         public int processorState;
         public int slotsFree, slotsExecute, slotsResult;
         public int queueFree, queurSize;
+        public int executorMode, executorQueue, executorActive;
         /** Флаг дисконнекта устройства. */
         public boolean isDeviceConnected;
 
@@ -67,6 +68,12 @@ public class SBPinpadRCClient extends RCClient {
             queurSize = buffer.getInt2();
             // RS232RCService
             isDeviceConnected = (buffer.get() != 0);
+            // QueuedRCService (после полей всех классов; у сервиса прежней версии - нет)
+            if (buffer.remaining() >= 5) {
+                executorMode = buffer.get();
+                executorQueue = buffer.getInt2();
+                executorActive = buffer.getInt2();
+            }
         }
     }
 
@@ -318,10 +325,12 @@ public class SBPinpadRCClient extends RCClient {
             logger.infof(" STATE1: err=%d msg=%s tm(start=%s, stop=%s, restart=%s)",
                     rState.answerErrorID, rState.answerErrorMessage,
                     ldf(rState.lastStartTime), ldf(rState.lastStopTime), ldf(rState.lastAutoRestartTime));
-            logger.infof(" STATE2: prcMode=%d isSingle=%d pcState=%d slot(free=%d exec=%d res=%d) queue(free=%d size=%d)",
+            logger.infof(" STATE2: prcMode=%d isSingle=%d pcState=%d slot(free=%d exec=%d res=%d) queue(free=%d size=%d)" +
+                            " executor(mode=%d queue=%d active=%d)",
                     rState.processingMode, rState.isSingleSerialMode ? 1:0, rState.processorState,
                     rState.slotsFree, rState.slotsExecute, rState.slotsResult,
-                    rState.queueFree, rState.queurSize);
+                    rState.queueFree, rState.queurSize,
+                    rState.executorMode, rState.executorQueue, rState.executorActive);
             logger.infof(" STATE3: devsatet=%s",
                     rState.isDeviceConnected ? "CONNECTED" : "DISCONNECTED");
             //CommonTools.safeInterruptedSleep(1000);
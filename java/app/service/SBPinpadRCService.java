@@ -28,6 +28,8 @@ public class SBPinpadRCService extends RS232RCService {
     public SBPinpadRCService(String name, int udpport, String comportname, int bitrate) throws ExError {
         super(name, udpport, 2000, 2, ProcessingMode.SERIAL_FOR_CLIENT, comportname);
         this.logger = LoggerExt.getNewLogger("SBPinpadRCService-" + name).enable(true).toFile();
+        // Тексты чеков (отчётов) могут не помещаться в датаграмму - такие ответы отсылаются фрагментами.
+        setMaxAnswerSize(60000);
         //driver.enableLogger(true);
         // Создание пинпада СБ.
         pinpad = new SBPinpadDevice(name, getDriver().bitrate(bitrate), "cp866");
@@ -46,7 +48,7 @@ public class SBPinpadRCService extends RS232RCService {
             logger.infof("Начало выполнения СБ команды! slot={%s}", slot.toString());
 
             // Разбор, выполнениние команды, формирование результата.
-            parseAndExecute(slot.execmeta.buffer.rewind());
+            parseAndExecute(slot, slot.execmeta.buffer.rewind());
 
         } catch (RS232Driver.ExDisconnect ex) {
             // При дисконнекте связь автоматически должен восстанавливать регенератор!
@@ -64,6 +66,23 @@ public class SBPinpadRCService extends RS232RCService {
         }
     }
 
+    /**
+     * Объединяются запросы без побочных эффектов: проверка готовности пинпада и получение последнего отпечатанного
+     * текста (одновременные запросы от разных касс исполняются на устройстве один раз).
+     */
+    @Override
+    protected boolean isCoalescable(DataBuffer command) {
+        if (command.length() < 1) return false;
+        int cmdid = command.getAt(0);
+        return cmdid == CMD_GETREADY || cmdid == CMD_GETPRINTER;
+    }
+
+    /** Тип команды для оценки времени исполнения - код команды (время исполнения операций пинпада сильно разное). */
+    @Override
+    protected int commandType(DataBuffer command) {
+        return command.length() > 0 ? command.getAt(0) : 0;
+    }
+
     public static final int CMD_GETREADY = 1;
     public static final int CMD_CARDTEST = 2;
     //
@@ -94,8 +113,15 @@ public class SBPinpadRCService extends RS232RCService {
         return buf;
     }
 
-    /** Парсит окно буфера как входящую команду терминалу, исполняет её и помещает в буфер результат для ответа. */
-    private void parseAndExecute(DataBuffer buf) throws ExError {
+    /**
+     * Парсит окно буфера как входящую команду терминалу, исполняет её и помещает в буфер результат для ответа.
+     * <p>
+     * Прервать транзакцию на терминале нельзя (диалог с держателем карты ведёт сам терминал), поэтому отмена
+     * исполняемой команды учитывается только для оплаты: если клиент отменил команду, а оплата прошла - она
+     * откатывается (TR_ROLLBACK, без предъявления карты) и возвращается DEV_CANCELLED. TR_CANCEL для этого не подходит
+     * - он требует карту и подтверждения на терминале.
+     */
+    private void parseAndExecute(Slot slot, DataBuffer buf) throws ExError {
         SBPinpadDevice.TRResult tr;
         SBPinpadDevice.MCMeta mc;
         String s, rrn, hexenc, authcode;
@@ -137,6 +163,16 @@ public class SBPinpadRCService extends RS232RCService {
             case CMD_TR_PURCHASE:
                 amount = buf.getInt(); // [4]
                 tr = pinpad.cmd_TR_Purchase(amount);
+                if (slot.isCancelRequested() && tr.resultCode == 0) {
+                    logger.infof("Оплата отменена клиентом - откат транзакции! {amount=%d rrn=%s}", amount, tr.RRN);
+                    SBPinpadDevice.TRResult rb = pinpad.cmd_TR_Rollback(amount, tr.authCode);
+                    if (rb.resultCode == 0) {
+                        buf.reset().putInt2(DEV_CANCELLED).putNString("Операция отменена - транзакция откачена!").flip();
+                        break;
+                    }
+                    // Откат не прошёл - оплата проведена, возвращаем её результат.
+                    logger.errorf("Откат отменённой оплаты не выполнен! {code=%d}", rb.resultCode);
+                }
                 tr.build(buf.reset().putInt2(DEV_OK)).flip(); // [TRResult]
                 break;
             case CMD_TR_REFUND:
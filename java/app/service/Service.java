@@ -132,6 +132,10 @@ public abstract class Service {
         this.stopTimeout = stopTimeout;
     }
 
+    public long getAutoRestartTimeout() {
+        return autoRestartTimeout;
+    }
+
     public void setAutoRestartTimeout(long timeout) {
         this.autoRestartTimeout = timeout;
     }
@@ -283,6 +287,53 @@ public abstract class Service {
         FireCallback.safe(this::fireOnHalt);
     }
 
+    /**
+     * Запуск сервиса в потоке хоста (без собственного потока "контроллера"). Выполняет те же этапы, что и поток сервиса
+     * до вызова serviceBody(). Работу serviceBody() в этом случае выполняет сам хост. Только для хостов сервисов!
+     *
+     * @return Результат: true - сервис запущен (WORKING), false - запуск прерван (сервис остановлен).
+     */
+    boolean startHosted() {
+        synchronized (syncState) {
+            terminating = TERMINATING_NO;
+        }
+        lastStartTime = System.currentTimeMillis();
+        setState(State.STARTING);
+        FireCallback.safe(this::fireOnStart);
+        if (isTerminating()) {
+            stopHosted();
+            return false;
+        }
+        setState(State.WORKING);
+        return true;
+    }
+
+    /**
+     * Остановка сервиса в потоке хоста. Выполняет те же этапы, что и поток сервиса после завершения serviceBody().
+     * Только для хостов сервисов!
+     *
+     * @return Таймаут до авторестарта сервиса (если = -1, то это полная остановка сервиса - STOPPED).
+     */
+    long stopHosted() {
+        // Обязательно выставляем флаг прерывания - для сигнализации другим потокам.
+        if (autoRestartTimeout < 0) {
+            halt(); // Если не задан рестарт - то это полная остановка сервиса.
+        } else {
+            terminate();
+        }
+        setState(State.STOPPING);
+        FireCallback.safe(this::fireOnStop);
+        lastStopTime = System.currentTimeMillis();
+
+        if (isHalting()) {
+            setState(State.STOPPED);
+            FireCallback.safe(this::fireOnHalt);
+            return -1;
+        }
+        setState(State.AUTORESTARTING);
+        return autoRestartTimeout;
+    }
+
     /**
      * Ожидание достижения сервисом указанного состояния.
      *
@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2016. Aleksey Nikolaevich Dokshin. All right reserved.
+ * Contacts: dant.it@gmail.com, dokshin@list.ru.
+ */
+
+package app.service;
+
+import app.DataBuffer;
+import app.ExError;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+import static util.MemoryFences.fullFence;
+import static util.MemoryFences.loadFence;
+import static util.MemoryFences.storeFence;
+
+/**
+ * Канал обмена сообщениями через разделяемую память (отображаемый в память файл) - транспорт для клиента и сервиса на
+ * одном компьютере вместо UDP. Содержит два кольцевых буфера: запросов (клиент -> сервис) и ответов (сервис ->
+ * клиент). Сообщения - те же, что и в датаграммах (метаданные + данные), но без длины и CRC16 (целостность памяти
+ * не проверяется).
+ * <p>
+ * Каждое кольцо - с одним писателем и одним читателем (SPSC), поэтому канал обслуживает одного клиента (для нескольких
+ * клиентов - несколько каналов). Запись в кольцо в пределах процесса - синхронизированная (на кольце).
+ * <p>
+ * Читатель опрашивает кольцо, при отсутствии сообщений - сначала уступает процессор (короткое ожидание с низкой
+ * задержкой), потом засыпает на короткие паузы (см. await()). Сервис при долгом простое может ждать на селекторе:
+ * он отмечает ожидание в кольце запросов (см. armWakeup()), а клиент, записав запрос в такое кольцо, будит сервис
+ * звонком - датаграммой в 1 байт на UDP порт сервиса (локальный адрес), указанный в файле канала.
+ * <pre>
+ * Формат файла: [4] сигнатура, [4] версия, [4] ёмкость кольца, [4] UDP порт звонка (0 - нет), далее 2 кольца
+ * (запросов и ответов).
+ * Формат кольца: [8] позиция записи, [56] резерв, [8] позиция чтения, [4] признак ожидания читателя на звонке,
+ * [52] резерв, [ёмкость] данные.
+ * Формат записи: [4] длина, [длина] сообщение, выравнивание до 4 байт. Длина = -1 - переход на начало кольца.
+ * </pre>
+ */
+public class ShmChannel {
+
+    /** Сигнатура файла канала. */
+    private static final int MAGIC = 0x52434D31; // "RCM1"
+    /** Версия формата. */
+    private static final int VERSION = 2;
+    /** Размер заголовка файла. */
+    private static final int FILE_HEADER_SIZE = 16;
+    /** Размер заголовка кольца (позиции записи и чтения - в разных строках кэша). */
+    private static final int RING_HEADER_SIZE = 128;
+    /** Смещение позиции чтения в заголовке кольца. */
+    private static final int RING_TAIL_OFFSET = 64;
+    /** Смещение признака ожидания читателя на звонке в заголовке кольца (в строке кэша читателя). */
+    private static final int RING_WAIT_OFFSET = 72;
+    /** Длина-маркер перехода на начало кольца. */
+    private static final int WRAP_MARKER = -1;
+
+    /** Кол-во уступаний процессора при ожидании сообщения до перехода на паузы. */
+    private static final int AWAIT_SPINS = 200;
+    /** Пауза при ожидании сообщения после уступаний процессора (наносек). */
+    private static final long AWAIT_PARK_NANOS = 50000;
+    /** Размер датаграммы звонка (сервис отличает её от сообщений по длине - сообщение не короче 4 байт). */
+    public static final int DOORBELL_SIZE = 1;
+
+    /** Адрес канала (вместо адреса отправителя датаграммы). */
+    public static class Address extends SocketAddress {
+        private final String path;
+
+        public Address(File file) {
+            this.path = file.getAbsolutePath();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Address && ((Address) o).path.equals(path);
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "shm:" + path;
+        }
+    }
+
+    /** Звонок: датаграмма, будящая сервис, ожидающий на селекторе. */
+    private static class Doorbell {
+        private final InetSocketAddress address;
+        private final ByteBuffer bell = ByteBuffer.allocateDirect(DOORBELL_SIZE);
+        private DatagramChannel channel;
+
+        Doorbell(int port) {
+            this.address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        }
+
+        /** Отправка звонка (вызывается под синхронизацией кольца). Ошибка не критична - сервис ждёт с тайм-аутом. */
+        void ring() {
+            try {
+                if (channel == null) {
+                    channel = DatagramChannel.open();
+                    channel.configureBlocking(false);
+                }
+                bell.clear();
+                channel.send(bell, address);
+            } catch (Exception ignore) {
+            }
+        }
+
+        void close() {
+            try {
+                if (channel != null) channel.close();
+            } catch (Exception ignore) {
+            }
+        }
+    }
+
+    /** Кольцевой буфер сообщений с одним писателем и одним читателем. */
+    public static class Ring {
+        private final ByteBuffer bb;
+        private final int capacity;
+        /** Звонок для читателя, ожидающего на селекторе (null - не используется). */
+        private final Doorbell doorbell;
+
+        Ring(ByteBuffer bb, int capacity, Doorbell doorbell) {
+            this.bb = bb;
+            this.capacity = capacity;
+            this.doorbell = doorbell;
+        }
+
+        void init() {
+            bb.putLong(0, 0);
+            bb.putLong(RING_TAIL_OFFSET, 0);
+            bb.putInt(RING_WAIT_OFFSET, 0);
+        }
+
+        private long head() {
+            return bb.getLong(0);
+        }
+
+        private long tail() {
+            return bb.getLong(RING_TAIL_OFFSET);
+        }
+
+        /** Признак наличия сообщений. */
+        public boolean isEmpty() {
+            boolean empty = head() == tail();
+            loadFence(); // Позиция записи - до данных записи.
+            return empty;
+        }
+
+        /**
+         * Запись сообщения в кольцо.
+         *
+         * @param src    Буфер с сообщением.
+         * @param offset Смещение сообщения относительно окна буфера.
+         * @param length Длина сообщения.
+         * @return Результат: true - записано, false - нет места в кольце (сообщение больше кольца - тоже false).
+         */
+        public synchronized boolean offer(DataBuffer src, int offset, int length) {
+            int size = align(4 + length);
+            long head = head();
+            int idx = (int) (head % capacity);
+            int gap = idx + size > capacity ? capacity - idx : 0; // Остаток до конца кольца, если запись не умещается.
+            if (size + gap > capacity - (head - tail())) return false;
+            loadFence(); // Позиция чтения (освобождённое место) - до записи данных.
+            if (gap > 0) {
+                bb.putInt(RING_HEADER_SIZE + idx, WRAP_MARKER);
+                head += gap;
+                idx = 0;
+            }
+            bb.putInt(RING_HEADER_SIZE + idx, length);
+            ByteBuffer dst = bb.duplicate();
+            dst.position(RING_HEADER_SIZE + idx + 4);
+            dst.put(src.buffer(), src.arrayOffset() + src.offset() + offset, length);
+            storeFence(); // Данные записи - до позиции записи.
+            bb.putLong(0, head + size);
+            if (doorbell != null) {
+                fullFence(); // Позиция записи - до проверки признака ожидания (см. armWakeup()).
+                if (bb.getInt(RING_WAIT_OFFSET) != 0) doorbell.ring();
+            }
+            return true;
+        }
+
+        /**
+         * Чтение сообщения из кольца.
+         *
+         * @param dst    Буфер для сообщения.
+         * @param offset Смещение для сообщения относительно окна буфера.
+         * @return Длина сообщения или -1, если сообщений нет.
+         * @throws ExError При неверной длине записи или недостаточном размере буфера (запись пропускается).
+         */
+        public int poll(DataBuffer dst, int offset) throws ExError {
+            long tail = tail();
+            long head = head();
+            loadFence(); // Позиция записи - до данных записи.
+            if (head == tail) return -1;
+            int idx = (int) (tail % capacity);
+            int length = bb.getInt(RING_HEADER_SIZE + idx);
+            if (length == WRAP_MARKER) {
+                tail += capacity - idx;
+                idx = 0;
+                length = bb.getInt(RING_HEADER_SIZE);
+            }
+            if (length < 0 || length > capacity - 4) {
+                bb.putLong(RING_TAIL_OFFSET, head); // Кольцо испорчено - отбрасываем всё записанное.
+                throw new ExError("Неверная длина записи в кольце! {length=%d}", length);
+            }
+            try {
+                if (offset + length > dst.capacity() - dst.offset()) {
+                    throw new ExError("Сообщение больше буфера! {length=%d}", length);
+                }
+                ByteBuffer src = bb.duplicate();
+                src.position(RING_HEADER_SIZE + idx + 4).limit(RING_HEADER_SIZE + idx + 4 + length);
+                src.get(dst.buffer(), dst.arrayOffset() + dst.offset() + offset, length);
+            } finally {
+                loadFence(); // Данные записи прочитаны - до освобождения места.
+                bb.putLong(RING_TAIL_OFFSET, tail + align(4 + length));
+            }
+            return length;
+        }
+
+        /**
+         * Ожидание сообщения в кольце: сначала уступание процессора, затем короткие паузы.
+         *
+         * @param timeout Время ожидания (мсек).
+         * @return Результат: true - есть сообщение, false - истекло время ожидания.
+         */
+        public boolean await(long timeout) {
+            long deadline = System.nanoTime() + timeout * 1000000L;
+            for (int i = 0; isEmpty(); i++) {
+                if (System.nanoTime() - deadline >= 0) return false;
+                if (i < AWAIT_SPINS) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(AWAIT_PARK_NANOS);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Отметка ожидания читателя на звонке (перед блокировкой на селекторе). Писатель, увидевший отметку после
+         * записи, звонит; если запись сделана раньше отметки - её увидит проверка после отметки.
+         *
+         * @return Результат: true - кольцо пусто (можно ждать звонка), false - есть сообщения.
+         */
+        public boolean armWakeup() {
+            bb.putInt(RING_WAIT_OFFSET, 1);
+            fullFence(); // Отметка - до проверки позиции записи.
+            return isEmpty();
+        }
+
+        /** Снятие отметки ожидания читателя на звонке (после пробуждения). */
+        public void disarmWakeup() {
+            bb.putInt(RING_WAIT_OFFSET, 0);
+        }
+
+        private static int align(int size) {
+            return (size + 3) & ~3;
+        }
+    }
+
+    private final File file;
+    private final Address address;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer map;
+    /** Звонок сервису (у клиента, если сервис его принимает - иначе null). */
+    private final Doorbell doorbell;
+    /** Кольцо запросов (клиент -> сервис). */
+    public final Ring requests;
+    /** Кольцо ответов (сервис -> клиент). */
+    public final Ring answers;
+
+    private ShmChannel(File file, RandomAccessFile raf, MappedByteBuffer map, int capacity, Doorbell doorbell) {
+        this.file = file;
+        this.address = new Address(file);
+        this.raf = raf;
+        this.map = map;
+        this.doorbell = doorbell;
+        int ringsize = RING_HEADER_SIZE + capacity;
+        map.position(FILE_HEADER_SIZE).limit(FILE_HEADER_SIZE + ringsize);
+        this.requests = new Ring(map.slice(), capacity, doorbell);
+        map.limit(map.capacity()).position(FILE_HEADER_SIZE + ringsize);
+        this.answers = new Ring(map.slice(), capacity, null);
+        map.clear();
+    }
+
+    /**
+     * Создание канала (сервисом): файл создаётся или перезаписывается, кольца очищаются.
+     *
+     * @param file         Файл канала.
+     * @param capacity     Ёмкость каждого кольца (байт, должна вмещать наибольшее сообщение с длиной).
+     * @param doorbellport UDP порт сервиса для звонка (0 - сервис не ждёт звонка, только опрашивает кольцо).
+     * @return Канал.
+     * @throws IOException
+     */
+    public static ShmChannel create(File file, int capacity, int doorbellport) throws IOException {
+        capacity = (Math.max(capacity, 64) + 3) & ~3;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long size = FILE_HEADER_SIZE + 2L * (RING_HEADER_SIZE + capacity);
+            raf.setLength(size);
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            map.putInt(0, 0); // Сигнатура - последней, после инициализации.
+            map.putInt(4, VERSION).putInt(8, capacity).putInt(12, doorbellport);
+            ShmChannel ch = new ShmChannel(file, raf, map, capacity, null);
+            ch.requests.init();
+            ch.answers.init();
+            storeFence();
+            map.putInt(0, MAGIC);
+            return ch;
+        } catch (IOException | RuntimeException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Подключение к каналу (клиентом): файл должен быть создан сервисом.
+     *
+     * @param file Файл канала.
+     * @return Канал.
+     * @throws IOException
+     */
+    public static ShmChannel open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            if (map.capacity() < FILE_HEADER_SIZE || map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+                throw new IOException("Файл не является каналом разделяемой памяти: " + file);
+            }
+            loadFence(); // Сигнатура - до заголовка и колец.
+            int capacity = map.getInt(8);
+            if (map.capacity() < FILE_HEADER_SIZE + 2L * (RING_HEADER_SIZE + capacity)) {
+                throw new IOException("Неверный размер файла канала разделяемой памяти: " + file);
+            }
+            int port = map.getInt(12);
+            return new ShmChannel(file, raf, map, capacity, port > 0 ? new Doorbell(port) : null);
+        } catch (IOException | RuntimeException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    /** Файл канала. */
+    public File getFile() {
+        return file;
+    }
+
+    /** Адрес канала (для обработки сообщений сервисом - вместо адреса отправителя). */
+    public Address getAddress() {
+        return address;
+    }
+
+    /** Закрытие канала (отображение файла освобождается сборщиком мусора). */
+    public void close() {
+        if (doorbell != null) doorbell.close();
+        try {
+            raf.close();
+        } catch (Exception ignore) {
+        }
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2016. Aleksey Nikolaevich Dokshin. All right reserved.
+ * Contacts: dant.it@gmail.com, dokshin@list.ru.
+ */
+
+package app.service;
+
+import app.DataBuffer;
+import app.ExError;
+import app.LoggerExt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал упреждающей записи слотов QueuedRCService: постановка команды в очередь, результат исполнения, освобождение
+ * слота. Нужен, чтобы результаты исполненных команд (например, проведённой оплаты) не терялись при перезапуске
+ * сервиса: при запуске журнал воспроизводится и результаты снова доступны по GETRESULT.
+ * <p>
+ * Журнал - два заранее выделенных сегмента (файлы base.0 и base.1), отображаемых в память. Запись - копирование в
+ * отображение (без системных вызовов), сброс на диск - отдельным потоком не чаще, чем раз в интервал (групповая
+ * фиксация: один force() на все записи интервала). При заполнении сегмента живые записи (занятые слоты) переписываются
+ * в другой сегмент (контрольная точка), после чего он становится действующим.
+ * <pre>
+ * Формат сегмента: [4] сигнатура, [4] версия, [8] эпоха, [16] резерв, далее записи.
+ * Формат записи: [4] длина данных (0 - конец журнала), [4] CRC32 эпохи и данных, [длина] данные.
+ * Данные записи: [1] тип, [4] ID отправителя, [8] ID команды, далее по типу:
+ *   REC_QUEUE  - [4] таймаут исполнения.
+ *   REC_RESULT - [4] таймаут исполнения, [8] ID финализации, [2] результат, [N] текст ошибки, [4] длина, [M] данные.
+ *   REC_FREE   - нет.
+ * </pre>
+ * Эпоха сегмента входит в CRC записей - записи прежнего содержимого сегмента после конца журнала не принимаются.
+ * Сигнатура и эпоха сегмента записываются последними (после сброса записей контрольной точки на диск).
+ * <p>
+ * Методы записи вызываются только синхронизированно (сервисом - на слотах)! Контрольная точка и сброс на диск (потоком
+ * сброса) синхронизированы на журнале.
+ */
+public class SlotJournal {
+
+    /** Сигнатура сегмента. */
+    private static final int MAGIC = 0x52434A31; // "RCJ1"
+    /** Версия формата. */
+    private static final int VERSION = 1;
+    /** Размер заголовка сегмента. */
+    private static final int HEADER_SIZE = 32;
+    /** Размер заголовка записи. */
+    private static final int RECORD_HEADER_SIZE = 8;
+    /** Минимальный размер сегмента. */
+    private static final int MIN_SIZE = 4096;
+
+    /** Тип записи: команда поставлена в очередь (или присоединена к исполняемой). */
+    public static final int REC_QUEUE = 1;
+    /** Тип записи: результат исполнения команды. */
+    public static final int REC_RESULT = 2;
+    /** Тип записи: слот освобождён. */
+    public static final int REC_FREE = 3;
+
+    /** Состояние команды, восстановленное из журнала. */
+    public static class Entry {
+        /** Тип последней записи (REC_QUEUE - результата нет, команда не была исполнена). */
+        public int type;
+        public int senderID;
+        public long commandID;
+        public int executeTimeout;
+        public long finalizationID;
+        public int answerErrorID;
+        public String answerErrorMessage;
+        /** Данные результата (для REC_RESULT). */
+        public byte[] body;
+
+        @Override
+        public String toString() {
+            return String.format("type=%d sender=%d cmd=%d finid=%d err=%d body=%d", type, senderID, commandID,
+                    finalizationID, answerErrorID, body != null ? body.length : 0);
+        }
+    }
+
+    private final LoggerExt logger;
+    private final File base;
+    private final int size;
+    private final RandomAccessFile[] files = new RandomAccessFile[2];
+    private final MappedByteBuffer[] maps = new MappedByteBuffer[2];
+    /** Эпохи сегментов (0 - сегмент не действующий). */
+    private final long[] epochs = new long[2];
+    /**
+     * Действующий сегмент. Меняется только контрольной точкой - под блокировкой журнала (сброс на диск её тоже берёт,
+     * чтобы не сбросить прежний сегмент и не снять признак несброшенных записей нового).
+     */
+    private volatile int current;
+    /** Позиция записи в действующем сегменте. */
+    private int position;
+    /** Буфер формирования данных записи. */
+    private DataBuffer record;
+    private final CRC32 crc = new CRC32();
+    /** Буфер для CRC эпохи. */
+    private final byte[] epochBytes = new byte[8];
+
+    /** Интервал сброса записей на диск (мсек). */
+    private final int flushInterval;
+    /** Признак наличия записей, не сброшенных на диск. */
+    private volatile boolean isDirty;
+    /** Поток сброса записей на диск. */
+    private final Thread flusher;
+    private volatile boolean isClosed;
+
+    /**
+     * Открытие (создание) журнала. Сегменты создаются при отсутствии, содержимое сохраняется до replay().
+     *
+     * @param base          Базовый файл журнала (сегменты - base.0 и base.1).
+     * @param size          Размер сегмента (байт).
+     * @param flushinterval Интервал сброса записей на диск (мсек).
+     * @throws IOException
+     */
+    public SlotJournal(File base, int size, int flushinterval) throws IOException {
+        this.logger = LoggerExt.getNewLogger("SlotJournal-" + base.getName()).enable(true).toFile();
+        this.base = base;
+        this.size = Math.max(size, MIN_SIZE);
+        this.flushInterval = Math.max(1, flushinterval);
+        this.record = new DataBuffer(Math.min(this.size, 65536));
+        try {
+            for (int i = 0; i < 2; i++) {
+                files[i] = new RandomAccessFile(segmentFile(i), "rw");
+                if (files[i].length() != this.size) files[i].setLength(this.size);
+                maps[i] = files[i].getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.size);
+                epochs[i] = maps[i].getInt(0) == MAGIC && maps[i].getInt(4) == VERSION ? maps[i].getLong(8) : 0;
+            }
+        } catch (IOException | RuntimeException ex) {
+            closeFiles();
+            throw ex;
+        }
+        current = epochs[1] > epochs[0] ? 1 : 0;
+        position = HEADER_SIZE;
+        this.flusher = new Thread(this::flusherBody, "SlotJournal-" + base.getName());
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /** Файл сегмента. */
+    private File segmentFile(int idx) {
+        return new File(base.getPath() + "." + idx);
+    }
+
+    /**
+     * Воспроизведение действующего сегмента: последнее состояние каждой команды, оставшейся в слотах (в порядке
+     * постановки). Позиция записи устанавливается на конец журнала.
+     *
+     * @return Состояния команд.
+     */
+    public ArrayList<Entry> replay() {
+        LinkedHashMap<RCService.IDKey, Entry> entries = new LinkedHashMap<>();
+        ByteBuffer bb = maps[current];
+        long epoch = epochs[current];
+        int pos = HEADER_SIZE;
+        if (epoch != 0) {
+            while (pos + RECORD_HEADER_SIZE <= size) {
+                int length = bb.getInt(pos);
+                if (length <= 0 || length > size - pos - RECORD_HEADER_SIZE) break;
+                byte[] data = new byte[length];
+                ByteBuffer src = bb.duplicate();
+                src.position(pos + RECORD_HEADER_SIZE);
+                src.get(data);
+                if (bb.getInt(pos + 4) != checksum(epoch, data, 0, length)) break; // Запись прежней эпохи или недописана.
+                try {
+                    apply(entries, new DataBuffer(data, 0, length));
+                } catch (Exception ex) {
+                    logger.errorf("Ошибка разбора записи журнала - %s!", ExError.exMsg(ex));
+                    break;
+                }
+                pos += RECORD_HEADER_SIZE + length;
+            }
+        }
+        position = pos;
+        logger.infof("Журнал воспроизведён! {segment=%d epoch=%d size=%d entries=%d}", current, epoch, pos,
+                entries.size());
+        return new ArrayList<>(entries.values());
+    }
+
+    /** Применение записи к состояниям команд. */
+    private static void apply(LinkedHashMap<RCService.IDKey, Entry> entries, DataBuffer buf) {
+        int type = buf.get();
+        int senderid = buf.getInt();
+        long cmdid = buf.getLong();
+        RCService.IDKey key = new RCService.IDKey(senderid, cmdid);
+        if (type == REC_FREE) {
+            entries.remove(key);
+            return;
+        }
+        Entry e = entries.get(key);
+        if (e == null) entries.put(key, e = new Entry());
+        e.type = type;
+        e.senderID = senderid;
+        e.commandID = cmdid;
+        e.executeTimeout = buf.getInt();
+        if (type == REC_RESULT) {
+            e.finalizationID = buf.getLong();
+            e.answerErrorID = buf.getInt2();
+            e.answerErrorMessage = buf.getNString();
+            e.body = buf.getArray(buf.getInt());
+        }
+    }
+
+    /**
+     * Начало контрольной точки: запись продолжается в другой сегмент (с новой эпохой). Далее - запись состояний всех
+     * занятых слотов и commitCheckpoint().
+     */
+    public synchronized void beginCheckpoint() {
+        int next = 1 - current;
+        long epoch = Math.max(epochs[0], epochs[1]) + 1;
+        MappedByteBuffer bb = maps[next];
+        bb.putInt(0, 0); // Сегмент недействителен до фиксации.
+        bb.putInt(HEADER_SIZE, 0);
+        epochs[next] = epoch;
+        current = next;
+        position = HEADER_SIZE;
+    }
+
+    /**
+     * Фиксация контрольной точки: записи сбрасываются на диск, затем записывается заголовок сегмента (с этого момента
+     * он действующий).
+     */
+    public synchronized void commitCheckpoint() {
+        MappedByteBuffer bb = maps[current];
+        bb.force();
+        bb.putInt(4, VERSION).putLong(8, epochs[current]);
+        bb.putInt(0, MAGIC);
+        bb.force();
+        isDirty = false;
+        logger.infof("Контрольная точка журнала! {segment=%d epoch=%d size=%d}", current, epochs[current], position);
+    }
+
+    /**
+     * Запись: команда поставлена в очередь.
+     *
+     * @return Результат: true - записано, false - сегмент заполнен (нужна контрольная точка).
+     */
+    public boolean logQueue(int senderid, long commandid, int executetimeout) {
+        record.reset().put(REC_QUEUE).putInt(senderid).putLong(commandid).putInt(executetimeout).flip();
+        return append(record);
+    }
+
+    /**
+     * Запись: результат исполнения команды.
+     *
+     * @param body Данные результата (рабочее окно).
+     * @return Результат: true - записано, false - сегмент заполнен (нужна контрольная точка) или результат больше
+     * сегмента.
+     */
+    public boolean logResult(int senderid, long commandid, int executetimeout, long finalizationid, int errid,
+                             String errmsg, DataBuffer body) {
+        int need = 64 + body.length() + (errmsg != null ? errmsg.length() * 4 : 0);
+        if (need > size - HEADER_SIZE - RECORD_HEADER_SIZE) return false;
+        if (record.capacity() < need) record = new DataBuffer(need);
+        record.reset().put(REC_RESULT).putInt(senderid).putLong(commandid).putInt(executetimeout)
+                .putLong(finalizationid).putInt2(errid).putNString(errmsg).putInt(body.length())
+                .putArea(body).flip();
+        return append(record);
+    }
+
+    /**
+     * Запись: слот освобождён.
+     *
+     * @return Результат: true - записано, false - сегмент заполнен (нужна контрольная точка).
+     */
+    public boolean logFree(int senderid, long commandid) {
+        record.reset().put(REC_FREE).putInt(senderid).putLong(commandid).flip();
+        return append(record);
+    }
+
+    /** Добавление записи в действующий сегмент (без сброса на диск). */
+    private boolean append(DataBuffer data) {
+        if (isClosed) return true;
+        int length = data.length();
+        // Место для записи и для признака конца журнала после неё.
+        if (position + RECORD_HEADER_SIZE + length + 4 > size) return false;
+        MappedByteBuffer bb = maps[current];
+        byte[] arr = data.buffer();
+        int off = data.arrayOffset() + data.offset();
+        ByteBuffer dst = bb.duplicate();
+        dst.position(position + RECORD_HEADER_SIZE);
+        dst.put(arr, off, length);
+        bb.putInt(position + RECORD_HEADER_SIZE + length, 0); // Конец журнала.
+        bb.putInt(position + 4, checksum(epochs[current], arr, off, length));
+        bb.putInt(position, length); // Длина - последней.
+        position += RECORD_HEADER_SIZE + length;
+        isDirty = true;
+        return true;
+    }
+
+    /** CRC32 эпохи и данных. */
+    private int checksum(long epoch, byte[] data, int offset, int length) {
+        for (int i = 0; i < 8; i++) epochBytes[i] = (byte) (epoch >>> (56 - i * 8));
+        crc.reset();
+        crc.update(epochBytes, 0, 8);
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /** Тело потока сброса записей на диск. */
+    private void flusherBody() {
+        while (!isClosed) {
+            try {
+                Thread.sleep(flushInterval);
+            } catch (InterruptedException ignore) {
+            }
+            flush();
+        }
+    }
+
+    /** Сброс записей на диск (если есть несброшенные). */
+    public synchronized void flush() {
+        if (!isDirty) return;
+        isDirty = false; // До сброса - записи, добавленные во время сброса, будут сброшены в следующий раз.
+        try {
+            maps[current].force();
+        } catch (Exception ex) {
+            logger.errorf("Ошибка сброса журнала на диск - %s!", ExError.exMsg(ex));
+        }
+    }
+
+    /** Позиция записи в действующем сегменте (заполненность журнала). */
+    public int getPosition() {
+        return position;
+    }
+
+    /** Размер сегмента. */
+    public int getSize() {
+        return size;
+    }
+
+    /** Закрытие журнала: сброс записей на диск и остановка потока сброса (отображения освобождаются сборщиком). */
+    public void close() {
+        if (isClosed) return;
+        isClosed = true;
+        flusher.interrupt();
+        try {
+            flusher.join(1000);
+        } catch (InterruptedException ignore) {
+        }
+        isDirty = true;
+        flush();
+        closeFiles();
+    }
+
+    private void closeFiles() {
+        for (RandomAccessFile f : files) {
+            try {
+                if (f != null) f.close();
+            } catch (Exception ignore) {
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2016. Aleksey Nikolaevich Dokshin. All right reserved.
+ * Contacts: dant.it@gmail.com, dokshin@list.ru.
+ */
+
+package app.service;
+
+import app.DataBuffer;
+import app.ExError;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Транспорт через локальные сокеты (AF_UNIX) - для клиента и сервиса на одном компьютере: без IP стека, с надёжной
+ * доставкой, доступ ограничивается правами на файл сокета. Доступен с Java 16 (классы вызываются через рефлексию,
+ * проверка - isSupported()).
+ * <p>
+ * JDK поддерживает только потоковые локальные сокеты, поэтому сообщения (те же, что и в датаграммах: метаданные +
+ * данные) передаются кадрами: [4] длина, сообщение. CRC16 не используется.
+ * <p>
+ * Надёжность доставки - в пределах соединения: запись не ждёт освобождения буфера сокета, и при заполненном буфере
+ * (получатель не читает) соединение закрывается, а сообщение теряется (см. Connection.write()).
+ */
+public class UnixSocketTransport {
+
+    /** Семейство протоколов UNIX (null - не поддерживается JVM). */
+    private static final ProtocolFamily UNIX = unixFamily();
+
+    private static ProtocolFamily unixFamily() {
+        try {
+            return StandardProtocolFamily.valueOf("UNIX");
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    /** Признак поддержки локальных сокетов JVM. */
+    public static boolean isSupported() {
+        return UNIX != null;
+    }
+
+    /**
+     * Адрес локального сокета (UnixDomainSocketAddress).
+     *
+     * @param file Файл сокета.
+     * @return Адрес.
+     * @throws IOException Если не поддерживается JVM.
+     */
+    public static SocketAddress socketAddress(File file) throws IOException {
+        try {
+            Class<?> c = Class.forName("java.net.UnixDomainSocketAddress");
+            return (SocketAddress) c.getMethod("of", String.class).invoke(null, file.getPath());
+        } catch (Exception ex) {
+            throw new IOException("Локальные сокеты не поддерживаются! - " + ExError.exMsg(ex));
+        }
+    }
+
+    /**
+     * Открытие серверного локального сокета (неблокирующего). Оставшийся от прошлого запуска файл сокета удаляется.
+     *
+     * @param file Файл сокета.
+     * @return Канал сокета.
+     * @throws IOException
+     */
+    public static ServerSocketChannel openServer(File file) throws IOException {
+        SocketAddress address = socketAddress(file);
+        ServerSocketChannel ch;
+        try {
+            ch = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class)
+                    .invoke(null, UNIX);
+        } catch (Exception ex) {
+            throw new IOException("Ошибка открытия локального сокета - " + ExError.exMsg(ex));
+        }
+        try {
+            if (file.exists() && !file.delete()) throw new IOException("Не удалось удалить файл сокета: " + file);
+            ch.bind(address);
+            ch.configureBlocking(false);
+            return ch;
+        } catch (IOException ex) {
+            ch.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Подключение к локальному сокету сервиса (соединение - неблокирующее).
+     *
+     * @param file Файл сокета.
+     * @return Канал соединения.
+     * @throws IOException
+     */
+    public static SocketChannel connect(File file) throws IOException {
+        SocketAddress address = socketAddress(file);
+        SocketChannel ch;
+        try {
+            ch = (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, UNIX);
+        } catch (Exception ex) {
+            throw new IOException("Ошибка открытия локального сокета - " + ExError.exMsg(ex));
+        }
+        try {
+            ch.connect(address);
+            ch.configureBlocking(false);
+            return ch;
+        } catch (IOException ex) {
+            ch.close();
+            throw ex;
+        }
+    }
+
+    /** Адрес соединения (вместо адреса отправителя датаграммы). */
+    public static class Address extends SocketAddress {
+        private final String path;
+        private final long id;
+
+        public Address(File file, long id) {
+            this.path = file.getAbsolutePath();
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Address && ((Address) o).id == id && ((Address) o).path.equals(path);
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode() * 31 + Long.hashCode(id);
+        }
+
+        @Override
+        public String toString() {
+            return "unix:" + path + "#" + id;
+        }
+    }
+
+    /** Соединение: приём и отправка кадров с сообщениями. */
+    public static class Connection {
+        /** Канал соединения. */
+        public final SocketChannel channel;
+        /** Адрес соединения. */
+        public final Address address;
+        /** Буфер приёма (накопление кадров, режим записи). */
+        private final ByteBuffer in;
+        /** Буфер отправки кадра. Используем только синхронизированно! */
+        private final ByteBuffer out;
+
+        public Connection(SocketChannel channel, Address address, int maxmsgsize) {
+            this.channel = channel;
+            this.address = address;
+            this.in = ByteBuffer.allocate(maxmsgsize + 4);
+            this.out = ByteBuffer.allocate(maxmsgsize + 4);
+        }
+
+        /**
+         * Приём имеющихся данных (без ожидания).
+         *
+         * @return Кол-во полученных байт или -1, если соединение закрыто.
+         * @throws IOException
+         */
+        public int fill() throws IOException {
+            return in.hasRemaining() ? channel.read(in) : 0;
+        }
+
+        /**
+         * Извлечение очередного полученного сообщения.
+         *
+         * @param dst    Буфер для сообщения.
+         * @param offset Смещение для сообщения относительно окна буфера.
+         * @return Длина сообщения или -1, если полного кадра нет.
+         * @throws ExError При неверной длине кадра (дальнейший приём невозможен - соединение нужно закрыть).
+         */
+        public int next(DataBuffer dst, int offset) throws ExError {
+            if (in.position() < 4) return -1;
+            int length = in.getInt(0);
+            if (length < 0 || length > in.capacity() - 4 || offset + length > dst.capacity() - dst.offset()) {
+                throw new ExError("Неверная длина кадра! {length=%d}", length);
+            }
+            if (in.position() < 4 + length) return -1;
+            in.flip();
+            in.position(4);
+            in.get(dst.buffer(), dst.arrayOffset() + dst.offset() + offset, length);
+            in.compact();
+            return length;
+        }
+
+        /**
+         * Отправка сообщения (кадром) без ожидания: вызывается и из потока приёма сервиса, который не должен
+         * задерживаться из-за клиента, не читающего ответы. Если буфер сокета заполнен - кадр не отправляется (потеря
+         * сообщения, как и у датаграммы, восполняется повтором запроса клиентом).
+         *
+         * @param src    Буфер с сообщением.
+         * @param offset Смещение сообщения относительно окна буфера.
+         * @param length Длина сообщения.
+         * @return Результат: true - отправлено, false - буфер сокета заполнен (соединение нужно закрыть, т.к. кадр
+         * мог уйти частично).
+         * @throws IOException
+         */
+        public synchronized boolean write(DataBuffer src, int offset, int length) throws IOException {
+            out.clear();
+            out.putInt(length).put(src.buffer(), src.arrayOffset() + src.offset() + offset, length).flip();
+            while (out.hasRemaining()) {
+                if (channel.write(out) == 0) return false;
+            }
+            return true;
+        }
+
+        /** Закрытие соединения. */
+        public void close() {
+            try {
+                channel.close();
+            } catch (Exception ignore) {
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2016. Aleksey Nikolaevich Dokshin. All right reserved.
+ * Contacts: dant.it@gmail.com, dokshin@list.ru.
+ */
+package util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Гистограмма задержек с фиксированным объёмом памяти (по принципу HdrHistogram): значения группируются в интервалы,
+ * ширина которых растёт по степеням двойки - каждая октава делится на SUB_BUCKETS равных интервалов, поэтому
+ * относительная погрешность значения не больше 1/SUB_BUCKETS. Значения меньше 2 * SUB_BUCKETS учитываются точно,
+ * значения больше MAX_VALUE - в последнем интервале.
+ * <p>
+ * Запись - без блокировок (атомарные счётчики). Снимок читается тоже без блокировки: счётчики интервалов, сумма и
+ * максимум между собой могут быть согласованы не строго.
+ */
+public class LatencyHistogram {
+
+    /** Кол-во бит деления октавы на интервалы. */
+    public static final int SUB_BUCKET_BITS = 3;
+    /** Кол-во интервалов в октаве. */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** Степень двойки, ограничивающая значения. */
+    private static final int MAX_EXPONENT = 36;
+    /** Наибольшее учитываемое значение (в мксек - около 19 часов). */
+    public static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+    /** Кол-во интервалов гистограммы. */
+    public static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    /** Счётчики значений по интервалам. */
+    private final AtomicLongArray buckets;
+    /** Сумма значений. */
+    private final AtomicLong sum;
+    /** Наибольшее значение. */
+    private final AtomicLong max;
+
+    public LatencyHistogram() {
+        this.buckets = new AtomicLongArray(BUCKET_COUNT);
+        this.sum = new AtomicLong(0);
+        this.max = new AtomicLong(0);
+    }
+
+    /**
+     * Номер интервала для значения.
+     *
+     * @param value Значение (отрицательные - как 0, больше MAX_VALUE - как MAX_VALUE).
+     * @return Номер интервала.
+     */
+    public static int bucketIndex(long value) {
+        if (value < 2 * SUB_BUCKETS) return value < 0 ? 0 : (int) value;
+        if (value > MAX_VALUE) value = MAX_VALUE;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /** Наименьшее значение интервала. */
+    public static long bucketLow(int index) {
+        if (index < 2 * SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    }
+
+    /** Наибольшее значение интервала. */
+    public static long bucketHigh(int index) {
+        if (index < 2 * SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        return ((long) (SUB_BUCKETS + index % SUB_BUCKETS + 1) << shift) - 1;
+    }
+
+    /**
+     * Учёт значения.
+     *
+     * @param value Значение (отрицательные учитываются как 0).
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        buckets.incrementAndGet(bucketIndex(value));
+        sum.addAndGet(value);
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) m = max.get();
+    }
+
+    /** Кол-во учтённых значений. */
+    public long getCount() {
+        long n = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) n += buckets.get(i);
+        return n;
+    }
+
+    /** Снимок гистограммы. */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) counts[i] = buckets.get(i);
+        return new Snapshot(counts, sum.get(), max.get());
+    }
+
+    /** Снимок гистограммы (неизменяемый). */
+    public static class Snapshot {
+        /** Счётчики значений по интервалам (BUCKET_COUNT элементов). */
+        private final long[] counts;
+        /** Кол-во значений. */
+        public final long count;
+        /** Сумма значений. */
+        public final long sum;
+        /** Наибольшее значение. */
+        public final long max;
+
+        /**
+         * Конструктор.
+         *
+         * @param counts Счётчики по интервалам (массив не копируется, длина - не больше BUCKET_COUNT).
+         * @param sum    Сумма значений.
+         * @param max    Наибольшее значение.
+         */
+        public Snapshot(long[] counts, long sum, long max) {
+            this.counts = counts;
+            long n = 0;
+            for (long c : counts) n += c;
+            this.count = n;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /** Кол-во значений в интервале. */
+        public long getBucketCount(int index) {
+            return index < counts.length ? counts[index] : 0;
+        }
+
+        /** Среднее значение (0 - нет значений). */
+        public double getMean() {
+            return count > 0 ? (double) sum / count : 0;
+        }
+
+        /**
+         * Значение заданного процентиля - верхняя граница интервала (не больше максимума).
+         *
+         * @param percentile Процентиль (0..100).
+         * @return Значение (0 - нет значений).
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100));
+            long n = 0;
+            for (int i = 0; i < counts.length; i++) {
+                n += counts[i];
+                if (n >= rank) return Math.min(bucketHigh(i), max);
+            }
+            return max;
+        }
+    }
+}
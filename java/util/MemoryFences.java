@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2016. Aleksey Nikolaevich Dokshin. All right reserved.
+ * Contacts: dant.it@gmail.com, dokshin@list.ru.
+ */
+package util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Барьеры памяти Unsafe.loadFence(), storeFence() и fullFence() - в Java 8 нет VarHandle. Нужны там, где порядок обычных чтений
+ * и записей не обеспечивается volatile полями: чтение без блокировки с проверкой версии (seqlock) и обмен через
+ * разделяемую память между процессами (разные JVM).
+ * <p>
+ * Вызов - через MethodHandle в static final поле (JIT встраивает его как вызов самого барьера).
+ */
+public class MemoryFences {
+
+    private static final MethodHandle LOAD_FENCE;
+    private static final MethodHandle STORE_FENCE;
+    private static final MethodHandle FULL_FENCE;
+
+    static {
+        try {
+            Class<?> cls = Class.forName("sun.misc.Unsafe");
+            Field f = cls.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            Object unsafe = f.get(null);
+            MethodType mt = MethodType.methodType(void.class);
+            LOAD_FENCE = MethodHandles.lookup().findVirtual(cls, "loadFence", mt).bindTo(unsafe);
+            STORE_FENCE = MethodHandles.lookup().findVirtual(cls, "storeFence", mt).bindTo(unsafe);
+            FULL_FENCE = MethodHandles.lookup().findVirtual(cls, "fullFence", mt).bindTo(unsafe);
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    /** Барьер чтения (LoadLoad + LoadStore): чтения до барьера не переносятся после чтений и записей после него. */
+    public static void loadFence() {
+        try {
+            LOAD_FENCE.invokeExact();
+        } catch (Throwable ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Барьер записи (StoreStore + LoadStore): чтения и записи до барьера не переносятся после записей после него.
+     * Порядок записей до барьера относительно чтений после него не гарантируется.
+     */
+    public static void storeFence() {
+        try {
+            STORE_FENCE.invokeExact();
+        } catch (Throwable ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Полный барьер (в т.ч. StoreLoad): никакие чтения и записи не переносятся через барьер. Нужен, когда сторона
+     * пишет свой признак и затем читает признак другой стороны - хотя бы одна из сторон увидит запись другой.
+     */
+    public static void fullFence() {
+        try {
+            FULL_FENCE.invokeExact();
+        } catch (Throwable ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2016. Aleksey Nikolaevich Dokshin. All right reserved.
+ * Contacts: dant.it@gmail.com, dokshin@list.ru.
+ */
+package util;
+
+/**
+ * Оценка времени отклика (RTT) удалённой стороны и расчёт таймаута повторной отправки (RTO) по алгоритму
+ * Джекобсона-Карелса (как в TCP, RFC 6298): сглаженное RTT (SRTT) и его отклонение (RTTVAR), RTO = SRTT + 4 * RTTVAR
+ * в заданных пределах. При истечении RTO без ответа таймаут удваивается (экспоненциальная задержка) до получения
+ * нового замера.
+ * <p>
+ * Замеры по повторно отправленным запросам учитывать нельзя (неизвестно, на какую из отправок пришёл ответ) - это
+ * на стороне вызывающего (алгоритм Карна).
+ * <p>
+ * Потокобезопасно.
+ */
+public class RttEstimator {
+
+    /** Минимальный RTO (мсек). */
+    private int minRto;
+    /** Максимальный RTO (мсек). */
+    private int maxRto;
+    /** Начальный RTO - до первого замера (мсек). */
+    private final int initialRto;
+
+    /** Сглаженное RTT (мсек), если < 0 - замеров ещё не было. */
+    private double srtt;
+    /** Отклонение RTT (мсек). */
+    private double rttvar;
+    /** Текущий RTO с учётом удвоений (мсек). */
+    private int rto;
+    /** Последний замер RTT (мсек). */
+    private double lastRtt;
+
+    /** Кол-во учтённых замеров. */
+    private long samples;
+    /** Кол-во удвоений RTO (истечений таймаута без ответа). */
+    private long backoffs;
+
+    /**
+     * Конструктор.
+     *
+     * @param initialrto Начальный RTO - до первого замера (мсек).
+     * @param minrto     Минимальный RTO (мсек).
+     * @param maxrto     Максимальный RTO (мсек).
+     */
+    public RttEstimator(int initialrto, int minrto, int maxrto) {
+        this.initialRto = initialrto;
+        this.minRto = minrto;
+        this.maxRto = Math.max(minrto, maxrto);
+        reset();
+    }
+
+    /** Сброс оценки (к состоянию без замеров). */
+    public synchronized void reset() {
+        srtt = -1;
+        rttvar = 0;
+        lastRtt = -1;
+        rto = clamp(initialRto);
+        samples = 0;
+        backoffs = 0;
+    }
+
+    /**
+     * Установка пределов RTO.
+     *
+     * @param minrto Минимальный RTO (мсек).
+     * @param maxrto Максимальный RTO (мсек).
+     */
+    public synchronized void setLimits(int minrto, int maxrto) {
+        this.minRto = minrto;
+        this.maxRto = Math.max(minrto, maxrto);
+        this.rto = clamp(rto);
+    }
+
+    private int clamp(double value) {
+        return (int) Math.max(minRto, Math.min(maxRto, Math.ceil(value)));
+    }
+
+    /**
+     * Учёт замера RTT (только для запросов без повторной отправки!). Сбрасывает удвоения RTO.
+     *
+     * @param rttnanos Время от отправки запроса до получения ответа (наносек).
+     */
+    public synchronized void sample(long rttnanos) {
+        double r = rttnanos / 1000000.0;
+        if (srtt < 0) {
+            srtt = r;
+            rttvar = r / 2;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - r);
+            srtt = 0.875 * srtt + 0.125 * r;
+        }
+        lastRtt = r;
+        samples++;
+        rto = clamp(srtt + 4 * rttvar);
+    }
+
+    /** Удвоение RTO при истечении таймаута без ответа (не выше максимального). */
+    public synchronized void backoff() {
+        rto = clamp(rto * 2.0);
+        backoffs++;
+    }
+
+    /** Текущий RTO (мсек). */
+    public synchronized int getRto() {
+        return rto;
+    }
+
+    /** Сглаженное RTT (мсек), если < 0 - замеров ещё не было. */
+    public synchronized double getSrtt() {
+        return srtt;
+    }
+
+    /** Отклонение RTT (мсек). */
+    public synchronized double getRttVar() {
+        return rttvar;
+    }
+
+    /** Последний замер RTT (мсек), если < 0 - замеров ещё не было. */
+    public synchronized double getLastRtt() {
+        return lastRtt;
+    }
+
+    /** Кол-во учтённых замеров. */
+    public synchronized long getSamples() {
+        return samples;
+    }
+
+    /** Кол-во удвоений RTO. */
+    public synchronized long getBackoffs() {
+        return backoffs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("srtt=%.3f rttvar=%.3f rto=%d last=%.3f samples=%d backoffs=%d",
+                srtt, rttvar, rto, lastRtt, samples, backoffs);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2016. Aleksey Nikolaevich Dokshin. All right reserved.
+ * Contacts: dant.it@gmail.com, dokshin@list.ru.
+ */
+package util;
+
+/**
+ * Хэшированное колесо таймеров. Таймеры раскладываются по ячейкам колеса по времени срабатывания (с точностью до
+ * тика), постановка и отмена таймера - O(1), срабатывание - O(1) амортизированно на таймер (таймер со сроком больше
+ * оборота колеса просматривается один раз за оборот).
+ * <p>
+ * Потоконебезопасно! Синхронизация - на стороне владельца. Действия таймеров выполняются в потоке, вызвавшем
+ * advance().
+ */
+public class TimingWheel {
+
+    /** Таймер. Объект многоразовый - может повторно ставиться после срабатывания или отмены. */
+    public static class Timer {
+        /** Действие при срабатывании таймера. */
+        private final Runnable action;
+        /** Время срабатывания. */
+        private long deadline;
+        /** Индекс ячейки колеса (если = -1, то таймер не поставлен). */
+        private int bucket;
+        private Timer prev, next;
+
+        public Timer(Runnable action) {
+            this.action = action;
+            this.deadline = 0;
+            this.bucket = -1;
+            this.prev = null;
+            this.next = null;
+        }
+
+        /** Признак поставленного (ожидающего срабатывания) таймера. */
+        public boolean isScheduled() {
+            return bucket != -1;
+        }
+
+        /** Время срабатывания. */
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+
+    /** Длительность тика (мсек). */
+    private final long tickTime;
+    /** Ячейки колеса - двусвязные списки таймеров (голова списка). */
+    private final Timer[] buckets;
+    /** Номер последнего обработанного тика (время / длительность тика). */
+    private long currentTick;
+    /** Кол-во поставленных таймеров. */
+    private int count;
+    /** Тик, до которого рассчитано ожидание владельца (см. nextTimerDelay()). Long.MAX_VALUE - не ограничено. */
+    private long wakeTick;
+
+    /**
+     * Конструктор.
+     *
+     * @param wheelsize Кол-во ячеек колеса.
+     * @param ticktime  Длительность тика (мсек).
+     * @param now       Текущее время (мсек).
+     */
+    public TimingWheel(int wheelsize, long ticktime, long now) {
+        this.tickTime = ticktime;
+        this.buckets = new Timer[wheelsize];
+        this.currentTick = now / ticktime;
+        this.count = 0;
+        this.wakeTick = Long.MAX_VALUE;
+    }
+
+    /** Кол-во поставленных таймеров. */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Постановка таймера. Если таймер уже поставлен - переставляется на новое время.
+     *
+     * @param timer    Таймер.
+     * @param deadline Время срабатывания (мсек). Если уже наступило - сработает на ближайшем тике.
+     * @return Результат: true - таймер сработает раньше, чем закончится ожидание, рассчитанное nextTimerDelay()
+     * (ожидающий поток нужно разбудить для пересчёта).
+     */
+    public boolean schedule(Timer timer, long deadline) {
+        if (timer.bucket != -1) cancel(timer);
+        long tick = Math.max(currentTick + 1, (deadline + tickTime - 1) / tickTime);
+        int idx = (int) (tick % buckets.length);
+        timer.deadline = deadline;
+        timer.bucket = idx;
+        timer.prev = null;
+        timer.next = buckets[idx];
+        if (timer.next != null) timer.next.prev = timer;
+        buckets[idx] = timer;
+        count++;
+        return tick < wakeTick;
+    }
+
+    /**
+     * Отмена таймера. Если таймер не поставлен - ничего не происходит.
+     *
+     * @param timer Таймер.
+     */
+    public void cancel(Timer timer) {
+        if (timer.bucket == -1) return;
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            buckets[timer.bucket] = timer.next;
+        }
+        if (timer.next != null) timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+        timer.bucket = -1;
+        count--;
+    }
+
+    /** Отмена всех таймеров. */
+    public void clear() {
+        for (int i = 0; i < buckets.length; i++) {
+            while (buckets[i] != null) cancel(buckets[i]);
+        }
+    }
+
+    /**
+     * Продвижение колеса до текущего времени с выполнением действий сработавших таймеров. Обрабатываются только
+     * ячейки прошедших с прошлого вызова тиков (но не более одного оборота колеса).
+     *
+     * @param now Текущее время (мсек).
+     * @return Кол-во сработавших таймеров.
+     */
+    public int advance(long now) {
+        long tick = now / tickTime;
+        if (tick <= currentTick) return 0;
+        long from = Math.max(currentTick + 1, tick - buckets.length + 1);
+        currentTick = tick;
+        if (count == 0) return 0;
+
+        int fired = 0;
+        for (long t = from; t <= tick; t++) {
+            int idx = (int) (t % buckets.length);
+            Timer timer = buckets[idx];
+            while (timer != null) {
+                Timer next = timer.next;
+                if (timer.deadline <= now) {
+                    cancel(timer);
+                    fired++;
+                    timer.action.run(); // Действие может переставить этот или отменить другие таймеры.
+                    // Если следующий таймер отменён или переставлен в другую ячейку - просмотр ячейки заново.
+                    if (next != null && next.bucket != idx) next = buckets[idx];
+                }
+                timer = next;
+            }
+        }
+        return fired;
+    }
+
+    /**
+     * Время до ближайшего тика с таймерами (для ожидания перед вызовом advance()) - просмотр ячеек не дальше одного
+     * оборота колеса. Таймер со сроком больше оборота может вызвать лишнее пробуждение (раз за оборот).
+     *
+     * @param now Текущее время (мсек).
+     * @return Время до ближайшего тика с таймерами (мсек). Если = 0 - таймеров нет и ожидание не ограничено.
+     */
+    public long nextTimerDelay(long now) {
+        if (count > 0) {
+            for (long t = currentTick + 1, end = currentTick + buckets.length; t <= end; t++) {
+                if (buckets[(int) (t % buckets.length)] != null) {
+                    wakeTick = t;
+                    return Math.max(1, t * tickTime - now);
+                }
+            }
+        }
+        wakeTick = Long.MAX_VALUE;
+        return 0;
+    }
+}